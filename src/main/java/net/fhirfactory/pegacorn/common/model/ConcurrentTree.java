@@ -0,0 +1,582 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread-safe Tree for data that is read by many threads and updated
+ * occasionally (e.g. the deployment topology).
+ *
+ * Each node is identified by a key (derived from its data by the key
+ * function). The tree is held as an immutable Snapshot: readers take the
+ * current Snapshot (one volatile read) and never block, nor see a partially
+ * applied update. Writers are serialised; each update builds a new Snapshot -
+ * copying only the changed node and its ancestors (so unchanged subtrees are
+ * shared, by reference, between Snapshots) - and then publishes it atomically.
+ * The key and parent indexes are persistent hash maps, so a new Snapshot's
+ * indexes also share all but O(log n) of their structure with the previous
+ * one. An update therefore costs O(depth * fan-out + log n), not O(n).
+ *
+ * Lookup by key is O(log32 n) (i.e. effectively constant) and lookup by a path
+ * of keys is O(depth).
+ *
+ * Each change is published (after the new Snapshot) to the registered
+ * TreeChangeListeners, in the order in which the changes were applied. A
+ * sequence of changes can be applied as a single update via apply().
+ */
+public class ConcurrentTree<K, T> {
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentTree.class);
+
+    private final Function<T, K> keyFunction;
+    private final AtomicReference<Snapshot<K, T>> currentSnapshot;
+    private final Object writeLock = new Object();
+    private final CopyOnWriteArrayList<TreeChangeListener<K, T>> listeners = new CopyOnWriteArrayList<>();
+
+    public ConcurrentTree(T rootData, Function<T, K> keyFunction) {
+        if (rootData == null || keyFunction == null) {
+            throw (new IllegalArgumentException("null rootData or keyFunction passed to Constructor"));
+        }
+        this.keyFunction = keyFunction;
+        Node<K, T> root = new Node<>(keyOf(rootData), rootData, Collections.emptyMap());
+        PersistentHashMap<K, Node<K, T>> nodes = PersistentHashMap.<K, Node<K, T>>empty().put(root.key, root);
+        this.currentSnapshot = new AtomicReference<>(new Snapshot<>(root, nodes, PersistentHashMap.empty(), 0L));
+    }
+
+    /**
+     * Builds a ConcurrentTree with the same structure (and data) as the Tree.
+     */
+    public static <K, T> ConcurrentTree<K, T> from(Tree<T> tree, Function<T, K> keyFunction) {
+        if (tree == null || tree.getTreeNode() == null) {
+            throw (new IllegalArgumentException("null or empty Tree passed to from()"));
+        }
+        ConcurrentTree<K, T> concurrentTree = new ConcurrentTree<>(tree.getTreeNode().getNodeData(), keyFunction);
+        synchronized (concurrentTree.writeLock) {
+            Mutation<K, T> mutation = new Mutation<>(concurrentTree.currentSnapshot.get());
+            mutation.root = concurrentTree.buildSubtree(tree.getTreeNode(), null, mutation);
+            concurrentTree.publish(mutation);
+        }
+        return (concurrentTree);
+    }
+
+    /**
+     * @return The current (immutable) Snapshot of the tree.
+     */
+    public Snapshot<K, T> snapshot() {
+        return (currentSnapshot.get());
+    }
+
+    public Node<K, T> getRoot() {
+        return (currentSnapshot.get().getRoot());
+    }
+
+    public Node<K, T> getNode(K key) {
+        return (currentSnapshot.get().getNode(key));
+    }
+
+    public boolean containsKey(K key) {
+        return (currentSnapshot.get().containsKey(key));
+    }
+
+    public int size() {
+        return (currentSnapshot.get().size());
+    }
+
+    public void addTreeChangeListener(TreeChangeListener<K, T> listener) {
+        if (listener == null) {
+            throw (new IllegalArgumentException("null listener passed to addTreeChangeListener()"));
+        }
+        listeners.add(listener);
+    }
+
+    public void removeTreeChangeListener(TreeChangeListener<K, T> listener) {
+        listeners.remove(listener);
+    }
+
+    //
+    // Updates
+    //
+
+    /**
+     * Adds the data as a new (leaf) child of the parent node.
+     */
+    public Node<K, T> add(K parentKey, T data) {
+        synchronized (writeLock) {
+            Mutation<K, T> mutation = new Mutation<>(currentSnapshot.get());
+            List<TreeChangeEvent<K, T>> events = new ArrayList<>(1);
+            Node<K, T> newNode = addNode(mutation, parentKey, data, events);
+            publish(mutation);
+            notifyListeners(events);
+            return (newNode);
+        }
+    }
+
+    /**
+     * Replaces the data of the node with the same key.
+     */
+    public Node<K, T> update(T data) {
+        synchronized (writeLock) {
+            Mutation<K, T> mutation = new Mutation<>(currentSnapshot.get());
+            List<TreeChangeEvent<K, T>> events = new ArrayList<>(1);
+            Node<K, T> updatedNode = updateNode(mutation, data, events);
+            publish(mutation);
+            notifyListeners(events);
+            return (updatedNode);
+        }
+    }
+
+    /**
+     * Removes the node and all its descendants. The root cannot be removed.
+     *
+     * @return The removed node (as at the time of removal), or null if there
+     * was no such node.
+     */
+    public Node<K, T> remove(K key) {
+        synchronized (writeLock) {
+            Mutation<K, T> mutation = new Mutation<>(currentSnapshot.get());
+            List<TreeChangeEvent<K, T>> events = new ArrayList<>();
+            Node<K, T> removedNode = removeNode(mutation, key, events);
+            if (removedNode != null) {
+                publish(mutation);
+                notifyListeners(events);
+            }
+            return (removedNode);
+        }
+    }
+
+    /**
+     * Moves the node (and its descendants) to become a child of the new parent.
+     */
+    public Node<K, T> move(K key, K newParentKey) {
+        synchronized (writeLock) {
+            Mutation<K, T> mutation = new Mutation<>(currentSnapshot.get());
+            List<TreeChangeEvent<K, T>> events = new ArrayList<>(1);
+            Node<K, T> movedNode = moveNode(mutation, key, newParentKey, events);
+            publish(mutation);
+            notifyListeners(events);
+            return (movedNode);
+        }
+    }
+
+    /**
+     * Applies a sequence of changes (e.g. from TreeDiff) in order, as a single
+     * update: readers see either none or all of the changes, and if any change
+     * cannot be applied (an IllegalArgumentException) none of them are. REMOVED
+     * events for nodes that are no longer present are ignored. The listeners
+     * are notified once the whole sequence has been published.
+     */
+    public void apply(Iterable<TreeChangeEvent<K, T>> events) {
+        if (events == null) {
+            throw (new IllegalArgumentException("null events passed to apply()"));
+        }
+        synchronized (writeLock) {
+            Mutation<K, T> mutation = new Mutation<>(currentSnapshot.get());
+            List<TreeChangeEvent<K, T>> appliedEvents = new ArrayList<>();
+            for (TreeChangeEvent<K, T> event : events) {
+                switch (event.getChangeType()) {
+                    case ADDED:
+                        if (event.getNewParentKey() == null) {
+                            throw (new IllegalArgumentException("Cannot add a second root --> " + event.getKey()));
+                        }
+                        addNode(mutation, event.getNewParentKey(), event.getNewData(), appliedEvents);
+                        break;
+                    case REMOVED:
+                        removeNode(mutation, event.getKey(), appliedEvents);
+                        break;
+                    case MOVED:
+                        moveNode(mutation, event.getKey(), event.getNewParentKey(), appliedEvents);
+                        break;
+                    case DATA_CHANGED:
+                        updateNode(mutation, event.getNewData(), appliedEvents);
+                        break;
+                    default:
+                        throw (new IllegalArgumentException("Unknown change type --> " + event.getChangeType()));
+                }
+            }
+            if (!appliedEvents.isEmpty()) {
+                publish(mutation);
+                notifyListeners(appliedEvents);
+            }
+        }
+    }
+
+    //
+    // The individual changes, each applied to the (unpublished) Mutation and
+    // recording the resulting event(s)
+    //
+
+    private Node<K, T> addNode(Mutation<K, T> mutation, K parentKey, T data, List<TreeChangeEvent<K, T>> events) {
+        if (data == null) {
+            throw (new IllegalArgumentException("null data passed to add()"));
+        }
+        K key = keyOf(data);
+        if (mutation.nodes.containsKey(key)) {
+            throw (new IllegalArgumentException("Node already exists --> " + key));
+        }
+        Node<K, T> parent = existingNode(mutation, parentKey);
+        Node<K, T> newNode = new Node<>(key, data, Collections.emptyMap());
+        mutation.nodes = mutation.nodes.put(key, newNode);
+        mutation.parents = mutation.parents.put(key, parentKey);
+        mutation.replaceNode(parent.withChild(newNode));
+        events.add(TreeChangeEvent.added(key, parentKey, data));
+        return (newNode);
+    }
+
+    private Node<K, T> updateNode(Mutation<K, T> mutation, T data, List<TreeChangeEvent<K, T>> events) {
+        if (data == null) {
+            throw (new IllegalArgumentException("null data passed to update()"));
+        }
+        K key = keyOf(data);
+        Node<K, T> existing = existingNode(mutation, key);
+        Node<K, T> updatedNode = new Node<>(key, data, existing.children);
+        mutation.replaceNode(updatedNode);
+        events.add(TreeChangeEvent.dataChanged(key, mutation.parents.get(key), existing.data, data));
+        return (updatedNode);
+    }
+
+    private Node<K, T> removeNode(Mutation<K, T> mutation, K key, List<TreeChangeEvent<K, T>> events) {
+        Node<K, T> existing = (key == null) ? null : mutation.nodes.get(key);
+        if (existing == null) {
+            return (null);
+        }
+        if (existing == mutation.root) {
+            throw (new IllegalArgumentException("The root node cannot be removed"));
+        }
+        K parentKey = mutation.parents.get(key);
+        List<TreeChangeEvent<K, T>> removals = mutation.removeSubtree(existing);
+        mutation.replaceNode(mutation.nodes.get(parentKey).withoutChild(key));
+        // Children before their parents
+        for (int counter = removals.size() - 1; counter >= 0; counter--) {
+            events.add(removals.get(counter));
+        }
+        return (existing);
+    }
+
+    private Node<K, T> moveNode(Mutation<K, T> mutation, K key, K newParentKey, List<TreeChangeEvent<K, T>> events) {
+        Node<K, T> moving = existingNode(mutation, key);
+        existingNode(mutation, newParentKey);
+        if (moving == mutation.root) {
+            throw (new IllegalArgumentException("The root node cannot be moved"));
+        }
+        for (K currentKey = newParentKey; currentKey != null; currentKey = mutation.parents.get(currentKey)) {
+            if (currentKey.equals(key)) {
+                throw (new IllegalArgumentException("Cannot move a node beneath itself --> " + key));
+            }
+        }
+        K oldParentKey = mutation.parents.get(key);
+        mutation.replaceNode(mutation.nodes.get(oldParentKey).withoutChild(key));
+        mutation.parents = mutation.parents.put(key, newParentKey);
+        mutation.replaceNode(mutation.nodes.get(newParentKey).withChild(moving));
+        events.add(TreeChangeEvent.moved(key, oldParentKey, newParentKey, moving.data, moving.data));
+        return (moving);
+    }
+
+    //
+    // Helpers
+    //
+
+    private K keyOf(T data) {
+        K key = keyFunction.apply(data);
+        if (key == null) {
+            throw (new IllegalArgumentException("keyFunction returned a null key for --> " + data));
+        }
+        return (key);
+    }
+
+    private Node<K, T> existingNode(Mutation<K, T> mutation, K key) {
+        Node<K, T> node = (key == null) ? null : mutation.nodes.get(key);
+        if (node == null) {
+            throw (new IllegalArgumentException("No such node --> " + key));
+        }
+        return (node);
+    }
+
+    private void publish(Mutation<K, T> mutation) {
+        currentSnapshot.set(new Snapshot<>(mutation.root, mutation.nodes, mutation.parents, mutation.base.version + 1));
+    }
+
+    private void notifyListeners(List<TreeChangeEvent<K, T>> events) {
+        for (TreeChangeEvent<K, T> event : events) {
+            for (TreeChangeListener<K, T> listener : listeners) {
+                try {
+                    listener.treeChanged(event);
+                } catch (RuntimeException listenerEx) {
+                    LOG.warn(".notifyListeners(): Listener failed for event --> {}", event, listenerEx);
+                }
+            }
+        }
+    }
+
+    private Node<K, T> buildSubtree(TreeNode<T> treeNode, K parentKey, Mutation<K, T> mutation) {
+        K key = keyOf(treeNode.getNodeData());
+        if (parentKey != null && mutation.nodes.containsKey(key)) {
+            throw (new IllegalArgumentException("Duplicate node key within Tree --> " + key));
+        }
+        LinkedHashMap<K, Node<K, T>> children = new LinkedHashMap<>();
+        for (TreeNode<T> childTreeNode : treeNode.getChildren()) {
+            Node<K, T> child = buildSubtree(childTreeNode, key, mutation);
+            children.put(child.key, child);
+        }
+        Node<K, T> node = new Node<>(key, treeNode.getNodeData(), Collections.unmodifiableMap(children));
+        mutation.nodes = mutation.nodes.put(key, node);
+        if (parentKey != null) {
+            mutation.parents = mutation.parents.put(key, parentKey);
+        }
+        return (node);
+    }
+
+    @Override
+    public String toString() {
+        Snapshot<K, T> snapshot = currentSnapshot.get();
+        return ("ConcurrentTree{size=" + snapshot.size() + ", version=" + snapshot.version + "}");
+    }
+
+    //
+    // The (writer's) working state of an update: the new root and indexes, which
+    // become the next Snapshot once the update is complete.
+    //
+
+    private static final class Mutation<K, T> {
+        private final Snapshot<K, T> base;
+        private Node<K, T> root;
+        private PersistentHashMap<K, Node<K, T>> nodes;
+        private PersistentHashMap<K, K> parents;
+
+        Mutation(Snapshot<K, T> base) {
+            this.base = base;
+            this.root = base.root;
+            this.nodes = base.nodes;
+            this.parents = base.parents;
+        }
+
+        /**
+         * Puts the (new version of the) node into the index and path-copies its
+         * ancestors up to the (new) root.
+         */
+        void replaceNode(Node<K, T> node) {
+            Node<K, T> current = node;
+            nodes = nodes.put(current.key, current);
+            K parentKey = parents.get(current.key);
+            while (parentKey != null) {
+                current = nodes.get(parentKey).withChild(current);
+                nodes = nodes.put(parentKey, current);
+                parentKey = parents.get(parentKey);
+            }
+            root = current;
+        }
+
+        /**
+         * Drops the subtree from the indexes (but not from its parent node).
+         *
+         * @return The REMOVED events, each parent before its children.
+         */
+        List<TreeChangeEvent<K, T>> removeSubtree(Node<K, T> subtreeRoot) {
+            ArrayList<TreeChangeEvent<K, T>> removals = new ArrayList<>();
+            ArrayDeque<Node<K, T>> pending = new ArrayDeque<>();
+            pending.push(subtreeRoot);
+            while (!pending.isEmpty()) {
+                Node<K, T> current = pending.pop();
+                K parentKey = parents.get(current.key);
+                nodes = nodes.remove(current.key);
+                parents = parents.remove(current.key);
+                removals.add(TreeChangeEvent.removed(current.key, parentKey, current.data));
+                for (Node<K, T> child : current.children.values()) {
+                    pending.push(child);
+                }
+            }
+            return (removals);
+        }
+    }
+
+    //
+    // An immutable node. A node is never modified once published: an update
+    // creates a new node (and new ancestors), so a node held by a reader always
+    // describes the subtree as at the one Snapshot.
+    //
+
+    public static final class Node<K, T> {
+        private final K key;
+        private final T data;
+        private final Map<K, Node<K, T>> children;
+
+        Node(K key, T data, Map<K, Node<K, T>> children) {
+            this.key = key;
+            this.data = data;
+            this.children = children;
+        }
+
+        public K getKey() {
+            return (key);
+        }
+
+        public T getData() {
+            return (data);
+        }
+
+        /**
+         * @return The (unmodifiable, insertion ordered) children.
+         */
+        public Collection<Node<K, T>> getChildren() {
+            return (children.values());
+        }
+
+        public Node<K, T> getChild(K childKey) {
+            return (children.get(childKey));
+        }
+
+        public int getChildCount() {
+            return (children.size());
+        }
+
+        Node<K, T> withChild(Node<K, T> child) {
+            LinkedHashMap<K, Node<K, T>> newChildren = new LinkedHashMap<>(children);
+            newChildren.put(child.key, child);
+            return (new Node<>(key, data, Collections.unmodifiableMap(newChildren)));
+        }
+
+        Node<K, T> withoutChild(K childKey) {
+            LinkedHashMap<K, Node<K, T>> newChildren = new LinkedHashMap<>(children);
+            newChildren.remove(childKey);
+            return (new Node<>(key, data, Collections.unmodifiableMap(newChildren)));
+        }
+
+        @Override
+        public String toString() {
+            return ("Node{key=" + key + ", children=" + children.size() + "}");
+        }
+    }
+
+    //
+    // An immutable, consistent, view of the whole tree.
+    //
+
+    public static final class Snapshot<K, T> {
+        private final Node<K, T> root;
+        private final PersistentHashMap<K, Node<K, T>> nodes;
+        private final PersistentHashMap<K, K> parents;
+        private final long version;
+
+        Snapshot(Node<K, T> root, PersistentHashMap<K, Node<K, T>> nodes, PersistentHashMap<K, K> parents, long version) {
+            this.root = root;
+            this.nodes = nodes;
+            this.parents = parents;
+            this.version = version;
+        }
+
+        public Node<K, T> getRoot() {
+            return (root);
+        }
+
+        public Node<K, T> getNode(K key) {
+            return (nodes.get(key));
+        }
+
+        public boolean containsKey(K key) {
+            return (nodes.containsKey(key));
+        }
+
+        K getParentKey(K key) {
+            return (parents.get(key));
+        }
+
+        public Node<K, T> getParent(K key) {
+            K parentKey = parents.get(key);
+            return ((parentKey == null) ? null : nodes.get(parentKey));
+        }
+
+        /**
+         * @return The nodes from the root down to (and including) the keyed
+         * node, or an empty list if there is no such node.
+         */
+        public List<Node<K, T>> getPathTo(K key) {
+            ArrayList<Node<K, T>> path = new ArrayList<>();
+            for (K currentKey = key; currentKey != null && nodes.containsKey(currentKey); currentKey = parents.get(currentKey)) {
+                path.add(nodes.get(currentKey));
+            }
+            Collections.reverse(path);
+            return (path);
+        }
+
+        /**
+         * @return The node reached by following the path of keys from the root
+         * (the first key being the root's), or null if there is no such path.
+         */
+        public Node<K, T> findByPath(List<K> keyPath) {
+            if (keyPath == null || keyPath.isEmpty() || !root.key.equals(keyPath.get(0))) {
+                return (null);
+            }
+            Node<K, T> current = root;
+            for (int counter = 1; counter < keyPath.size() && current != null; counter++) {
+                current = current.getChild(keyPath.get(counter));
+            }
+            return (current);
+        }
+
+        public int size() {
+            return (nodes.size());
+        }
+
+        /**
+         * @return The version, which is incremented by each update.
+         */
+        public long getVersion() {
+            return (version);
+        }
+
+        /**
+         * @return A (mutable) Tree copy of this Snapshot.
+         */
+        public Tree<T> toTree() {
+            TreeNode<T> rootTreeNode = new TreeNode<>(root.data);
+            ArrayDeque<Node<K, T>> pendingNodes = new ArrayDeque<>();
+            ArrayDeque<TreeNode<T>> pendingTreeNodes = new ArrayDeque<>();
+            pendingNodes.push(root);
+            pendingTreeNodes.push(rootTreeNode);
+            while (!pendingNodes.isEmpty()) {
+                Node<K, T> currentNode = pendingNodes.pop();
+                TreeNode<T> currentTreeNode = pendingTreeNodes.pop();
+                for (Node<K, T> child : currentNode.children.values()) {
+                    pendingNodes.push(child);
+                    pendingTreeNodes.push(currentTreeNode.addChild(new TreeNode<>(child.data)));
+                }
+            }
+            return (new Tree<>(rootTreeNode));
+        }
+
+        @Override
+        public String toString() {
+            return ("Snapshot{size=" + nodes.size() + ", version=" + version + "}");
+        }
+    }
+}
@@ -22,9 +22,8 @@
 package net.fhirfactory.pegacorn.common.model;
 
 import java.util.ArrayList;
-import java.util.Objects;
 
-import org.json.JSONObject;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,36 +37,27 @@ import org.slf4j.LoggerFactory;
  * "dig amongst the weeds"!!!
  *
  */
-public class FDN {
+public class FDN implements Comparable<FDN> {
 
     private static final Logger LOG = LoggerFactory.getLogger(FDN.class);
-    private ArrayList<RDN> rdnSet;
+    private ImmutableFDN fdnPath;
     private String FDNType;
     private FDNToken token;
     private String fdnToString;
     private String unqualifiedToken;
 
-    private static final String RDN_TO_STRING_ENTRY_SEPERATOR = ".";
-    private static final String FDN_TO_STRING_PREFIX = "{FDN:";
-    private static final String FDN_TO_STRING_SUFFIX = "}";
-
-    private static final String FDN_TOKEN_ID = "FDNToken";
-
     /**
      * Default Constructor
      */
     public FDN() {
         LOG.trace(".FDN(): Default constructor invoked.");
-        this.rdnSet = new ArrayList<RDN>();
-        LOG.trace(".FDN(): this.rdnElementSet intialised.");
-        this.token = new FDNToken();
-        this.fdnToString = new String();
-        this.unqualifiedToken = new String();
+        this.fdnPath = ImmutableFDN.EMPTY;
+        LOG.trace(".FDN(): this.fdnPath intialised.");
     }
 
     /**
-     * The Copy Constructor: It creates a duplicate of the original FDN
-     * (instantiating new containing elements).
+     * The Copy Constructor: It creates a duplicate of the original FDN. As the
+     * underlying ImmutableFDN cannot change, it is shared with the original.
      *
      * @param originalFDN The original FDN
      */
@@ -76,23 +66,13 @@ public class FDN {
         if (originalFDN == null) {
             throw (new IllegalArgumentException("Empty FDN passed to copy Constructor"));
         }
-        // Essentially, we iterate through the HashMap from the OriginalFDN, 
-        // create new RDN's from the content, and append these RDN's (in the 
-        // appropriate order) into the new FDN.
-        this.rdnSet = new ArrayList<RDN>();
-        ArrayList<RDN> otherRDNSet = originalFDN.getRDNSet();
-        if (otherRDNSet.size() != originalFDN.getRDNCount()) {
-            throw (new IllegalArgumentException("Malformed FDN passed to copy Constructor"));
-        }
-        for (int counter = 0; counter < this.getRDNCount(); counter++) {
-            this.rdnSet.add(counter, otherRDNSet.get(counter));
-        }
-        // We need to pre-build the toString() and getToken() content so we don't re-do it 
-        // every time we do some comparison etc.
-        generateToString();
-        generateToken();
-        generateUnqualifiedToken();
-        LOG.trace(".FDN( FDN originalFDN ): generatedFDN = {}", this.fdnToString);
+        this.fdnPath = originalFDN.fdnPath;
+        // The derived values are the same as the original's, so share any that
+        // have already been built.
+        this.token = (originalFDN.token == null) ? null : new FDNToken(originalFDN.token);
+        this.fdnToString = originalFDN.fdnToString;
+        this.unqualifiedToken = originalFDN.unqualifiedToken;
+        LOG.trace(".FDN( FDN originalFDN ): Exit");
     }
 
     /**
@@ -105,43 +85,29 @@ public class FDN {
         if (token == null) {
             throw (new IllegalArgumentException("Empty parameter passed to Constructor"));
         }
-        String tokenContent = token.getContent();
-        // The FDNToken is really just a JSONObject.toString() - so we should be able to re-create it from 
-        // that String
-        JSONObject tokenAsJSON;
+        // The FDNToken is a (binary) encoding of the RDN Qualifier/Value pairs, so we
+        // simply decode the RDNs (in order) straight out of it.
         try {
-            tokenAsJSON = new JSONObject(tokenContent);
-        } catch (Exception jsonTokenEx) {
-            throw (new IllegalArgumentException("Badly formed FDNToken passed to Constructor -->" + jsonTokenEx.getMessage()));
+            this.fdnPath = ImmutableFDN.of(token);
+        } catch (Exception tokenEx) {
+            throw (new IllegalArgumentException("Badly formed FDNToken passed to Constructor -->" + tokenEx.getMessage()));
         }
-        LOG.trace(".FDN(FDNToken token): We have a valid JSONObject for the FDNToken!, now extract content & process");
-        try {
-            JSONObject tokenAsRDNSet = tokenAsJSON.getJSONObject(FDN_TOKEN_ID);
-            int setSize = tokenAsRDNSet.length();
-            LOG.trace(".FDN(FDNToken token): The number of RDN entries in the Token is --> {}", setSize);
-            this.rdnSet = new ArrayList<RDN>();
-            // We are going to take the content from the FDNToken, convert it to a JSONObject, and then
-            // iterate through the elements (the JSONObject will have values <counter, string> in it.
-            // We then take the string from the JSONObject, which is, in fact, an RDNToken and then
-            // instantiate an RDN(RDNToken). The resulting RDN is then added to the rdnSet map.
-            for (int counter = 0; counter < setSize; counter++) {
-                LOG.trace(".FDN( FDNToken token ): Iterating through the extracted Token JSONObject, attempting to extract RDN[{}]", counter);
-                String currentRDNTokenContent = tokenAsRDNSet.getString(Integer.toString(counter));
-                LOG.trace(".FDN( FDNToken token ): Iterating through the extracted Token JSONObject, extracted RDN Token Content --> {}", currentRDNTokenContent);
-                RDNToken currentRDNToken = new RDNToken(currentRDNTokenContent);
-                RDN currentRDN = new RDN(currentRDNToken);
-                LOG.trace(".FDN( FDNToken token ): Iterating through the extracted RDNs, current RDN --> {}", currentRDN);
-                this.rdnSet.add(counter, currentRDN);
-            }
-        } catch (Exception jsonEx) {
-            throw (new IllegalArgumentException(jsonEx.getMessage()));
+        LOG.trace(".FDN( FDNToken token ): The number of RDN entries in the Token is --> {}", this.fdnPath.getRDNCount());
+    }
 
+    /**
+     * This constructor wraps an ImmutableFDN, allowing it to be used by callers
+     * that need the (mutable) FDN API. Subsequent appends do not affect the
+     * ImmutableFDN.
+     *
+     * @param immutableFDN The ImmutableFDN that this FDN is (initially) built on.
+     */
+    public FDN(ImmutableFDN immutableFDN) {
+        LOG.trace(".FDN( ImmutableFDN immutableFDN ): Constructor invoked, immutableFDN --> {}", immutableFDN);
+        if (immutableFDN == null) {
+            throw (new IllegalArgumentException("Empty ImmutableFDN passed to Constructor"));
         }
-        // We need to pre-build the toString() and getToken() content so we don't re-do it 
-        // every time we do some comparison etc.
-        generateToString();
-        generateToken();
-        generateUnqualifiedToken();
+        this.fdnPath = immutableFDN;
     }
 
     /**
@@ -156,35 +122,62 @@ public class FDN {
         if (toBeAddedRDN == null) {
             throw (new IllegalArgumentException("Empty RDN passed to appendRDN"));
         }
-        RDN newRDN = new RDN(toBeAddedRDN);
-        int existingSetSize = this.getRDNCount();
-        this.rdnSet.add(existingSetSize, newRDN);
-        // We need to pre-build the toString() and getToken() content so we don't re-do it 
-        // every time we do some comparison etc.
-        generateToString();
-        generateToken();
-        generateUnqualifiedToken();
+        this.fdnPath = this.fdnPath.append(toBeAddedRDN);
+        invalidateDerivedValues();
         LOG.trace(".appendRDN(): Exit");
     }
 
-    @Override
-    public String toString() {
-        LOG.trace(".toString(): Entry/Exit");
-        return (this.fdnToString);
+    /**
+     * This method appends a set of RDNs (in iteration order) to an existing FDN,
+     * with the last RDN becoming the "Least Significant" member. The derived
+     * values (toString(), getToken() etc.) are only rebuilt once, on next use.
+     *
+     * @param toBeAddedRDNs The RDNs that should be appended.
+     */
+    public void appendRDNs(Iterable<RDN> toBeAddedRDNs) {
+        LOG.trace(".appendRDNs(): Entry, toBeAddedRDNs --> {}", toBeAddedRDNs);
+        if (toBeAddedRDNs == null) {
+            throw (new IllegalArgumentException("Empty RDN set passed to appendRDNs"));
+        }
+        ImmutableFDN newPath = this.fdnPath;
+        for (RDN toBeAddedRDN : toBeAddedRDNs) {
+            newPath = newPath.append(toBeAddedRDN);
+        }
+        this.fdnPath = newPath;
+        invalidateDerivedValues();
+        LOG.trace(".appendRDNs(): Exit");
+    }
+
+    /**
+     * The toString(), getToken() and getUnqualifiedToken() values are built on
+     * first use (and cached) - this discards them after a change.
+     */
+    private void invalidateDerivedValues() {
+        this.token = null;
+        this.fdnToString = null;
+        this.unqualifiedToken = null;
     }
 
     /**
-     * This method pre-builds the FDN::toString() value. This value
-     * (this.fdnToString) cannot be used as input into an FDN constructor and is
-     * made available only for the purposes of documentation and/or reporting.
+     * Used by the FDNInternPool to swap in an equal (canonical) ImmutableFDN. As
+     * the content does not change, neither do the derived values.
      */
-    private void generateToString() {
-        LOG.trace(".generateToString(): Entry");
-        String toString = FDN_TO_STRING_PREFIX;
-        toString = toString + rdnSet.toString();
-        toString = toString + FDN_TO_STRING_SUFFIX;
-        this.fdnToString = toString;
-        LOG.trace(".generateToString(): Exit");
+    void replaceImmutableFDN(ImmutableFDN equalFDN) {
+        this.fdnPath = equalFDN;
+    }
+
+    /**
+     * The FDN::toString() value cannot be used as input into an FDN constructor
+     * and is made available only for the purposes of documentation and/or
+     * reporting.
+     */
+    @Override
+    public String toString() {
+        LOG.trace(".toString(): Entry/Exit");
+        if (this.fdnToString == null) {
+            this.fdnToString = this.fdnPath.isEmpty() ? new String() : this.fdnPath.toString();
+        }
+        return (this.fdnToString);
     }
 
     /**
@@ -203,11 +196,7 @@ public class FDN {
         if (this.getRDNCount() <= 1) {
             return null;
         }
-        FDN newParentFDN = new FDN();
-        for (int counter = 0; counter < (this.getRDNCount() - 2); counter++) {
-            RDN currentRDN = this.rdnSet.get(counter);
-            newParentFDN.appendRDN(currentRDN);
-        }
+        FDN newParentFDN = new FDN(this.fdnPath.getParentFDN());
         LOG.trace(".getParentFDN(): Exit");
         return (newParentFDN);
     }
@@ -218,7 +207,7 @@ public class FDN {
             LOG.trace(".getUnqualifiedRDN(): Exit, no RDNs");
             return (null);
         }
-        RDN leastSignificantRDN = this.rdnSet.get((this.getRDNCount() - 1));
+        RDN leastSignificantRDN = this.fdnPath.getUnqualifiedRDN();
         LOG.trace(".getUnqualifiedRDN(): Exit, least signifcant RDN --> {}", leastSignificantRDN);
         return (leastSignificantRDN);
     }
@@ -234,67 +223,51 @@ public class FDN {
         }
     }
 
+    /**
+     * Note that the returned list (a new one on each call) holds copies of the
+     * RDNs within the FDN: changes to the list, or to its RDNs, are not
+     * reflected in the FDN (use appendRDN() instead).
+     *
+     * @return The (ordered) RDNs of the FDN, "Most Significant" first.
+     */
     public ArrayList<RDN> getRDNSet() {
         LOG.trace(".getRDNSet(): Entry/Exit");
-        return (this.rdnSet);
+        return (new ArrayList<RDN>(this.fdnPath.getRDNList()));
     }
 
     public int getRDNCount() {
         LOG.trace(".getRDNCount(): Entry/Exit");
-        return (this.rdnSet.size());
+        return (this.fdnPath.getRDNCount());
     }
 
     public FDNToken getToken() {
         LOG.trace(".getToken(): Entry/Exit");
+        if (this.token == null) {
+            // The ImmutableFDN's token is shared, so hand out a (cheap) copy
+            this.token = new FDNToken(this.fdnPath.getToken());
+        }
         return (this.token);
     }
 
-    private void generateToken() {
-        LOG.trace(".generateToken(): Entry");
-        JSONObject newToken = new JSONObject();
-        for (int counter = 0; counter < this.getRDNCount(); counter++) {
-            RDN currentRDN = this.rdnSet.get(counter);
-            newToken.put(Integer.toString(counter), currentRDN.getToken().getContent());
-        }
-        JSONObject newID = new JSONObject();
-        newID.put(FDN_TOKEN_ID, newToken);
-        String tokenString = newID.toString();
-        this.token = new FDNToken(tokenString);
-        LOG.trace(".generateToken(): Exit");
+    /**
+     * @return The ImmutableFDN that currently backs this FDN.
+     */
+    public ImmutableFDN toImmutableFDN() {
+        return (this.fdnPath);
     }
 
-    private void generateUnqualifiedToken() {
-        LOG.trace(".generateUnqualifiedToken(): Entry");
-        String newUnqualifiedToken = new String();
-        for (int counter = 0; counter < this.getRDNCount(); counter++) {
-            RDN currentRDN = this.rdnSet.get(counter);
-            String value = currentRDN.getValue().replace(".", "_");
-            newUnqualifiedToken = newUnqualifiedToken + value;
-            if(counter < (this.getRDNCount()-1)){
-                newUnqualifiedToken = newUnqualifiedToken + ".";
-            }
-        }
-        this.unqualifiedToken = newUnqualifiedToken;
-        LOG.trace(".generateUnqualifiedToken(): Exit");
-    }
-    
     public String getID() {
         LOG.trace(".getID(): Entry");
-        String id = new String();
-        int depthCount = this.getRDNCount();
-        for (int counter = 0; counter < depthCount; counter++) {
-            RDN currentRDN = this.rdnSet.get(counter);
-            id = id + currentRDN.getQualifier() + "=" + currentRDN.getValue();
-            if(counter < (depthCount - 1)) {
-            	id = id + ".";
-            }
-        }
-        LOG.trace(".generateUnqualifiedToken(): Exit, Id --> {}", id);
+        String id = this.fdnPath.getID();
+        LOG.trace(".getID(): Exit, Id --> {}", id);
         return(id);
     }
 
     public String getUnqualifiedToken() {
         LOG.trace(".getUnqualifiedToken(): Entry/Exit");
+        if (this.unqualifiedToken == null) {
+            this.unqualifiedToken = this.fdnPath.getUnqualifiedToken();
+        }
         return unqualifiedToken;
     }
 
@@ -314,26 +287,24 @@ public class FDN {
             LOG.trace(".appendFDN(): Exit, nothing to add, additionFDN is null");
             return;
         }
-        int additionalFDNSize = additionalFDN.getRDNCount();
-        ArrayList<RDN> additionalRDNSet = additionalFDN.getRDNSet();
-        for (int counter = 0; counter < additionalFDNSize; counter++) {
-            this.appendRDN(additionalRDNSet.get(counter));
-        }
-        generateToString();
-        generateToken();
-        generateUnqualifiedToken();
+        this.fdnPath = this.fdnPath.append(additionalFDN.fdnPath);
+        invalidateDerivedValues();
         LOG.trace(".appendFDN: Exit");
     }
     
     public RDN extractRDNViaQualifier(String qualifier){
         LOG.trace(".extractRDNViaQualifier(): Entry, qualifier --> {}",qualifier );
-        for (RDN currentRDN: this.rdnSet) {
-            boolean matches = currentRDN.getQualifier().contentEquals(qualifier);
-            if(matches){
-                return(currentRDN);
-            }
-        }
-        return(null);
+        return(this.fdnPath.extractRDNViaQualifier(qualifier));
+    }
+
+    /**
+     * @return The first RDN for each of the Qualifiers (in the same order), with
+     * null for any Qualifier not present - via a single lookup of the qualifier
+     * index per Qualifier.
+     */
+    public RDN[] extractRDNsViaQualifiers(String... qualifiers){
+        LOG.trace(".extractRDNsViaQualifiers(): Entry");
+        return(this.fdnPath.extractRDNsViaQualifiers(qualifiers));
     }
 
     @Override
@@ -341,14 +312,30 @@ public class FDN {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         FDN fdn = (FDN) o;
-        String thisFDNToken = this.getToken().toFullString();
-        String otherFDNToken = fdn.getToken().toFullString();
-        boolean equalityTest = thisFDNToken.contentEquals(otherFDNToken);
+        boolean equalityTest = this.fdnPath.equals(fdn.fdnPath);
         return (equalityTest);
     }
 
+    /**
+     * @return The (precomputed) 64 bit hash of the FDN, which agrees with equals()
+     * and with getToken().getHash64().
+     */
+    @JsonIgnore
+    public long getHash64() {
+        return (this.fdnPath.getHash64());
+    }
+
     @Override
     public int hashCode() {
-        return Objects.hash(rdnSet);
+        return (this.fdnPath.hashCode());
+    }
+
+    /**
+     * FDNs are ordered RDN by RDN (Qualifier, then Value), with an FDN sorting
+     * before its descendants - see FDNTokenCodec.compareFDNTokens().
+     */
+    @Override
+    public int compareTo(FDN other) {
+        return (this.fdnPath.compareTo(other.fdnPath));
     }
 }
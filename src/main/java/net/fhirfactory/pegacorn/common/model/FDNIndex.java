@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A sorted (and concurrent) map keyed by FDN, in FDN order (see
+ * FDN::compareTo()). As an FDN sorts directly before its descendants, every
+ * subtree is a contiguous range of the index, so subtree(prefix) is a (live)
+ * range view found by an O(log n) seek rather than a scan.
+ *
+ * As per FDNTrie, keys are held (and returned) as ImmutableFDNs.
+ */
+public class FDNIndex<V> {
+
+    private final ConcurrentSkipListMap<ImmutableFDN, V> entries = new ConcurrentSkipListMap<>();
+
+    public V put(FDN fdn, V value) {
+        return (put(checkKey(fdn).toImmutableFDN(), value));
+    }
+
+    public V put(ImmutableFDN fdn, V value) {
+        if (value == null) {
+            throw (new IllegalArgumentException("null value passed to put()"));
+        }
+        return (entries.put(checkKey(fdn), value));
+    }
+
+    public V get(FDN fdn) {
+        return (get(checkKey(fdn).toImmutableFDN()));
+    }
+
+    public V get(ImmutableFDN fdn) {
+        return (entries.get(checkKey(fdn)));
+    }
+
+    public boolean containsKey(FDN fdn) {
+        return (containsKey(checkKey(fdn).toImmutableFDN()));
+    }
+
+    public boolean containsKey(ImmutableFDN fdn) {
+        return (entries.containsKey(checkKey(fdn)));
+    }
+
+    public V remove(FDN fdn) {
+        return (remove(checkKey(fdn).toImmutableFDN()));
+    }
+
+    public V remove(ImmutableFDN fdn) {
+        return (entries.remove(checkKey(fdn)));
+    }
+
+    /**
+     * @return A live view of the entries for the prefix and all its descendants.
+     */
+    public NavigableMap<ImmutableFDN, V> subtree(FDN prefix) {
+        return (subtree(checkKey(prefix).toImmutableFDN()));
+    }
+
+    public NavigableMap<ImmutableFDN, V> subtree(ImmutableFDN prefix) {
+        checkKey(prefix);
+        if (prefix.isEmpty()) {
+            return (entries);
+        }
+        return (entries.subMap(prefix, true, subtreeUpperBound(prefix), false));
+    }
+
+    /**
+     * @return A live view of the entries from fromFDN (inclusive) to toFDN (exclusive).
+     */
+    public NavigableMap<ImmutableFDN, V> range(FDN fromFDN, FDN toFDN) {
+        return (range(checkKey(fromFDN).toImmutableFDN(), checkKey(toFDN).toImmutableFDN()));
+    }
+
+    public NavigableMap<ImmutableFDN, V> range(ImmutableFDN fromFDN, ImmutableFDN toFDN) {
+        return (entries.subMap(checkKey(fromFDN), true, checkKey(toFDN), false));
+    }
+
+    public Map.Entry<ImmutableFDN, V> firstEntry() {
+        return (entries.firstEntry());
+    }
+
+    public Map.Entry<ImmutableFDN, V> lastEntry() {
+        return (entries.lastEntry());
+    }
+
+    public Map.Entry<ImmutableFDN, V> ceilingEntry(FDN fdn) {
+        return (entries.ceilingEntry(checkKey(fdn).toImmutableFDN()));
+    }
+
+    public Map.Entry<ImmutableFDN, V> floorEntry(FDN fdn) {
+        return (entries.floorEntry(checkKey(fdn).toImmutableFDN()));
+    }
+
+    /**
+     * @return A live, read-only view of the whole index.
+     */
+    public NavigableMap<ImmutableFDN, V> asMap() {
+        return (Collections.unmodifiableNavigableMap(entries));
+    }
+
+    public int size() {
+        return (entries.size());
+    }
+
+    public boolean isEmpty() {
+        return (entries.isEmpty());
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * The first FDN after all the descendants of the prefix: the prefix with its
+     * "Least Significant" Value extended by a NUL (the lowest possible suffix).
+     */
+    private static ImmutableFDN subtreeUpperBound(ImmutableFDN prefix) {
+        RDN lastRDN = prefix.sharedUnqualifiedRDN();
+        return (prefix.getParentFDN().appendOwned(new RDN(lastRDN.getQualifier(), lastRDN.getValue() + '\0')));
+    }
+
+    private static <K> K checkKey(K key) {
+        if (key == null) {
+            throw (new IllegalArgumentException("null FDN passed to FDNIndex"));
+        }
+        return (key);
+    }
+
+    @Override
+    public String toString() {
+        return ("FDNIndex{size=" + entries.size() + "}");
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+/**
+ * A pool of canonical FDNToken and ImmutableFDN instances. Routing tables and
+ * caches that intern their keys hold a single instance per distinct FDN, and
+ * equality checks between interned instances are (usually) a reference check.
+ *
+ * Instances are only weakly held, so the pool does not grow beyond the set of
+ * FDNs that are actually in use. Interned FDNTokens are frozen (setContent()
+ * is rejected), as they are shared.
+ */
+public class FDNInternPool {
+
+    private static final FDNInternPool GLOBAL_POOL = new FDNInternPool();
+
+    private final WeakInterner<FDNToken> tokenPool = new WeakInterner<>();
+    private final WeakInterner<ImmutableFDN> fdnPool = new WeakInterner<>();
+
+    /**
+     * @return The (process wide) shared pool.
+     */
+    public static FDNInternPool getGlobalPool() {
+        return (GLOBAL_POOL);
+    }
+
+    /**
+     * @return The canonical (frozen) FDNToken equal to the given token.
+     */
+    public FDNToken intern(FDNToken token) {
+        if (token == null) {
+            return (null);
+        }
+        return (tokenPool.intern(token, candidate -> new FDNToken(candidate).freeze()));
+    }
+
+    /**
+     * @return The canonical ImmutableFDN equal to the given FDN.
+     */
+    public ImmutableFDN intern(ImmutableFDN fdn) {
+        if (fdn == null) {
+            return (null);
+        }
+        return (fdnPool.intern(fdn, candidate -> candidate));
+    }
+
+    /**
+     * Re-points the (mutable) FDN at the canonical ImmutableFDN for its current
+     * content, so that it shares storage with (and compares by reference against)
+     * every other FDN interned with the same content. The FDN content is
+     * unchanged and later appends behave as normal.
+     *
+     * @return The (same) FDN that was passed in.
+     */
+    public FDN intern(FDN fdn) {
+        if (fdn == null) {
+            return (null);
+        }
+        fdn.replaceImmutableFDN(intern(fdn.toImmutableFDN()));
+        return (fdn);
+    }
+
+    public long getHitCount() {
+        return (tokenPool.getHitCount() + fdnPool.getHitCount());
+    }
+
+    public long getMissCount() {
+        return (tokenPool.getMissCount() + fdnPool.getMissCount());
+    }
+
+    /**
+     * @return The number of FDNTokens currently in the pool.
+     */
+    public int getTokenCount() {
+        return (tokenPool.size());
+    }
+
+    /**
+     * @return The number of ImmutableFDNs (and, so, interned FDNs) currently in the pool.
+     */
+    public int getFDNCount() {
+        return (fdnPool.size());
+    }
+
+    public void clear() {
+        tokenPool.clear();
+        fdnPool.clear();
+    }
+
+    @Override
+    public String toString() {
+        return ("FDNInternPool{tokens=" + getTokenCount() + ", fdns=" + getFDNCount() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "}");
+    }
+}
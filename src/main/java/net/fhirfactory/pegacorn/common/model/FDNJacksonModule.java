@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+/**
+ * A Jackson Module with hand-written (streaming) serializers and deserializers
+ * for FDN, ImmutableFDN, RDN, FDNToken and FDNTokenSet.
+ *
+ * Two output forms are supported (see FDNJsonFormat):
+ * <pre>
+ *   COMPACT_ARRAY: FDN/FDNToken --> [["Site","SiteA"],["Platform","P1"]], RDN --> ["Site","SiteA"]
+ *   TOKEN_STRING:  FDN/FDNToken --> "AQIE...", RDN --> "AQRT..." (i.e. the token content)
+ * </pre>
+ * An FDN that has an FDNType is wrapped as {"fdnType":"...","fdn":&lt;either form&gt;}
+ * so that the type survives a round trip.
+ *
+ * An FDNTokenSet is an array of FDNTokens in the chosen form. On input, both
+ * forms are always accepted, along with legacy (JSON) token content and the
+ * original bean form of an FDNToken ({"content":"..."}) and FDNTokenSet
+ * ({"elements":[...]}).
+ *
+ * <pre>
+ *   ObjectMapper mapper = new ObjectMapper().registerModule(new FDNJacksonModule());
+ * </pre>
+ */
+public class FDNJacksonModule extends SimpleModule {
+    private static final long serialVersionUID = 1L;
+
+    public enum FDNJsonFormat {
+        COMPACT_ARRAY,
+        TOKEN_STRING
+    }
+
+    private static final String TOKEN_CONTENT_FIELD = "content";
+    private static final String TOKEN_SET_ELEMENTS_FIELD = "elements";
+    private static final String FDN_TYPE_FIELD = "fdnType";
+    private static final String FDN_FIELD = "fdn";
+
+    public FDNJacksonModule() {
+        this(FDNJsonFormat.COMPACT_ARRAY);
+    }
+
+    public FDNJacksonModule(FDNJsonFormat format) {
+        super("FDNJacksonModule", Version.unknownVersion());
+        addSerializer(FDN.class, new FDNSerializer(format));
+        addSerializer(ImmutableFDN.class, new ImmutableFDNSerializer(format));
+        addSerializer(RDN.class, new RDNSerializer(format));
+        addSerializer(FDNToken.class, new FDNTokenSerializer(format));
+        addSerializer(FDNTokenSet.class, new FDNTokenSetSerializer(format));
+        addDeserializer(FDN.class, new FDNDeserializer());
+        addDeserializer(ImmutableFDN.class, new ImmutableFDNDeserializer());
+        addDeserializer(RDN.class, new RDNDeserializer());
+        addDeserializer(FDNToken.class, new FDNTokenDeserializer());
+        addDeserializer(FDNTokenSet.class, new FDNTokenSetDeserializer());
+    }
+
+    //
+    // Shared write/read helpers
+    //
+
+    private static void writeImmutableFDN(ImmutableFDN fdn, FDNJsonFormat format, JsonGenerator generator) throws IOException {
+        if (format == FDNJsonFormat.TOKEN_STRING) {
+            generator.writeString(fdn.getToken().getContent());
+            return;
+        }
+        generator.writeStartArray();
+        for (RDN currentRDN : fdn.sharedRDNList()) {
+            writeRDNPair(currentRDN.getQualifier(), currentRDN.getValue(), generator);
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeToken(FDNToken token, FDNJsonFormat format, JsonGenerator generator) throws IOException {
+        if (format == FDNJsonFormat.TOKEN_STRING) {
+            generator.writeString(token.getContent());
+            return;
+        }
+        generator.writeStartArray();
+        FDNTokenReader reader = new FDNTokenReader(token);
+        while (reader.next()) {
+            writeRDNPair(reader.getQualifier(), reader.getValue(), generator);
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeRDNPair(String qualifier, String value, JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        generator.writeString(qualifier);
+        generator.writeString(value);
+        generator.writeEndArray();
+    }
+
+    /**
+     * Reads an FDN (in any of the accepted forms) as an encoded FDNToken.
+     */
+    private static byte[] readEncodedToken(JsonParser parser, DeserializationContext context) throws IOException {
+        JsonToken currentToken = parser.currentToken();
+        if (currentToken == JsonToken.VALUE_STRING) {
+            return (readTokenContent(parser, context));
+        }
+        if (currentToken == JsonToken.START_OBJECT) {
+            byte[] encoded = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.currentName();
+                parser.nextToken();
+                if (TOKEN_CONTENT_FIELD.equals(fieldName) && parser.currentToken() == JsonToken.VALUE_STRING) {
+                    encoded = readTokenContent(parser, context);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (encoded == null) {
+                return ((byte[]) context.handleUnexpectedToken(FDNToken.class, parser));
+            }
+            return (encoded);
+        }
+        if (currentToken != JsonToken.START_ARRAY) {
+            return ((byte[]) context.handleUnexpectedToken(FDNToken.class, parser));
+        }
+        ArrayList<byte[]> rdnTokens = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            String[] pair = readRDNPair(parser, context);
+            rdnTokens.add(FDNTokenCodec.encodeRDN(pair[0], pair[1]));
+        }
+        return (FDNTokenCodec.encodeFDN(rdnTokens.toArray(new byte[0][])));
+    }
+
+    private static byte[] readTokenContent(JsonParser parser, DeserializationContext context) throws IOException {
+        try {
+            return (FDNTokenCodec.fdnContentToBytes(parser.getText()));
+        } catch (IllegalArgumentException badTokenEx) {
+            return ((byte[]) context.handleWeirdStringValue(FDNToken.class, parser.getText(), badTokenEx.getMessage()));
+        }
+    }
+
+    private static String[] readRDNPair(JsonParser parser, DeserializationContext context) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            return ((String[]) context.handleUnexpectedToken(RDN.class, parser));
+        }
+        String qualifier = parser.nextTextValue();
+        String value = parser.nextTextValue();
+        if (qualifier == null || value == null || parser.nextToken() != JsonToken.END_ARRAY) {
+            return ((String[]) context.handleUnexpectedToken(RDN.class, parser));
+        }
+        // As per new RDN(qualifier, value) - checked here so a pair that is only
+        // encoded (into an FDNToken) is rejected too
+        if (qualifier.isEmpty() || value.isEmpty()) {
+            return ((String[]) context.handleWeirdStringValue(RDN.class, qualifier.isEmpty() ? qualifier : value, "Empty qualifier or value in RDN"));
+        }
+        return (new String[]{qualifier, value});
+    }
+
+    private static ImmutableFDN readImmutableFDN(JsonParser parser, DeserializationContext context) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            return (ImmutableFDN.of(FDNToken.fromTrustedBytes(readEncodedToken(parser, context))));
+        }
+        ImmutableFDN current = ImmutableFDN.EMPTY;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            String[] pair = readRDNPair(parser, context);
+            current = current.appendOwned(new RDN(pair[0], pair[1]));
+        }
+        return (current);
+    }
+
+    //
+    // Serializers
+    //
+
+    static final class FDNSerializer extends StdSerializer<FDN> {
+        private static final long serialVersionUID = 1L;
+        private final FDNJsonFormat format;
+
+        FDNSerializer(FDNJsonFormat format) {
+            super(FDN.class);
+            this.format = format;
+        }
+
+        @Override
+        public void serialize(FDN fdn, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            if (fdn.getFDNType() == null) {
+                writeImmutableFDN(fdn.toImmutableFDN(), format, generator);
+                return;
+            }
+            generator.writeStartObject();
+            generator.writeStringField(FDN_TYPE_FIELD, fdn.getFDNType());
+            generator.writeFieldName(FDN_FIELD);
+            writeImmutableFDN(fdn.toImmutableFDN(), format, generator);
+            generator.writeEndObject();
+        }
+    }
+
+    static final class ImmutableFDNSerializer extends StdSerializer<ImmutableFDN> {
+        private static final long serialVersionUID = 1L;
+        private final FDNJsonFormat format;
+
+        ImmutableFDNSerializer(FDNJsonFormat format) {
+            super(ImmutableFDN.class);
+            this.format = format;
+        }
+
+        @Override
+        public void serialize(ImmutableFDN fdn, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            writeImmutableFDN(fdn, format, generator);
+        }
+    }
+
+    static final class RDNSerializer extends StdSerializer<RDN> {
+        private static final long serialVersionUID = 1L;
+        private final FDNJsonFormat format;
+
+        RDNSerializer(FDNJsonFormat format) {
+            super(RDN.class);
+            this.format = format;
+        }
+
+        @Override
+        public void serialize(RDN rdn, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            if (format == FDNJsonFormat.TOKEN_STRING) {
+                generator.writeString(rdn.getToken().getContent());
+            } else {
+                writeRDNPair(rdn.getQualifier(), rdn.getValue(), generator);
+            }
+        }
+    }
+
+    static final class FDNTokenSerializer extends StdSerializer<FDNToken> {
+        private static final long serialVersionUID = 1L;
+        private final FDNJsonFormat format;
+
+        FDNTokenSerializer(FDNJsonFormat format) {
+            super(FDNToken.class);
+            this.format = format;
+        }
+
+        @Override
+        public void serialize(FDNToken token, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            writeToken(token, format, generator);
+        }
+    }
+
+    static final class FDNTokenSetSerializer extends StdSerializer<FDNTokenSet> {
+        private static final long serialVersionUID = 1L;
+        private final FDNJsonFormat format;
+
+        FDNTokenSetSerializer(FDNJsonFormat format) {
+            super(FDNTokenSet.class);
+            this.format = format;
+        }
+
+        @Override
+        public void serialize(FDNTokenSet tokenSet, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartArray();
+            for (FDNToken currentToken : tokenSet.getElements()) {
+                writeToken(currentToken, format, generator);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    //
+    // Deserializers
+    //
+
+    static final class FDNDeserializer extends StdDeserializer<FDN> {
+        private static final long serialVersionUID = 1L;
+        FDNDeserializer() {
+            super(FDN.class);
+        }
+
+        @Override
+        public FDN deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                return (new FDN(readImmutableFDN(parser, context)));
+            }
+            // Either {"fdnType":"...","fdn":...} or the FDNToken bean form, i.e. {"content":"..."}
+            String fdnType = null;
+            ImmutableFDN fdnPath = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.currentName();
+                parser.nextToken();
+                if (FDN_TYPE_FIELD.equals(fieldName)) {
+                    fdnType = (parser.currentToken() == JsonToken.VALUE_NULL) ? null : parser.getValueAsString();
+                } else if (FDN_FIELD.equals(fieldName)) {
+                    fdnPath = readImmutableFDN(parser, context);
+                } else if (TOKEN_CONTENT_FIELD.equals(fieldName) && parser.currentToken() == JsonToken.VALUE_STRING) {
+                    fdnPath = ImmutableFDN.of(FDNToken.fromTrustedBytes(readTokenContent(parser, context)));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (fdnPath == null) {
+                return ((FDN) context.handleUnexpectedToken(FDN.class, parser));
+            }
+            FDN fdn = new FDN(fdnPath);
+            fdn.setFDNType(fdnType);
+            return (fdn);
+        }
+    }
+
+    static final class ImmutableFDNDeserializer extends StdDeserializer<ImmutableFDN> {
+        private static final long serialVersionUID = 1L;
+        ImmutableFDNDeserializer() {
+            super(ImmutableFDN.class);
+        }
+
+        @Override
+        public ImmutableFDN deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            return (readImmutableFDN(parser, context));
+        }
+    }
+
+    static final class RDNDeserializer extends StdDeserializer<RDN> {
+        private static final long serialVersionUID = 1L;
+        RDNDeserializer() {
+            super(RDN.class);
+        }
+
+        @Override
+        public RDN deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.currentToken() == JsonToken.VALUE_STRING) {
+                try {
+                    return (new RDN(new RDNToken(parser.getText())));
+                } catch (IllegalArgumentException badTokenEx) {
+                    return ((RDN) context.handleWeirdStringValue(RDN.class, parser.getText(), badTokenEx.getMessage()));
+                }
+            }
+            String[] pair = readRDNPair(parser, context);
+            return (new RDN(pair[0], pair[1]));
+        }
+    }
+
+    static final class FDNTokenDeserializer extends StdDeserializer<FDNToken> {
+        private static final long serialVersionUID = 1L;
+        FDNTokenDeserializer() {
+            super(FDNToken.class);
+        }
+
+        @Override
+        public FDNToken deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            return (FDNToken.fromTrustedBytes(readEncodedToken(parser, context)));
+        }
+    }
+
+    static final class FDNTokenSetDeserializer extends StdDeserializer<FDNTokenSet> {
+        private static final long serialVersionUID = 1L;
+        FDNTokenSetDeserializer() {
+            super(FDNTokenSet.class);
+        }
+
+        @Override
+        public FDNTokenSet deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            FDNTokenSet tokenSet = new FDNTokenSet();
+            if (parser.currentToken() == JsonToken.START_OBJECT) {
+                // The original bean form, i.e. {"elements":[...], ...}
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.currentName();
+                    parser.nextToken();
+                    if (TOKEN_SET_ELEMENTS_FIELD.equals(fieldName)) {
+                        readTokenArray(tokenSet, parser, context);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                return (tokenSet);
+            }
+            readTokenArray(tokenSet, parser, context);
+            return (tokenSet);
+        }
+
+        private void readTokenArray(FDNTokenSet tokenSet, JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.currentToken() != JsonToken.START_ARRAY) {
+                context.handleUnexpectedToken(FDNTokenSet.class, parser);
+                return;
+            }
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                tokenSet.add(FDNToken.fromTrustedBytes(readEncodedToken(parser, context)).freeze());
+            }
+        }
+    }
+}
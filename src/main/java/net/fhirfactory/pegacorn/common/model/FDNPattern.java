@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A (subscription) pattern over FDNs, written in the same "Qualifier=Value"
+ * dotted form as FDN::getID(), e.g. "Site=*.Platform=P1.Service=**".
+ *
+ * <pre>
+ *   Q=V    matches exactly one RDN with Qualifier Q and Value V
+ *   *=V    matches exactly one RDN with Value V (any Qualifier)
+ *   Q=*    matches exactly one RDN with Qualifier Q (any Value)
+ *   *=*    matches exactly one RDN
+ *   **     matches zero or more RDNs
+ *   Q=**   shorthand for Q=*.** (an RDN with Qualifier Q, then anything below it)
+ * </pre>
+ * A '\' escapes the following character, so "\." "\=" "\*" and "\\" can be
+ * used within a Qualifier or Value. A whole Qualifier or Value of "*" is a
+ * wildcard; a '*' within a longer Qualifier or Value is a literal.
+ *
+ * Use an FDNPatternCompiler to match an FDN against many patterns at once.
+ */
+public final class FDNPattern {
+
+    private static final char SEGMENT_SEPARATOR = '.';
+    private static final char RDN_SEPARATOR = '=';
+    private static final char ESCAPE = '\\';
+    private static final String WILDCARD = "*";
+    private static final String MULTI_LEVEL_WILDCARD = "**";
+
+    private final List<Element> elements;
+    private final String pattern;
+    private volatile FDNPatternAutomaton<FDNPattern> automaton;
+
+    private FDNPattern(List<Element> elements) {
+        this.elements = Collections.unmodifiableList(elements);
+        this.pattern = buildPatternString(elements);
+    }
+
+    public static FDNPattern parse(String pattern) {
+        if (pattern == null || pattern.isEmpty()) {
+            throw (new IllegalArgumentException("Empty pattern passed to parse()"));
+        }
+        ArrayList<Element> elements = new ArrayList<>();
+        for (Part[] segment : splitSegments(pattern)) {
+            if (segment.length == 1) {
+                if (segment[0].kind != PartKind.MULTI_LEVEL_WILDCARD) {
+                    throw (new IllegalArgumentException("Pattern segment is not of the form Qualifier=Value --> " + pattern));
+                }
+                addMultiLevel(elements);
+                continue;
+            }
+            Part qualifier = segment[0];
+            Part value = segment[1];
+            if (qualifier.isEmpty() || value.isEmpty() || qualifier.kind == PartKind.MULTI_LEVEL_WILDCARD) {
+                throw (new IllegalArgumentException("Invalid pattern segment within --> " + pattern));
+            }
+            if (value.kind == PartKind.MULTI_LEVEL_WILDCARD) {
+                elements.add(new Element(qualifier.literalOrNull(), null, false));
+                addMultiLevel(elements);
+            } else {
+                elements.add(new Element(qualifier.literalOrNull(), value.literalOrNull(), false));
+            }
+        }
+        return (new FDNPattern(elements));
+    }
+
+    /**
+     * @return A pattern matching exactly the given FDN.
+     */
+    public static FDNPattern of(FDN fdn) {
+        if (fdn == null) {
+            throw (new IllegalArgumentException("null FDN passed to of()"));
+        }
+        ArrayList<Element> elements = new ArrayList<>();
+        for (RDN currentRDN : fdn.toImmutableFDN().sharedRDNList()) {
+            elements.add(new Element(currentRDN.getQualifier(), currentRDN.getValue(), false));
+        }
+        return (new FDNPattern(elements));
+    }
+
+    public boolean matches(FDN fdn) {
+        return (getAutomaton().matches(fdn));
+    }
+
+    public boolean matches(ImmutableFDN fdn) {
+        return (getAutomaton().matches(fdn));
+    }
+
+    public boolean matches(FDNToken token) {
+        return (getAutomaton().matches(token));
+    }
+
+    private FDNPatternAutomaton<FDNPattern> getAutomaton() {
+        FDNPatternAutomaton<FDNPattern> currentAutomaton = this.automaton;
+        if (currentAutomaton == null) {
+            currentAutomaton = new FDNPatternCompiler<FDNPattern>().add(this, this).compile();
+            this.automaton = currentAutomaton;
+        }
+        return (currentAutomaton);
+    }
+
+    List<Element> getElements() {
+        return (elements);
+    }
+
+    @Override
+    public String toString() {
+        return (pattern);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return (pattern.equals(((FDNPattern) o).pattern));
+    }
+
+    @Override
+    public int hashCode() {
+        return (pattern.hashCode());
+    }
+
+    //
+    // A single pattern element: one RDN (with null meaning a wildcard Qualifier
+    // or Value), or a multi-level wildcard
+    //
+
+    static final class Element {
+        final String qualifier;
+        final String value;
+        final boolean multiLevel;
+
+        Element(String qualifier, String value, boolean multiLevel) {
+            this.qualifier = qualifier;
+            this.value = value;
+            this.multiLevel = multiLevel;
+        }
+    }
+
+    private static void addMultiLevel(ArrayList<Element> elements) {
+        // "**.**" is the same as "**"
+        if (elements.isEmpty() || !elements.get(elements.size() - 1).multiLevel) {
+            elements.add(new Element(null, null, true));
+        }
+    }
+
+    //
+    // A parsed Qualifier or Value, with its kind decided (before unescaping) so
+    // that an escaped "\*" remains a literal
+    //
+
+    private enum PartKind {
+        LITERAL,
+        WILDCARD,
+        MULTI_LEVEL_WILDCARD
+    }
+
+    private static final class Part {
+        private final PartKind kind;
+        private final String text;
+
+        Part(PartKind kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+
+        boolean isEmpty() {
+            return (kind == PartKind.LITERAL && text.isEmpty());
+        }
+
+        /**
+         * @return The literal text, or null for a (single level) wildcard.
+         */
+        String literalOrNull() {
+            return ((kind == PartKind.WILDCARD) ? null : text);
+        }
+    }
+
+    /**
+     * Splits the pattern into segments of [qualifier, value] (or [segment] if
+     * there is no unescaped '=').
+     */
+    private static List<Part[]> splitSegments(String pattern) {
+        ArrayList<Part[]> segments = new ArrayList<>();
+        ArrayList<Part> parts = new ArrayList<>(2);
+        StringBuilder partBuilder = new StringBuilder();
+        boolean partEscaped = false;
+        int length = pattern.length();
+        for (int position = 0; position <= length; position++) {
+            char currentChar = (position < length) ? pattern.charAt(position) : SEGMENT_SEPARATOR;
+            if (currentChar == ESCAPE) {
+                if (++position == length) {
+                    throw (new IllegalArgumentException("Dangling escape at end of pattern --> " + pattern));
+                }
+                partBuilder.append(pattern.charAt(position));
+                partEscaped = true;
+            } else if (currentChar == RDN_SEPARATOR && parts.isEmpty()) {
+                parts.add(toPart(partBuilder, partEscaped));
+                partBuilder.setLength(0);
+                partEscaped = false;
+            } else if (currentChar == SEGMENT_SEPARATOR) {
+                parts.add(toPart(partBuilder, partEscaped));
+                segments.add(parts.toArray(new Part[0]));
+                parts.clear();
+                partBuilder.setLength(0);
+                partEscaped = false;
+            } else {
+                partBuilder.append(currentChar);
+            }
+        }
+        return (segments);
+    }
+
+    private static Part toPart(StringBuilder partBuilder, boolean partEscaped) {
+        String part = partBuilder.toString();
+        if (!partEscaped) {
+            if (WILDCARD.equals(part)) {
+                return (new Part(PartKind.WILDCARD, part));
+            }
+            if (MULTI_LEVEL_WILDCARD.equals(part)) {
+                return (new Part(PartKind.MULTI_LEVEL_WILDCARD, part));
+            }
+        }
+        return (new Part(PartKind.LITERAL, part));
+    }
+
+    private static String buildPatternString(List<Element> elements) {
+        StringBuilder patternBuilder = new StringBuilder();
+        for (Element currentElement : elements) {
+            if (patternBuilder.length() > 0) {
+                patternBuilder.append(SEGMENT_SEPARATOR);
+            }
+            if (currentElement.multiLevel) {
+                patternBuilder.append(MULTI_LEVEL_WILDCARD);
+            } else {
+                appendPart(patternBuilder, currentElement.qualifier);
+                patternBuilder.append(RDN_SEPARATOR);
+                appendPart(patternBuilder, currentElement.value);
+            }
+        }
+        return (patternBuilder.toString());
+    }
+
+    private static void appendPart(StringBuilder patternBuilder, String part) {
+        if (part == null) {
+            patternBuilder.append(WILDCARD);
+            return;
+        }
+        for (int position = 0; position < part.length(); position++) {
+            char currentChar = part.charAt(position);
+            if (currentChar == SEGMENT_SEPARATOR || currentChar == RDN_SEPARATOR || currentChar == ESCAPE || currentChar == '*') {
+                patternBuilder.append(ESCAPE);
+            }
+            patternBuilder.append(currentChar);
+        }
+    }
+}
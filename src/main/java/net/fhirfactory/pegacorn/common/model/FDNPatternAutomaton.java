@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compiled (see FDNPatternCompiler) matcher for a set of FDNPatterns.
+ *
+ * Matching simulates the (NFA) automaton one RDN at a time: for each live
+ * state the RDN is looked up (by hash) within the literal, qualifier-only and
+ * value-only transitions, and any "*=*" or "**" transitions are followed. An
+ * automaton is immutable once compiled and may be shared between threads.
+ */
+public final class FDNPatternAutomaton<T> {
+
+    private final State<T> root;
+    private final int stateCount;
+
+    FDNPatternAutomaton(State<T> root, int stateCount) {
+        this.root = root;
+        this.stateCount = stateCount;
+    }
+
+    /**
+     * @return The (insertion ordered) targets of all the patterns matching the FDN.
+     */
+    public Set<T> match(FDN fdn) {
+        if (fdn == null) {
+            throw (new IllegalArgumentException("null FDN passed to match()"));
+        }
+        return (match(fdn.toImmutableFDN()));
+    }
+
+    public Set<T> match(ImmutableFDN fdn) {
+        if (fdn == null) {
+            throw (new IllegalArgumentException("null FDN passed to match()"));
+        }
+        List<State<T>> active = run(fdn);
+        return ((active == null) ? Collections.emptySet() : collectTargets(active));
+    }
+
+    /**
+     * Matches straight from the token content (no RDNs are built).
+     */
+    public Set<T> match(FDNToken token) {
+        if (token == null) {
+            throw (new IllegalArgumentException("null FDNToken passed to match()"));
+        }
+        List<State<T>> active = run(token);
+        return ((active == null) ? Collections.emptySet() : collectTargets(active));
+    }
+
+    public boolean matches(FDN fdn) {
+        if (fdn == null) {
+            throw (new IllegalArgumentException("null FDN passed to matches()"));
+        }
+        return (matches(fdn.toImmutableFDN()));
+    }
+
+    public boolean matches(ImmutableFDN fdn) {
+        if (fdn == null) {
+            throw (new IllegalArgumentException("null FDN passed to matches()"));
+        }
+        return (isAccepting(run(fdn)));
+    }
+
+    public boolean matches(FDNToken token) {
+        if (token == null) {
+            throw (new IllegalArgumentException("null FDNToken passed to matches()"));
+        }
+        return (isAccepting(run(token)));
+    }
+
+    public int getStateCount() {
+        return (stateCount);
+    }
+
+    private List<State<T>> run(ImmutableFDN fdn) {
+        List<State<T>> active = start();
+        for (RDN currentRDN : fdn.sharedRDNList()) {
+            active = step(active, currentRDN.getQualifier(), currentRDN.getValue());
+            if (active == null) {
+                return (null);
+            }
+        }
+        return (active);
+    }
+
+    private List<State<T>> run(FDNToken token) {
+        List<State<T>> active = start();
+        FDNTokenReader reader = new FDNTokenReader(token);
+        while (reader.next()) {
+            active = step(active, reader.getQualifier(), reader.getValue());
+            if (active == null) {
+                return (null);
+            }
+        }
+        return (active);
+    }
+
+    private List<State<T>> start() {
+        ArrayList<State<T>> active = new ArrayList<>(4);
+        addWithClosure(active, new BitSet(stateCount), root);
+        return (active);
+    }
+
+    /**
+     * @return The live states after consuming the RDN, or null if there are none.
+     */
+    private List<State<T>> step(List<State<T>> active, String qualifier, String value) {
+        ArrayList<State<T>> next = new ArrayList<>(active.size() + 2);
+        BitSet seen = new BitSet(stateCount);
+        for (State<T> currentState : active) {
+            if (currentState.selfLoop) {
+                addWithClosure(next, seen, currentState);
+            }
+            Map<String, State<T>> byValue = currentState.exact.get(qualifier);
+            if (byValue != null) {
+                addWithClosure(next, seen, byValue.get(value));
+            }
+            addWithClosure(next, seen, currentState.byQualifier.get(qualifier));
+            addWithClosure(next, seen, currentState.byValue.get(value));
+            addWithClosure(next, seen, currentState.any);
+        }
+        return (next.isEmpty() ? null : next);
+    }
+
+    private void addWithClosure(List<State<T>> states, BitSet seen, State<T> state) {
+        while (state != null && !seen.get(state.id)) {
+            seen.set(state.id);
+            states.add(state);
+            state = state.multiLevel;
+        }
+    }
+
+    private boolean isAccepting(List<State<T>> active) {
+        if (active != null) {
+            for (State<T> currentState : active) {
+                if (!currentState.targets.isEmpty()) {
+                    return (true);
+                }
+            }
+        }
+        return (false);
+    }
+
+    private Set<T> collectTargets(List<State<T>> active) {
+        LinkedHashSet<T> matchedTargets = new LinkedHashSet<>();
+        for (State<T> currentState : active) {
+            matchedTargets.addAll(currentState.targets);
+        }
+        return (matchedTargets);
+    }
+
+    @Override
+    public String toString() {
+        return ("FDNPatternAutomaton{states=" + stateCount + "}");
+    }
+
+    //
+    // An automaton state; only modified by the FDNPatternCompiler (before the
+    // automaton is published).
+    //
+
+    static final class State<T> {
+        final int id;
+        final HashMap<String, HashMap<String, State<T>>> exact = new HashMap<>();
+        final HashMap<String, State<T>> byQualifier = new HashMap<>();
+        final HashMap<String, State<T>> byValue = new HashMap<>();
+        final ArrayList<T> targets = new ArrayList<>(0);
+        State<T> any;
+        State<T> multiLevel;
+        boolean selfLoop;
+
+        State(int id) {
+            this.id = id;
+        }
+
+        void addTarget(T target) {
+            if (!targets.contains(target)) {
+                targets.add(target);
+            }
+        }
+    }
+}
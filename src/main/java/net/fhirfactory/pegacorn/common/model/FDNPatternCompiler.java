@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compiles a set of FDNPatterns (each with an associated target, e.g. a
+ * subscriber) into a single FDNPatternAutomaton.
+ *
+ * The patterns are merged into one automaton, sharing common leading
+ * elements, with literal RDNs held in hash maps - so matching an FDN costs in
+ * proportion to its depth (and the number of wildcard branches that are live
+ * at the same time) rather than to the number of patterns.
+ *
+ * A compiler may be re-used: compile() snapshots the patterns added so far.
+ */
+public class FDNPatternCompiler<T> {
+
+    private final ArrayList<FDNPattern> patterns = new ArrayList<>();
+    private final ArrayList<T> targets = new ArrayList<>();
+
+    public FDNPatternCompiler<T> add(FDNPattern pattern, T target) {
+        if (pattern == null || target == null) {
+            throw (new IllegalArgumentException("null pattern or target passed to add()"));
+        }
+        patterns.add(pattern);
+        targets.add(target);
+        return (this);
+    }
+
+    public FDNPatternCompiler<T> add(String pattern, T target) {
+        return (add(FDNPattern.parse(pattern), target));
+    }
+
+    public int size() {
+        return (patterns.size());
+    }
+
+    public FDNPatternAutomaton<T> compile() {
+        ArrayList<FDNPatternAutomaton.State<T>> states = new ArrayList<>();
+        FDNPatternAutomaton.State<T> root = newState(states);
+        for (int counter = 0; counter < patterns.size(); counter++) {
+            FDNPatternAutomaton.State<T> current = root;
+            for (FDNPattern.Element currentElement : patterns.get(counter).getElements()) {
+                current = addTransition(current, currentElement, states);
+            }
+            current.addTarget(targets.get(counter));
+        }
+        return (new FDNPatternAutomaton<>(root, states.size()));
+    }
+
+    private static <T> FDNPatternAutomaton.State<T> addTransition(FDNPatternAutomaton.State<T> from, FDNPattern.Element element, List<FDNPatternAutomaton.State<T>> states) {
+        if (element.multiLevel) {
+            // An epsilon transition to a state that loops on any RDN
+            if (from.multiLevel == null) {
+                from.multiLevel = newState(states);
+                from.multiLevel.selfLoop = true;
+            }
+            return (from.multiLevel);
+        }
+        if (element.qualifier != null && element.value != null) {
+            HashMap<String, FDNPatternAutomaton.State<T>> byValue = from.exact.computeIfAbsent(element.qualifier, qualifier -> new HashMap<>());
+            return (byValue.computeIfAbsent(element.value, value -> newState(states)));
+        }
+        if (element.qualifier != null) {
+            return (from.byQualifier.computeIfAbsent(element.qualifier, qualifier -> newState(states)));
+        }
+        if (element.value != null) {
+            return (from.byValue.computeIfAbsent(element.value, value -> newState(states)));
+        }
+        if (from.any == null) {
+            from.any = newState(states);
+        }
+        return (from.any);
+    }
+
+    private static <T> FDNPatternAutomaton.State<T> newState(List<FDNPatternAutomaton.State<T>> states) {
+        FDNPatternAutomaton.State<T> newState = new FDNPatternAutomaton.State<>(states.size());
+        states.add(newState);
+        return (newState);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A (grow-only) dictionary mapping the Qualifier and Value strings used within
+ * RDNs to dense int symbol ids. Qualifiers ("Site", "Platform", "Service", ...)
+ * and many values repeat across every FDN in a topology, so PackedFDNs hold
+ * just the symbol ids, and each distinct string is held once - here.
+ *
+ * Lookups are lock-free; only the creation of a new symbol is synchronised.
+ */
+public class FDNSymbolTable {
+
+    public static final int NO_SYMBOL = -1;
+
+    private static final FDNSymbolTable DEFAULT_TABLE = new FDNSymbolTable();
+
+    private final ConcurrentHashMap<String, Integer> symbolIds = new ConcurrentHashMap<>();
+    private volatile String[] symbols = new String[64];
+    private volatile int symbolCount;
+
+    /**
+     * @return The (process wide) shared symbol table.
+     */
+    public static FDNSymbolTable getDefaultTable() {
+        return (DEFAULT_TABLE);
+    }
+
+    /**
+     * @return The symbol id for the string, creating one if needed.
+     */
+    public int getOrCreateSymbol(String symbol) {
+        Integer existingId = symbolIds.get(symbol);
+        if (existingId != null) {
+            return (existingId);
+        }
+        synchronized (this) {
+            existingId = symbolIds.get(symbol);
+            if (existingId != null) {
+                return (existingId);
+            }
+            int newId = symbolCount;
+            String[] currentSymbols = symbols;
+            if (newId == currentSymbols.length) {
+                currentSymbols = Arrays.copyOf(currentSymbols, newId * 2);
+            }
+            currentSymbols[newId] = symbol;
+            symbols = currentSymbols;
+            symbolCount = newId + 1;
+            symbolIds.put(symbol, newId);
+            return (newId);
+        }
+    }
+
+    /**
+     * @return The symbol id for the string, or NO_SYMBOL if it has never been added.
+     */
+    public int lookupSymbol(String symbol) {
+        Integer existingId = symbolIds.get(symbol);
+        return ((existingId == null) ? NO_SYMBOL : existingId);
+    }
+
+    public String getString(int symbolId) {
+        if (symbolId < 0 || symbolId >= symbolCount) {
+            throw (new IllegalArgumentException("Unknown symbol id --> " + symbolId));
+        }
+        return (symbols[symbolId]);
+    }
+
+    public int size() {
+        return (symbolCount);
+    }
+
+    @Override
+    public String toString() {
+        return ("FDNSymbolTable{size=" + symbolCount + "}");
+    }
+}
@@ -23,31 +23,106 @@ package net.fhirfactory.pegacorn.common.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
-import java.util.ArrayList;
-import java.util.Objects;
-
-public class FDNToken {
+import java.util.Arrays;
+
+/**
+ * The FDNToken is the (binary) encoded form of an FDN - see FDNTokenCodec for
+ * the layout. Two FDNTokens are equal if their encoded bytes are equal. The
+ * token content (String) is the Base64 form of the encoding, although the
+ * original JSON token content is still accepted by FDNToken(String) and
+ * setContent().
+ *
+ * FDNTokens are ordered RDN by RDN (see FDNTokenCodec.compareFDNTokens()), the
+ * same order as that of the equivalent FDNs.
+ */
+public class FDNToken implements Comparable<FDNToken> {
 
+    private byte[] encoded;
     private String content;
+    private boolean frozen;
+    private long hash64;
 
     public FDNToken() {
+        encoded = FDNTokenCodec.EMPTY_TOKEN;
         content = new String();
+        hash64 = FDNTokenCodec.HASH64_SEED;
     }
 
     public FDNToken(String tokenContent) {
-        this.content = new String(tokenContent);
+        setContent(tokenContent);
     }
 
     public FDNToken(FDNToken originalToken) {
-        this.content = new String(originalToken.getContent());
+        // The encoded array is never modified in place, so it can be shared
+        this.encoded = originalToken.encoded;
+        this.content = originalToken.content;
+        this.hash64 = originalToken.hash64;
+    }
+
+    public FDNToken(byte[] encodedToken) {
+        byte[] encodedCopy = encodedToken.clone();
+        FDNTokenCodec.decodeFDN(encodedCopy);
+        wrap(encodedCopy);
+    }
+
+    /**
+     * Wraps (without copying or validating) an already encoded token.
+     */
+    static FDNToken fromTrustedBytes(byte[] encodedToken) {
+        FDNToken token = new FDNToken();
+        token.wrap(encodedToken);
+        return (token);
+    }
+
+    private void wrap(byte[] encodedToken) {
+        this.encoded = encodedToken;
+        this.content = null;
+        this.hash64 = FDNTokenCodec.hash64OfFDNToken(encodedToken);
     }
 
     public String getContent() {
+        if (this.content == null) {
+            this.content = FDNTokenCodec.toContent(this.encoded);
+        }
         return (this.content);
     }
 
     public void setContent(String tokenContent) {
-        this.content = new String(tokenContent);
+        if (this.frozen) {
+            throw (new IllegalStateException("FDNToken is shared (e.g. cached within an ImmutableFDN) and cannot be modified"));
+        }
+        this.encoded = FDNTokenCodec.fdnContentToBytes(tokenContent);
+        this.content = null;
+        this.hash64 = FDNTokenCodec.hash64OfFDNToken(this.encoded);
+    }
+
+    /**
+     * @return A copy of the encoded (binary) form of this token.
+     */
+    public byte[] toByteArray() {
+        return (this.encoded.clone());
+    }
+
+    /**
+     * @return The (precomputed) 64 bit hash of the token, which is the same as
+     * the hash of the equivalent FDN and ImmutableFDN.
+     */
+    @JsonIgnore
+    public long getHash64() {
+        return (this.hash64);
+    }
+
+    byte[] encoded() {
+        return (this.encoded);
+    }
+
+    /**
+     * Marks this token as shared, after which setContent() is rejected. Copies
+     * (via the copy constructor) are not frozen.
+     */
+    FDNToken freeze() {
+        this.frozen = true;
+        return (this);
     }
 
     @Override
@@ -56,28 +131,11 @@ public class FDNToken {
     }
 
     private String makeSimpleString(){
-        FDN tempFDN = new FDN(this);
-        String simpleString = "SimpleFDN=";
-        ArrayList<RDN> rdnSet = tempFDN.getRDNSet();
-        int setSize = rdnSet.size();
-        for (int counter = 0; counter < setSize; counter++) {
-            RDN currentRDN = rdnSet.get(counter);
-            String currentValue = currentRDN.getValue();
-            if(currentValue.contains(".")){
-                String outputString = currentValue.replace(".", "_");
-                simpleString = simpleString + outputString;
-            } else {
-                simpleString = simpleString + currentValue;
-            }
-            if(counter < (setSize - 1)){
-                simpleString = simpleString + ".";
-            }
-        }
-        return(simpleString);
+        return("SimpleFDN=" + FDNTokenReader.toUnqualifiedToken(this));
     }
 
     public String toFullString(){
-        return(this.content);
+        return(getContent());
     }
 
     @Override
@@ -85,43 +143,28 @@ public class FDNToken {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         FDNToken fdnToken = (FDNToken) o;
-        boolean equalityTest = fdnToken.getContent().contentEquals(this.getContent());
-        return (equalityTest);
+        if (this.hash64 != fdnToken.hash64) {
+            return (false);
+        }
+        return (Arrays.equals(this.encoded, fdnToken.encoded));
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(getContent());
+        return (FDNTokenCodec.foldHash64(this.hash64));
+    }
+
+    @Override
+    public int compareTo(FDNToken other) {
+        return (FDNTokenCodec.compareFDNTokens(this.encoded, other.encoded));
     }
 
     public String toTag(){
-        String tag = new String();
-        FDNToken tempToken = new FDNToken();
-        tempToken.setContent(this.getContent());
-        FDN tempFDN = new FDN(tempToken);
-        int setSize = tempFDN.getRDNSet().size();
-        int counter = 0;
-        for (RDN currentRDN: tempFDN.getRDNSet()){
-            String rdnValueEntry = currentRDN.getValue();
-            if (rdnValueEntry.contains(".")) {
-                String outputString = rdnValueEntry.replace(".", "_");
-                tag = tag + outputString;
-            } else {
-                tag = tag + rdnValueEntry;
-            }
-            if (counter < (setSize - 1)) {
-                tag = tag + ".";
-            }
-            counter++;
-        }
-        return(tag);
+        return(FDNTokenReader.toUnqualifiedToken(this));
     }
 
     @JsonIgnore
     public String getUnqualifiedToken(){
-        FDNToken tempToken = new FDNToken();
-        tempToken.setContent(this.getContent());
-        FDN tempFDN = new FDN(tempToken);
-        return(tempFDN.getUnqualifiedToken());
+        return(FDNTokenReader.toUnqualifiedToken(this));
     }
-}
\ No newline at end of file
+}
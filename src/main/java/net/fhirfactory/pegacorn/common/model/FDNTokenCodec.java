@@ -0,0 +1,666 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary encoding of the FDNToken and RDNToken content.
+ *
+ * The (version 1) layout is:
+ * <pre>
+ *   RDNToken := VERSION pair
+ *   FDNToken := VERSION varint(rdnCount) pair*      (an empty FDN is a zero-length token)
+ *   pair     := varint(qualifierLength) qualifier-UTF8 varint(valueLength) value-UTF8
+ * </pre>
+ * Lengths are unsigned LEB128 varints. Because an FDNToken is simply the
+ * concatenation of its RDNs' pairs, two tokens are equal if-and-only-if their
+ * byte arrays are equal.
+ *
+ * The String form of a token (FDNToken::getContent()) is the URL-safe Base64
+ * (without padding) of the byte array. The original JSON tokens (which start
+ * with a '{') are still accepted by the String based constructors and are
+ * converted to the binary format on the way in.
+ */
+public final class FDNTokenCodec {
+    private static final Logger LOG = LoggerFactory.getLogger(FDNTokenCodec.class);
+
+    public static final byte FORMAT_VERSION_1 = 0x01;
+
+    static final byte[] EMPTY_TOKEN = new byte[0];
+
+    private static final String LEGACY_FDN_TOKEN_ID = "FDNToken";
+    private static final String LEGACY_RDN_QUALIFIER_ID = "Qualifier";
+    private static final String LEGACY_RDN_VALUE_ID = "Value";
+
+    private static final Base64.Encoder CONTENT_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder CONTENT_DECODER = Base64.getUrlDecoder();
+
+    private FDNTokenCodec() {
+    }
+
+    //
+    // Encoding
+    //
+
+    /**
+     * Encodes a single Qualifier/Value pair as an RDNToken byte array.
+     */
+    public static byte[] encodeRDN(String qualifier, String value) {
+        byte[] qualifierBytes = qualifier.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[1 + varIntSize(qualifierBytes.length) + qualifierBytes.length + varIntSize(valueBytes.length) + valueBytes.length];
+        encoded[0] = FORMAT_VERSION_1;
+        int position = writeVarInt(encoded, 1, qualifierBytes.length);
+        System.arraycopy(qualifierBytes, 0, encoded, position, qualifierBytes.length);
+        position += qualifierBytes.length;
+        position = writeVarInt(encoded, position, valueBytes.length);
+        System.arraycopy(valueBytes, 0, encoded, position, valueBytes.length);
+        return (encoded);
+    }
+
+    /**
+     * Encodes an (ordered) list of RDNs as an FDNToken byte array. The RDN pairs
+     * are copied directly out of each RDN's (already encoded) RDNToken.
+     */
+    public static byte[] encodeFDN(List<RDN> rdnList) {
+        int rdnCount = rdnList.size();
+        byte[][] rdnTokens = new byte[rdnCount][];
+        for (int counter = 0; counter < rdnCount; counter++) {
+            rdnTokens[counter] = rdnList.get(counter).getToken().encoded();
+        }
+        return (encodeFDN(rdnTokens));
+    }
+
+    /**
+     * Encodes an (ordered) set of encoded RDNTokens as an FDNToken byte array.
+     */
+    static byte[] encodeFDN(byte[][] rdnTokens) {
+        int rdnCount = rdnTokens.length;
+        if (rdnCount == 0) {
+            return (EMPTY_TOKEN);
+        }
+        int size = 1 + varIntSize(rdnCount);
+        for (byte[] rdnBytes : rdnTokens) {
+            size += rdnBytes.length - 1;
+        }
+        byte[] encoded = new byte[size];
+        encoded[0] = FORMAT_VERSION_1;
+        int position = writeVarInt(encoded, 1, rdnCount);
+        for (byte[] rdnBytes : rdnTokens) {
+            System.arraycopy(rdnBytes, 1, encoded, position, rdnBytes.length - 1);
+            position += rdnBytes.length - 1;
+        }
+        return (encoded);
+    }
+
+    //
+    // Decoding
+    //
+
+    /**
+     * Decodes an RDNToken byte array into a new RDN.
+     */
+    public static RDN decodeRDN(byte[] encoded) {
+        if (encoded == null || encoded.length == 0) {
+            throw (new IllegalArgumentException("Empty RDNToken"));
+        }
+        checkVersion(encoded);
+        int[] cursor = {1};
+        RDN rdn = readRDN(encoded, cursor);
+        if (cursor[0] != encoded.length) {
+            throw (new IllegalArgumentException("Trailing content in RDNToken"));
+        }
+        return (rdn);
+    }
+
+    /**
+     * Decodes an FDNToken byte array into an (ordered) list of new RDNs.
+     */
+    public static ArrayList<RDN> decodeFDN(byte[] encoded) {
+        if (encoded == null) {
+            throw (new IllegalArgumentException("null FDNToken"));
+        }
+        FDNTokenReader reader = new FDNTokenReader(encoded);
+        LOG.trace(".decodeFDN(): The number of RDN entries in the Token is --> {}", reader.getRDNCount());
+        ArrayList<RDN> rdnList = new ArrayList<>(reader.getRDNCount());
+        while (reader.next()) {
+            rdnList.add(reader.toRDN());
+        }
+        return (rdnList);
+    }
+
+    private static RDN readRDN(byte[] encoded, int[] cursor) {
+        int pairStart = cursor[0];
+        String qualifier = readString(encoded, cursor);
+        String value = readString(encoded, cursor);
+        int pairLength = cursor[0] - pairStart;
+        byte[] rdnBytes = new byte[pairLength + 1];
+        rdnBytes[0] = FORMAT_VERSION_1;
+        System.arraycopy(encoded, pairStart, rdnBytes, 1, pairLength);
+        return (new RDN(qualifier, value, RDNToken.fromTrustedBytes(rdnBytes)));
+    }
+
+    private static String readString(byte[] encoded, int[] cursor) {
+        int length = readVarInt(encoded, cursor);
+        if (length > encoded.length - cursor[0]) {
+            throw (new IllegalArgumentException("Truncated token, string length exceeds token size"));
+        }
+        String value = new String(encoded, cursor[0], length, StandardCharsets.UTF_8);
+        cursor[0] += length;
+        return (value);
+    }
+
+    private static void checkVersion(byte[] encoded) {
+        if (encoded[0] != FORMAT_VERSION_1) {
+            throw (new IllegalArgumentException("Unsupported token format version --> " + encoded[0]));
+        }
+    }
+
+    //
+    // String (content) form
+    //
+
+    /**
+     * Converts a token byte array into its (String) content form.
+     */
+    public static String toContent(byte[] encoded) {
+        if (encoded.length == 0) {
+            return ("");
+        }
+        return (CONTENT_ENCODER.encodeToString(encoded));
+    }
+
+    /**
+     * Converts the (String) content form of an FDNToken into its byte array. Legacy
+     * JSON based tokens are accepted and converted.
+     */
+    public static byte[] fdnContentToBytes(String content) {
+        if (content == null) {
+            throw (new IllegalArgumentException("null FDNToken content"));
+        }
+        if (content.isEmpty()) {
+            return (EMPTY_TOKEN);
+        }
+        if (isLegacyContent(content)) {
+            return (encodeFDN(readLegacyFDN(content)));
+        }
+        byte[] encoded = decodeContent(content);
+        new FDNTokenReader(encoded).skipRemaining();
+        return (encoded);
+    }
+
+    /**
+     * Converts the (String) content form of an RDNToken into its byte array. Legacy
+     * JSON based tokens are accepted and converted.
+     */
+    public static byte[] rdnContentToBytes(String content) {
+        if (content == null || content.isEmpty()) {
+            throw (new IllegalArgumentException("null or empty RDNToken content"));
+        }
+        if (isLegacyContent(content)) {
+            String[] pair = readLegacyRDN(content);
+            return (encodeRDN(pair[0], pair[1]));
+        }
+        byte[] encoded = decodeContent(content);
+        decodeRDN(encoded);
+        return (encoded);
+    }
+
+    private static byte[] decodeContent(String content) {
+        try {
+            return (CONTENT_DECODER.decode(content));
+        } catch (IllegalArgumentException badContentEx) {
+            throw (new IllegalArgumentException("Badly formed token content --> " + badContentEx.getMessage()));
+        }
+    }
+
+    private static boolean isLegacyContent(String content) {
+        for (int counter = 0; counter < content.length(); counter++) {
+            char current = content.charAt(counter);
+            if (!Character.isWhitespace(current)) {
+                return (current == '{');
+            }
+        }
+        return (false);
+    }
+
+    //
+    // Compatibility reader for the original (JSON) token format, i.e.
+    //   {"FDNToken":{"0":"{\"Qualifier\":\"q0\",\"Value\":\"v0\"}", "1": ...}}
+    //
+
+    private static byte[][] readLegacyFDN(String content) {
+        LOG.trace(".readLegacyFDN(): Entry, content --> {}", content);
+        String[] rdnContents = null;
+        LegacyTokenScanner scanner = new LegacyTokenScanner(content);
+        scanner.expect('{');
+        if (!scanner.consumeIf('}')) {
+            do {
+                String key = scanner.readKey();
+                scanner.expect(':');
+                if (LEGACY_FDN_TOKEN_ID.equals(key)) {
+                    rdnContents = readLegacyRDNSet(scanner);
+                } else {
+                    scanner.skipValue();
+                }
+            } while (scanner.consumeIf(','));
+            scanner.expect('}');
+        }
+        scanner.expectEnd();
+        if (rdnContents == null) {
+            throw (new IllegalArgumentException("Badly formed FDNToken, no " + LEGACY_FDN_TOKEN_ID + " entry"));
+        }
+        byte[][] rdnTokens = new byte[rdnContents.length][];
+        for (int counter = 0; counter < rdnContents.length; counter++) {
+            if (rdnContents[counter] == null) {
+                throw (new IllegalArgumentException("Badly formed FDNToken, missing RDN entry --> " + counter));
+            }
+            String[] pair = readLegacyRDN(rdnContents[counter]);
+            rdnTokens[counter] = encodeRDN(pair[0], pair[1]);
+        }
+        return (rdnTokens);
+    }
+
+    /**
+     * Reads the {"0":"...", "1":"..."} object. The entries are keyed by position
+     * but (as it was built from a HashMap) may be in any order.
+     */
+    private static String[] readLegacyRDNSet(LegacyTokenScanner scanner) {
+        ArrayList<String> rdnContents = new ArrayList<>();
+        scanner.expect('{');
+        if (scanner.consumeIf('}')) {
+            return (new String[0]);
+        }
+        do {
+            String key = scanner.readKey();
+            int index;
+            try {
+                index = Integer.parseInt(key);
+            } catch (NumberFormatException badKeyEx) {
+                throw (new IllegalArgumentException("Badly formed FDNToken, non-numeric RDN entry key --> " + key));
+            }
+            if (index < 0 || index > scanner.length()) {
+                throw (new IllegalArgumentException("Badly formed FDNToken, RDN entry key out of range --> " + key));
+            }
+            scanner.expect(':');
+            while (rdnContents.size() <= index) {
+                rdnContents.add(null);
+            }
+            rdnContents.set(index, scanner.readString());
+        } while (scanner.consumeIf(','));
+        scanner.expect('}');
+        return (rdnContents.toArray(new String[0]));
+    }
+
+    private static String[] readLegacyRDN(String content) {
+        String qualifier = null;
+        String value = null;
+        LegacyTokenScanner scanner = new LegacyTokenScanner(content);
+        scanner.expect('{');
+        if (!scanner.consumeIf('}')) {
+            do {
+                String key = scanner.readKey();
+                scanner.expect(':');
+                if (LEGACY_RDN_QUALIFIER_ID.equals(key)) {
+                    qualifier = scanner.readString();
+                } else if (LEGACY_RDN_VALUE_ID.equals(key)) {
+                    value = scanner.readString();
+                } else {
+                    scanner.skipValue();
+                }
+            } while (scanner.consumeIf(','));
+            scanner.expect('}');
+        }
+        scanner.expectEnd();
+        if (qualifier == null || value == null) {
+            throw (new IllegalArgumentException("invalid RDNToken, missing Qualifier or Value"));
+        }
+        return (new String[]{qualifier, value});
+    }
+
+    /**
+     * A minimal (single pass) JSON scanner, covering what the legacy tokens
+     * contain. Like org.json it accepts unquoted and single-quoted keys.
+     */
+    private static final class LegacyTokenScanner {
+        private final String content;
+        private int position;
+
+        LegacyTokenScanner(String content) {
+            this.content = content;
+        }
+
+        int length() {
+            return (content.length());
+        }
+
+        void expect(char expected) {
+            skipWhitespace();
+            if (position >= content.length() || content.charAt(position) != expected) {
+                throw (error("expected '" + expected + "'"));
+            }
+            position++;
+        }
+
+        boolean consumeIf(char expected) {
+            skipWhitespace();
+            if (position < content.length() && content.charAt(position) == expected) {
+                position++;
+                return (true);
+            }
+            return (false);
+        }
+
+        void expectEnd() {
+            skipWhitespace();
+            if (position != content.length()) {
+                throw (error("unexpected trailing content"));
+            }
+        }
+
+        String readKey() {
+            skipWhitespace();
+            if (position < content.length() && (content.charAt(position) == '"' || content.charAt(position) == '\'')) {
+                return (readString());
+            }
+            int start = position;
+            while (position < content.length()) {
+                char current = content.charAt(position);
+                if (current == ':' || current == ',' || current == '}' || Character.isWhitespace(current)) {
+                    break;
+                }
+                position++;
+            }
+            if (start == position) {
+                throw (error("expected a key"));
+            }
+            return (content.substring(start, position));
+        }
+
+        String readString() {
+            skipWhitespace();
+            if (position >= content.length() || (content.charAt(position) != '"' && content.charAt(position) != '\'')) {
+                throw (error("expected a string"));
+            }
+            char quote = content.charAt(position++);
+            int start = position;
+            // Fast path - no escapes, so the content can be taken as-is
+            while (position < content.length()) {
+                char current = content.charAt(position);
+                if (current == quote) {
+                    return (content.substring(start, position++));
+                }
+                if (current == '\\') {
+                    break;
+                }
+                position++;
+            }
+            StringBuilder unescaped = new StringBuilder(content.length() - start);
+            unescaped.append(content, start, position);
+            while (position < content.length()) {
+                char current = content.charAt(position++);
+                if (current == quote) {
+                    return (unescaped.toString());
+                }
+                if (current != '\\') {
+                    unescaped.append(current);
+                    continue;
+                }
+                if (position >= content.length()) {
+                    break;
+                }
+                char escaped = content.charAt(position++);
+                switch (escaped) {
+                    case 'b': unescaped.append('\b'); break;
+                    case 't': unescaped.append('\t'); break;
+                    case 'n': unescaped.append('\n'); break;
+                    case 'f': unescaped.append('\f'); break;
+                    case 'r': unescaped.append('\r'); break;
+                    case 'u':
+                        if (position + 4 > content.length()) {
+                            throw (error("truncated unicode escape"));
+                        }
+                        try {
+                            unescaped.append((char) Integer.parseInt(content.substring(position, position + 4), 16));
+                        } catch (NumberFormatException badEscapeEx) {
+                            throw (error("bad unicode escape"));
+                        }
+                        position += 4;
+                        break;
+                    default: unescaped.append(escaped);
+                }
+            }
+            throw (error("unterminated string"));
+        }
+
+        void skipValue() {
+            skipWhitespace();
+            if (position >= content.length()) {
+                throw (error("expected a value"));
+            }
+            char current = content.charAt(position);
+            if (current == '"' || current == '\'') {
+                readString();
+            } else if (current == '{' || current == '[') {
+                char close = (current == '{') ? '}' : ']';
+                position++;
+                if (consumeIf(close)) {
+                    return;
+                }
+                do {
+                    if (close == '}') {
+                        readKey();
+                        expect(':');
+                    }
+                    skipValue();
+                } while (consumeIf(','));
+                expect(close);
+            } else {
+                while (position < content.length() && ",}] \t\r\n".indexOf(content.charAt(position)) < 0) {
+                    position++;
+                }
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < content.length() && Character.isWhitespace(content.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return (new IllegalArgumentException("Badly formed legacy token, " + message + " at position " + position));
+        }
+    }
+
+    //
+    // Ordering
+    //
+
+    /**
+     * Compares two encoded FDNTokens RDN by RDN (Qualifier, then Value), with
+     * each Qualifier / Value compared by its (unsigned) UTF-8 bytes, i.e. in
+     * Unicode code point order. Where one FDN is a prefix of the other, the
+     * shorter (ancestor) FDN sorts first. The tokens are walked in place - no
+     * RDNs or Strings are built.
+     */
+    static int compareFDNTokens(byte[] first, byte[] second) {
+        if (first == second) {
+            return (0);
+        }
+        if (first.length == 0 || second.length == 0) {
+            return (Integer.compare(first.length, second.length));
+        }
+        int[] firstCursor = {1};
+        int[] secondCursor = {1};
+        int firstCount = readVarInt(first, firstCursor);
+        int secondCount = readVarInt(second, secondCursor);
+        int commonCount = Math.min(firstCount, secondCount);
+        for (int counter = 0; counter < commonCount * 2; counter++) {
+            int difference = compareStrings(first, firstCursor, second, secondCursor);
+            if (difference != 0) {
+                return (difference);
+            }
+        }
+        return (Integer.compare(firstCount, secondCount));
+    }
+
+    /**
+     * Compares two encoded RDNTokens, Qualifier first, as per compareFDNTokens().
+     */
+    static int compareRDNTokens(byte[] first, byte[] second) {
+        int[] firstCursor = {1};
+        int[] secondCursor = {1};
+        int difference = compareStrings(first, firstCursor, second, secondCursor);
+        if (difference != 0) {
+            return (difference);
+        }
+        return (compareStrings(first, firstCursor, second, secondCursor));
+    }
+
+    private static int compareStrings(byte[] first, int[] firstCursor, byte[] second, int[] secondCursor) {
+        int firstLength = readVarInt(first, firstCursor);
+        int secondLength = readVarInt(second, secondCursor);
+        int firstStart = firstCursor[0];
+        int secondStart = secondCursor[0];
+        firstCursor[0] += firstLength;
+        secondCursor[0] += secondLength;
+        int compareLength = Math.min(firstLength, secondLength);
+        for (int counter = 0; counter < compareLength; counter++) {
+            int difference = (first[firstStart + counter] & 0xFF) - (second[secondStart + counter] & 0xFF);
+            if (difference != 0) {
+                return (difference);
+            }
+        }
+        return (Integer.compare(firstLength, secondLength));
+    }
+
+    //
+    // Hashing
+    //
+
+    /**
+     * The FNV-1a (64 bit) offset basis, which is also the hash of an empty FDN.
+     */
+    public static final long HASH64_SEED = 0xcbf29ce484222325L;
+    private static final long FNV64_PRIME = 0x100000001b3L;
+
+    /**
+     * Continues an FNV-1a (64 bit) hash over the given bytes. The FDN hash is
+     * the hash of the concatenated RDN pairs, so an FDN's hash can be built from
+     * its parent's hash and its "Least Significant" RDN's pair.
+     */
+    public static long hash64(long hash, byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        for (int position = offset; position < end; position++) {
+            hash ^= (bytes[position] & 0xFF);
+            hash *= FNV64_PRIME;
+        }
+        return (hash);
+    }
+
+    /**
+     * @return The hash of the RDN pairs within an encoded RDNToken.
+     */
+    static long hash64OfRDNToken(byte[] encoded) {
+        return (hash64(HASH64_SEED, encoded, 1, encoded.length - 1));
+    }
+
+    /**
+     * @return The hash of the RDN pairs within an encoded FDNToken (i.e. skipping
+     * the version and count header).
+     */
+    static long hash64OfFDNToken(byte[] encoded) {
+        if (encoded.length == 0) {
+            return (HASH64_SEED);
+        }
+        int[] cursor = {1};
+        readVarInt(encoded, cursor);
+        return (hash64(HASH64_SEED, encoded, cursor[0], encoded.length - cursor[0]));
+    }
+
+    /**
+     * Folds a 64 bit hash into an int, for use as a hashCode().
+     */
+    public static int foldHash64(long hash64) {
+        return ((int) (hash64 ^ (hash64 >>> 32)));
+    }
+
+    //
+    // VarInt helpers
+    //
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return (size);
+    }
+
+    static int writeVarInt(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return (position);
+    }
+
+    /**
+     * Reads a varint, which must be minimally encoded: every FDN has exactly
+     * one encoding, so tokens can be compared (and hashed) byte-wise.
+     */
+    static int readVarInt(byte[] buffer, int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        int start = cursor[0];
+        int position = start;
+        while (true) {
+            if (position >= buffer.length || shift > 28) {
+                throw (new IllegalArgumentException("Truncated or malformed length in token"));
+            }
+            byte current = buffer[position++];
+            value |= (current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        if (value < 0) {
+            throw (new IllegalArgumentException("Malformed length in token"));
+        }
+        if (position - start != varIntSize(value)) {
+            throw (new IllegalArgumentException("Non-minimal length in token"));
+        }
+        cursor[0] = position;
+        return (value);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+/**
+ * A single-pass, forward-only reader over the RDNs within an FDNToken. It walks
+ * the encoded token in place, so callers that only want the values (e.g. for
+ * the tag or unqualified token) don't have to build an FDN (and all its RDNs
+ * and RDNTokens) first.
+ *
+ * <pre>
+ *   FDNTokenReader reader = new FDNTokenReader(token);
+ *   while (reader.next()) {
+ *       ... reader.getQualifier(), reader.getValue() ...
+ *   }
+ * </pre>
+ */
+public final class FDNTokenReader {
+
+    private final byte[] encoded;
+    private final int rdnCount;
+    private int position;
+    private int rdnIndex;
+    private int pairOffset;
+    private int qualifierOffset;
+    private int qualifierLength;
+    private int valueOffset;
+    private int valueLength;
+
+    public FDNTokenReader(FDNToken token) {
+        this(token.encoded());
+    }
+
+    FDNTokenReader(byte[] encoded) {
+        this.encoded = encoded;
+        this.rdnIndex = -1;
+        if (encoded.length == 0) {
+            this.rdnCount = 0;
+            this.position = 0;
+            return;
+        }
+        if (encoded[0] != FDNTokenCodec.FORMAT_VERSION_1) {
+            throw (new IllegalArgumentException("Unsupported token format version --> " + encoded[0]));
+        }
+        this.position = 1;
+        this.rdnCount = readLength();
+        if (rdnCount == 0 && position != encoded.length) {
+            throw (new IllegalArgumentException("Trailing content in FDNToken"));
+        }
+    }
+
+    public int getRDNCount() {
+        return (rdnCount);
+    }
+
+    /**
+     * @return The (zero based) index of the current RDN, or -1 before the first call to next().
+     */
+    public int getRDNIndex() {
+        return (rdnIndex);
+    }
+
+    public boolean hasNext() {
+        return (rdnIndex + 1 < rdnCount);
+    }
+
+    /**
+     * Moves to the next RDN.
+     *
+     * @return false if there are no more RDNs.
+     */
+    public boolean next() {
+        if (!hasNext()) {
+            return (false);
+        }
+        pairOffset = position;
+        qualifierLength = readLength();
+        qualifierOffset = position;
+        position += qualifierLength;
+        valueLength = readLength();
+        valueOffset = position;
+        position += valueLength;
+        rdnIndex++;
+        if (rdnIndex == rdnCount - 1 && position != encoded.length) {
+            throw (new IllegalArgumentException("Trailing content in FDNToken"));
+        }
+        return (true);
+    }
+
+    public String getQualifier() {
+        checkPositioned();
+        return (new String(encoded, qualifierOffset, qualifierLength, StandardCharsets.UTF_8));
+    }
+
+    public String getValue() {
+        checkPositioned();
+        return (new String(encoded, valueOffset, valueLength, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return A new RDN for the current position.
+     */
+    public RDN toRDN() {
+        checkPositioned();
+        int pairLength = position - pairOffset;
+        byte[] rdnBytes = new byte[pairLength + 1];
+        rdnBytes[0] = FDNTokenCodec.FORMAT_VERSION_1;
+        System.arraycopy(encoded, pairOffset, rdnBytes, 1, pairLength);
+        return (new RDN(getQualifier(), getValue(), RDNToken.fromTrustedBytes(rdnBytes)));
+    }
+
+    /**
+     * Reads through the remaining RDNs, checking the token is well formed.
+     */
+    public void skipRemaining() {
+        while (next()) {
+            // just walking the lengths
+        }
+    }
+
+    /**
+     * @return The unqualified token (the RDN values, with any '.' replaced by
+     * '_', joined with '.'), built directly from the token content.
+     */
+    public static String toUnqualifiedToken(FDNToken token) {
+        FDNTokenReader reader = new FDNTokenReader(token);
+        StringBuilder unqualifiedTokenBuilder = new StringBuilder(token.encoded().length);
+        while (reader.next()) {
+            if (reader.getRDNIndex() > 0) {
+                unqualifiedTokenBuilder.append('.');
+            }
+            unqualifiedTokenBuilder.append(reader.getValue().replace('.', '_'));
+        }
+        return (unqualifiedTokenBuilder.toString());
+    }
+
+    private void checkPositioned() {
+        if (rdnIndex < 0) {
+            throw (new NoSuchElementException("next() has not been called"));
+        }
+    }
+
+    /**
+     * As per FDNTokenCodec.readVarInt(), including the minimal encoding check.
+     */
+    private int readLength() {
+        int value = 0;
+        int shift = 0;
+        int start = position;
+        while (true) {
+            if (position >= encoded.length || shift > 28) {
+                throw (new IllegalArgumentException("Truncated or malformed length in token"));
+            }
+            byte current = encoded[position++];
+            value |= (current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        if (value < 0 || value > encoded.length - position) {
+            throw (new IllegalArgumentException("Malformed length in token"));
+        }
+        if (position - start != FDNTokenCodec.varIntSize(value)) {
+            throw (new IllegalArgumentException("Non-minimal length in token"));
+        }
+        return (value);
+    }
+}
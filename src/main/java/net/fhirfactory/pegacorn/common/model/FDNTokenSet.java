@@ -22,113 +22,336 @@
 
 package net.fhirfactory.pegacorn.common.model;
 
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A thread-safe, insertion ordered, set of FDNTokens.
+ *
+ * Membership is held in a ConcurrentHashMap (so add/remove/contains are O(1)
+ * and writers on different tokens don't contend), while iteration order comes
+ * from a ConcurrentSkipListMap keyed by insertion sequence. Readers (including
+ * iteration over getElements()) never block, and see a weakly consistent view
+ * of concurrent changes. The toString() form is only built when asked for.
+ *
+ * The tokens held by the set are (frozen) copies, so they can be shared
+ * between the sets produced by the bulk operations (union(), intersect(),
+ * difference()) without being copied again.
+ */
 public class FDNTokenSet {
-	private LinkedHashSet<FDNToken> elements;
-	private String fdnSetAsString;
-	private Object updateLock;
+	private final ConcurrentHashMap<FDNToken, Long> elementIndex;
+	private final ConcurrentSkipListMap<Long, FDNToken> elementOrder;
+	private final AtomicLong insertionSequence;
+	private final AtomicLong modificationCount;
+	private final Set<FDNToken> elementsView;
+	private final Object bulkUpdateLock;
+	private volatile CachedString fdnSetAsString;
 
 	public FDNTokenSet() {
-		elements = new LinkedHashSet<>();
-		fdnSetAsString = new String();
-		updateLock = new Object();
+		elementIndex = new ConcurrentHashMap<>();
+		elementOrder = new ConcurrentSkipListMap<>();
+		insertionSequence = new AtomicLong();
+		modificationCount = new AtomicLong();
+		elementsView = new ElementsView();
+		bulkUpdateLock = new Object();
 	}
 
 	public FDNTokenSet(FDNTokenSet originalSet) {
-		elements = new LinkedHashSet<>();
-		updateLock = new Object();
+		this();
 		if (originalSet != null) {
-			Iterator<FDNToken> originalSetIterator = originalSet.getElements().iterator();
-			while (originalSetIterator.hasNext()) {
-				FDNToken newFDN = new FDNToken(originalSetIterator.next());
-				elements.add(newFDN);
+			for (FDNToken originalToken : originalSet.elementOrder.values()) {
+				add(originalToken);
 			}
 		}
-		generateString();
 	}
 
+	/**
+	 * @return A live (insertion ordered) view of the set. Iteration never blocks
+	 * and is weakly consistent; add() and remove() on the view behave as
+	 * addElement() and removeElement().
+	 */
 	public Set<FDNToken> getElements() {
-		return (elements);
+		return (elementsView);
 	}
 
 	public void setElements(Set<FDNToken> newElementSet) {
 		if (newElementSet == null) {
 			return;
 		}
-		synchronized (updateLock) {
-			elements.clear();
-			Iterator<FDNToken> fdnIterator = newElementSet.iterator();
-			while (fdnIterator.hasNext()) {
-				FDNToken fdnCopy = new FDNToken(fdnIterator.next());
-				elements.add(fdnCopy);
+		synchronized (bulkUpdateLock) {
+			clear();
+			for (FDNToken newToken : newElementSet) {
+				addElement(newToken);
 			}
-			generateString();
 		}
 	}
 
 	public void addElement(FDNToken newFDNToken) {
-		synchronized (updateLock) {
-			Iterator<FDNToken> setIterator = elements.iterator();
-			boolean isAlreadyPresent = false;
-			while (setIterator.hasNext()) {
-				FDNToken currentFDN = setIterator.next();
-				if (currentFDN.equals(newFDNToken)) {
-					isAlreadyPresent = true;
-					break;
-				}
-			}
-			if (!isAlreadyPresent) {
-				FDNToken toBeAddedFDN = new FDNToken(newFDNToken);
-				elements.add(toBeAddedFDN);
-				generateString();
+		add(new FDNToken(newFDNToken).freeze());
+	}
+
+	/**
+	 * Adds the token itself (rather than a copy), for tokens that are already
+	 * frozen (e.g. held by another FDNTokenSet).
+	 *
+	 * @return true if the token was not already present.
+	 */
+	boolean add(FDNToken newFDNToken) {
+		boolean[] added = {false};
+		// The compute() runs under the ConcurrentHashMap bin lock for this token, so
+		// the index and order maps are updated together with respect to removeElement()
+		elementIndex.compute(newFDNToken, (token, existingSequence) -> {
+			if (existingSequence != null) {
+				return (existingSequence);
 			}
+			Long sequence = insertionSequence.incrementAndGet();
+			elementOrder.put(sequence, token);
+			added[0] = true;
+			return (sequence);
+		});
+		if (added[0]) {
+			modificationCount.incrementAndGet();
 		}
+		return (added[0]);
 	}
 
 	public void removeElement(FDNToken theFDNToken) {
-		synchronized (updateLock) {
-			Iterator<FDNToken> setIterator = elements.iterator();
-			while (setIterator.hasNext()) {
-				FDNToken currentFDN = setIterator.next();
-				if (currentFDN.equals(theFDNToken)) {
-					elements.remove(currentFDN);
-					generateString();
-					break;
+		remove(theFDNToken);
+	}
+
+	/**
+	 * @return true if the token was present.
+	 */
+	boolean remove(FDNToken theFDNToken) {
+		if (theFDNToken == null) {
+			return (false);
+		}
+		boolean[] removed = {false};
+		elementIndex.computeIfPresent(theFDNToken, (token, sequence) -> {
+			elementOrder.remove(sequence);
+			removed[0] = true;
+			return (null);
+		});
+		if (removed[0]) {
+			modificationCount.incrementAndGet();
+		}
+		return (removed[0]);
+	}
+
+	public boolean contains(FDNToken theFDNToken) {
+		if (theFDNToken == null) {
+			return (false);
+		}
+		return (elementIndex.containsKey(theFDNToken));
+	}
+
+	public int size() {
+		return (elementIndex.size());
+	}
+
+	public void clear() {
+		for (FDNToken currentToken : elementIndex.keySet()) {
+			remove(currentToken);
+		}
+	}
+
+	//
+	// Bulk (set algebra) operations - each returns a new set, sharing the (frozen)
+	// token instances rather than copying them. Membership tests are O(1), so each
+	// operation is linear in the size of the sets involved.
+	//
+
+	/**
+	 * @return A new set with the elements of this set followed by those elements
+	 * of the other set that are not in this set.
+	 */
+	public FDNTokenSet union(FDNTokenSet otherSet) {
+		FDNTokenSet unionSet = new FDNTokenSet();
+		for (FDNToken currentToken : this.elementOrder.values()) {
+			unionSet.add(currentToken);
+		}
+		if (otherSet != null) {
+			for (FDNToken currentToken : otherSet.elementOrder.values()) {
+				unionSet.add(currentToken);
+			}
+		}
+		return (unionSet);
+	}
+
+	/**
+	 * @return A new set with the elements of this set that are also in the other
+	 * set, in this set's order.
+	 */
+	public FDNTokenSet intersect(FDNTokenSet otherSet) {
+		FDNTokenSet intersectionSet = new FDNTokenSet();
+		if (otherSet == null || otherSet.isEmpty() || this.isEmpty()) {
+			return (intersectionSet);
+		}
+		if (otherSet.size() >= this.size()) {
+			for (FDNToken currentToken : this.elementOrder.values()) {
+				if (otherSet.contains(currentToken)) {
+					intersectionSet.add(currentToken);
 				}
 			}
+			return (intersectionSet);
 		}
+		// The other set is the smaller one, so probe this set with its elements and
+		// then put the matches back into this set's order
+		long[] matchingSequences = new long[Math.max(16, otherSet.size())];
+		int matchCount = 0;
+		for (FDNToken currentToken : otherSet.elementOrder.values()) {
+			Long sequence = this.elementIndex.get(currentToken);
+			if (sequence != null) {
+				if (matchCount == matchingSequences.length) {
+					matchingSequences = Arrays.copyOf(matchingSequences, matchCount * 2);
+				}
+				matchingSequences[matchCount++] = sequence;
+			}
+		}
+		Arrays.sort(matchingSequences, 0, matchCount);
+		for (int counter = 0; counter < matchCount; counter++) {
+			FDNToken matchingToken = this.elementOrder.get(matchingSequences[counter]);
+			if (matchingToken != null) {
+				intersectionSet.add(matchingToken);
+			}
+		}
+		return (intersectionSet);
+	}
+
+	/**
+	 * @return A new set with the elements of this set that are not in the other set.
+	 */
+	public FDNTokenSet difference(FDNTokenSet otherSet) {
+		FDNTokenSet differenceSet = new FDNTokenSet();
+		for (FDNToken currentToken : this.elementOrder.values()) {
+			if (otherSet == null || !otherSet.contains(currentToken)) {
+				differenceSet.add(currentToken);
+			}
+		}
+		return (differenceSet);
+	}
+
+	/**
+	 * @return true if every element of the other set is in this set.
+	 */
+	public boolean containsAll(FDNTokenSet otherSet) {
+		if (otherSet == null) {
+			return (true);
+		}
+		if (otherSet.size() > this.size()) {
+			return (false);
+		}
+		for (FDNToken currentToken : otherSet.elementOrder.values()) {
+			if (!this.contains(currentToken)) {
+				return (false);
+			}
+		}
+		return (true);
 	}
 
 	public boolean isEmpty() {
-		if (elements.isEmpty()) {
+		if (elementIndex.isEmpty()) {
 			return (true);
 		} else {
 			return (false);
 		}
 	}
 
-	private void generateString() {
-		if(elements.isEmpty()) {
-			this.fdnSetAsString = new String();
+	private String generateString() {
+		if (elementOrder.isEmpty()) {
+			return (new String());
 		}
-		String newString = new String("{FDNSet=(");
+		StringBuilder newString = new StringBuilder("{FDNSet=(");
 		int counter = 0;
-		Iterator<FDNToken> setIterator = elements.iterator();	
-		while (setIterator.hasNext()) {
-			FDNToken currentFDN = setIterator.next();
-			newString = newString + "[" + Integer.toString(counter) + "][" + currentFDN.toString() + "]";
+		for (FDNToken currentFDN : elementOrder.values()) {
+			newString.append("[").append(counter).append("][").append(currentFDN.toString()).append("]");
 			counter += 1;
 		}
-		newString = newString + ")}";
-		this.fdnSetAsString = newString;
+		newString.append(")}");
+		return (newString.toString());
 	}
 
 	@Override
 	public String toString() {
-		return (this.fdnSetAsString);
+		long currentModificationCount = modificationCount.get();
+		CachedString cachedString = this.fdnSetAsString;
+		if (cachedString != null && cachedString.modificationCount == currentModificationCount) {
+			return (cachedString.value);
+		}
+		String newString = generateString();
+		this.fdnSetAsString = new CachedString(currentModificationCount, newString);
+		return (newString);
+	}
+
+	private static final class CachedString {
+		private final long modificationCount;
+		private final String value;
+
+		CachedString(long modificationCount, String value) {
+			this.modificationCount = modificationCount;
+			this.value = value;
+		}
+	}
+
+	private final class ElementsView extends AbstractSet<FDNToken> {
+		@Override
+		public Iterator<FDNToken> iterator() {
+			Iterator<Map.Entry<Long, FDNToken>> orderIterator = elementOrder.entrySet().iterator();
+			return (new Iterator<FDNToken>() {
+				private FDNToken lastReturned;
+
+				@Override
+				public boolean hasNext() {
+					return (orderIterator.hasNext());
+				}
+
+				@Override
+				public FDNToken next() {
+					lastReturned = orderIterator.next().getValue();
+					return (lastReturned);
+				}
+
+				@Override
+				public void remove() {
+					if (lastReturned == null) {
+						throw (new IllegalStateException());
+					}
+					FDNTokenSet.this.remove(lastReturned);
+					lastReturned = null;
+				}
+			});
+		}
+
+		@Override
+		public int size() {
+			return (FDNTokenSet.this.size());
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return ((o instanceof FDNToken) && FDNTokenSet.this.contains((FDNToken) o));
+		}
+
+		@Override
+		public boolean add(FDNToken newFDNToken) {
+			return (FDNTokenSet.this.add(new FDNToken(newFDNToken).freeze()));
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return ((o instanceof FDNToken) && FDNTokenSet.this.remove((FDNToken) o));
+		}
+
+		@Override
+		public void clear() {
+			FDNTokenSet.this.clear();
+		}
 	}
 
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.stream.Stream;
+
+/**
+ * Builds a Tree of FDNs from a flat set of FDNs, in (roughly) linear time.
+ *
+ * Each FDN is linked to its parent via a hash lookup on its (O(1)) parent
+ * ImmutableFDN, so shared prefixes are only created once. Any missing
+ * intermediate FDNs are synthesised. If the FDNs do not all share a single
+ * top-level FDN, the tree is rooted at an empty FDN.
+ *
+ * Children are held in the order in which they were first seen.
+ */
+public class FDNTreeBuilder {
+
+    private final HashMap<ImmutableFDN, TreeNode<FDN>> treeNodes = new HashMap<>();
+    private final LinkedHashSet<TreeNode<FDN>> topLevelNodes = new LinkedHashSet<>();
+
+    public static Tree<FDN> buildTree(Iterable<FDN> fdns) {
+        return (new FDNTreeBuilder().addAll(fdns).build());
+    }
+
+    public static Tree<FDN> buildTree(Stream<FDN> fdns) {
+        return (new FDNTreeBuilder().addAll(fdns).build());
+    }
+
+    public static Tree<FDN> buildTree(FDNTokenSet tokenSet) {
+        return (new FDNTreeBuilder().addAll(tokenSet).build());
+    }
+
+    public FDNTreeBuilder add(FDN fdn) {
+        if (fdn == null) {
+            throw (new IllegalArgumentException("null FDN passed to add()"));
+        }
+        return (add(fdn.toImmutableFDN()));
+    }
+
+    public FDNTreeBuilder add(FDNToken token) {
+        if (token == null) {
+            throw (new IllegalArgumentException("null FDNToken passed to add()"));
+        }
+        return (add(ImmutableFDN.of(token)));
+    }
+
+    public FDNTreeBuilder add(ImmutableFDN fdn) {
+        if (fdn == null) {
+            throw (new IllegalArgumentException("null FDN passed to add()"));
+        }
+        if (fdn.isEmpty()) {
+            return (this);
+        }
+        // Walk up until we reach an FDN that is already within the tree (or the top)
+        TreeNode<FDN> childNode = null;
+        ImmutableFDN current = fdn;
+        while (!current.isEmpty()) {
+            TreeNode<FDN> existingNode = treeNodes.get(current);
+            if (existingNode != null) {
+                if (childNode != null) {
+                    existingNode.addChild(childNode);
+                }
+                return (this);
+            }
+            TreeNode<FDN> newNode = new TreeNode<>(new FDN(current));
+            treeNodes.put(current, newNode);
+            if (childNode != null) {
+                newNode.addChild(childNode);
+            }
+            childNode = newNode;
+            current = current.getParentFDN();
+        }
+        topLevelNodes.add(childNode);
+        return (this);
+    }
+
+    public FDNTreeBuilder addAll(Iterable<FDN> fdns) {
+        if (fdns == null) {
+            throw (new IllegalArgumentException("null FDN collection passed to addAll()"));
+        }
+        for (FDN currentFDN : fdns) {
+            add(currentFDN);
+        }
+        return (this);
+    }
+
+    public FDNTreeBuilder addAll(Stream<FDN> fdns) {
+        if (fdns == null) {
+            throw (new IllegalArgumentException("null FDN stream passed to addAll()"));
+        }
+        fdns.forEachOrdered(this::add);
+        return (this);
+    }
+
+    public FDNTreeBuilder addAll(FDNTokenSet tokenSet) {
+        if (tokenSet == null) {
+            throw (new IllegalArgumentException("null FDNTokenSet passed to addAll()"));
+        }
+        for (FDNToken currentToken : tokenSet.getElements()) {
+            add(currentToken);
+        }
+        return (this);
+    }
+
+    /**
+     * @return The number of distinct FDNs (including synthesised intermediates)
+     * within the tree, excluding any synthesised (empty FDN) root.
+     */
+    public int size() {
+        return (treeNodes.size());
+    }
+
+    /**
+     * @return The Tree. Note that the TreeNodes are shared with this builder,
+     * so further add()s will modify previously built Trees.
+     */
+    public Tree<FDN> build() {
+        if (topLevelNodes.size() == 1) {
+            return (new Tree<>(topLevelNodes.iterator().next()));
+        }
+        TreeNode<FDN> root = new TreeNode<>(new FDN());
+        root.addChildren(topLevelNodes);
+        return (new Tree<>(root));
+    }
+}
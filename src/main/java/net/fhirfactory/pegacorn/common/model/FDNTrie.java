@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A prefix tree (trie) of values keyed by FDN, RDN by RDN. Along with exact
+ * get/put/remove it supports the hierarchical queries that FDNs are used for:
+ * the longest registered prefix of an FDN, and iteration over everything
+ * registered at or beneath a given FDN - the cost of which is proportional to
+ * the depth of the prefix plus the size of the answer (not of the trie).
+ *
+ * This class is not thread-safe.
+ *
+ * @param <V> The type of the stored values
+ */
+public class FDNTrie<V> {
+
+    private final TrieNode<V> root = new TrieNode<>(ImmutableFDN.EMPTY);
+    private int size;
+
+    public V put(FDN fdn, V value) {
+        return (put(checkKey(fdn).toImmutableFDN(), value));
+    }
+
+    public V put(ImmutableFDN fdn, V value) {
+        TrieNode<V> currentNode = root;
+        for (RDN currentRDN : checkKey(fdn).sharedRDNList()) {
+            currentNode = currentNode.getOrCreateChild(currentRDN);
+        }
+        V previousValue = currentNode.value;
+        if (!currentNode.hasValue) {
+            currentNode.hasValue = true;
+            size++;
+        }
+        currentNode.value = value;
+        return (previousValue);
+    }
+
+    public V get(FDN fdn) {
+        return (get(checkKey(fdn).toImmutableFDN()));
+    }
+
+    public V get(ImmutableFDN fdn) {
+        TrieNode<V> node = findNode(checkKey(fdn));
+        return ((node == null) ? null : node.value);
+    }
+
+    public boolean containsKey(FDN fdn) {
+        return (containsKey(checkKey(fdn).toImmutableFDN()));
+    }
+
+    public boolean containsKey(ImmutableFDN fdn) {
+        TrieNode<V> node = findNode(checkKey(fdn));
+        return (node != null && node.hasValue);
+    }
+
+    public V remove(FDN fdn) {
+        return (remove(checkKey(fdn).toImmutableFDN()));
+    }
+
+    /**
+     * Removes the value for the FDN, pruning any trie nodes that are left with
+     * neither a value nor children.
+     */
+    public V remove(ImmutableFDN fdn) {
+        List<RDN> rdnList = checkKey(fdn).sharedRDNList();
+        List<TrieNode<V>> path = new ArrayList<>(rdnList.size() + 1);
+        path.add(root);
+        for (RDN currentRDN : rdnList) {
+            TrieNode<V> child = path.get(path.size() - 1).getChild(currentRDN);
+            if (child == null) {
+                return (null);
+            }
+            path.add(child);
+        }
+        TrieNode<V> node = path.get(rdnList.size());
+        if (!node.hasValue) {
+            return (null);
+        }
+        V previousValue = node.value;
+        node.value = null;
+        node.hasValue = false;
+        size--;
+        for (int counter = rdnList.size(); counter > 0 && path.get(counter).isPrunable(); counter--) {
+            path.get(counter - 1).children.remove(rdnList.get(counter - 1));
+        }
+        return (previousValue);
+    }
+
+    /**
+     * @return The entry whose FDN is the longest (registered) prefix of - or is
+     * equal to - the given FDN, or null if there is none.
+     */
+    public Map.Entry<ImmutableFDN, V> longestPrefixMatch(FDN fdn) {
+        return (longestPrefixMatch(checkKey(fdn).toImmutableFDN()));
+    }
+
+    public Map.Entry<ImmutableFDN, V> longestPrefixMatch(ImmutableFDN fdn) {
+        TrieNode<V> currentNode = root;
+        TrieNode<V> bestNode = root.hasValue ? root : null;
+        for (RDN currentRDN : checkKey(fdn).sharedRDNList()) {
+            currentNode = currentNode.getChild(currentRDN);
+            if (currentNode == null) {
+                break;
+            }
+            if (currentNode.hasValue) {
+                bestNode = currentNode;
+            }
+        }
+        return ((bestNode == null) ? null : bestNode.toEntry());
+    }
+
+    /**
+     * @return An iterator over the entries at, or beneath, the given FDN (in
+     * depth-first order).
+     */
+    public Iterator<Map.Entry<ImmutableFDN, V>> descendants(FDN prefix) {
+        return (descendants(checkKey(prefix).toImmutableFDN()));
+    }
+
+    public Iterator<Map.Entry<ImmutableFDN, V>> descendants(ImmutableFDN prefix) {
+        return (new SubtreeIterator<>(findNode(checkKey(prefix))));
+    }
+
+    public int size() {
+        return (size);
+    }
+
+    public boolean isEmpty() {
+        return (size == 0);
+    }
+
+    public void clear() {
+        root.children = null;
+        root.value = null;
+        root.hasValue = false;
+        size = 0;
+    }
+
+    /**
+     * @return A (new) Tree with a TreeNode per trie node, where the node data is
+     * the FDN of that node. Intermediate (value-less) nodes are included.
+     */
+    public Tree<ImmutableFDN> toTree() {
+        TreeNode<ImmutableFDN> rootTreeNode = new TreeNode<>(root.fdn);
+        Deque<TrieNode<V>> pendingTrieNodes = new ArrayDeque<>();
+        Deque<TreeNode<ImmutableFDN>> pendingTreeNodes = new ArrayDeque<>();
+        pendingTrieNodes.push(root);
+        pendingTreeNodes.push(rootTreeNode);
+        while (!pendingTrieNodes.isEmpty()) {
+            TrieNode<V> trieNode = pendingTrieNodes.pop();
+            TreeNode<ImmutableFDN> treeNode = pendingTreeNodes.pop();
+            if (trieNode.children != null) {
+                for (TrieNode<V> childTrieNode : trieNode.children.values()) {
+                    pendingTrieNodes.push(childTrieNode);
+                    pendingTreeNodes.push(treeNode.addChild(new TreeNode<>(childTrieNode.fdn)));
+                }
+            }
+        }
+        return (new Tree<>(rootTreeNode));
+    }
+
+    private TrieNode<V> findNode(ImmutableFDN fdn) {
+        TrieNode<V> currentNode = root;
+        for (RDN currentRDN : fdn.sharedRDNList()) {
+            currentNode = currentNode.getChild(currentRDN);
+            if (currentNode == null) {
+                return (null);
+            }
+        }
+        return (currentNode);
+    }
+
+    private static <K> K checkKey(K key) {
+        if (key == null) {
+            throw (new IllegalArgumentException("null FDN passed to FDNTrie"));
+        }
+        return (key);
+    }
+
+    private static final class TrieNode<V> {
+        private final ImmutableFDN fdn;
+        private HashMap<RDN, TrieNode<V>> children;
+        private V value;
+        private boolean hasValue;
+
+        TrieNode(ImmutableFDN fdn) {
+            this.fdn = fdn;
+        }
+
+        TrieNode<V> getChild(RDN rdn) {
+            return ((children == null) ? null : children.get(rdn));
+        }
+
+        TrieNode<V> getOrCreateChild(RDN rdn) {
+            if (children == null) {
+                children = new HashMap<>(4);
+            }
+            TrieNode<V> child = children.get(rdn);
+            if (child == null) {
+                child = new TrieNode<>(fdn.append(rdn));
+                children.put(child.fdn.sharedUnqualifiedRDN(), child);
+            }
+            return (child);
+        }
+
+        boolean isPrunable() {
+            return (!hasValue && (children == null || children.isEmpty()));
+        }
+
+        Map.Entry<ImmutableFDN, V> toEntry() {
+            return (new AbstractMap.SimpleImmutableEntry<>(fdn, value));
+        }
+    }
+
+    private static final class SubtreeIterator<V> implements Iterator<Map.Entry<ImmutableFDN, V>> {
+        private final Deque<TrieNode<V>> pendingNodes = new ArrayDeque<>();
+        private TrieNode<V> nextNode;
+
+        SubtreeIterator(TrieNode<V> subtreeRoot) {
+            if (subtreeRoot != null) {
+                pendingNodes.push(subtreeRoot);
+            }
+            advance();
+        }
+
+        private void advance() {
+            nextNode = null;
+            while (nextNode == null && !pendingNodes.isEmpty()) {
+                TrieNode<V> currentNode = pendingNodes.pop();
+                if (currentNode.children != null) {
+                    for (TrieNode<V> child : currentNode.children.values()) {
+                        pendingNodes.push(child);
+                    }
+                }
+                if (currentNode.hasValue) {
+                    nextNode = currentNode;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (nextNode != null);
+        }
+
+        @Override
+        public Map.Entry<ImmutableFDN, V> next() {
+            if (nextNode == null) {
+                throw (new NoSuchElementException());
+            }
+            Map.Entry<ImmutableFDN, V> entry = nextNode.toEntry();
+            advance();
+            return (entry);
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable FDN, stored as a persistent (linked) prefix: each ImmutableFDN
+ * holds its "Least Significant" RDN and a reference to its Parent FDN. As such,
+ * getParentFDN() and append() are O(1) and all the FDNs along an ancestor chain
+ * share the same underlying nodes.
+ *
+ * The derived values (token, toString, unqualified token) are built on first
+ * use and cached, as the content can never change.
+ *
+ * ImmutableFDNs are ordered RDN by RDN, as per FDNToken.
+ *
+ * Note that the RDNs returned from an ImmutableFDN are the ones held within it
+ * and must not be modified.
+ */
+public final class ImmutableFDN implements Comparable<ImmutableFDN> {
+
+    public static final ImmutableFDN EMPTY = new ImmutableFDN();
+
+    private static final String FDN_TO_STRING_PREFIX = "{FDN:";
+    private static final String FDN_TO_STRING_SUFFIX = "}";
+
+    private final ImmutableFDN parent;
+    private final RDN rdn;
+    private final int depth;
+    private final long hash64;
+
+    private volatile FDNToken token;
+    private volatile String fdnToString;
+    private volatile String unqualifiedToken;
+    private volatile QualifierIndex qualifierIndex;
+
+    private ImmutableFDN() {
+        this.parent = null;
+        this.rdn = null;
+        this.depth = 0;
+        this.hash64 = FDNTokenCodec.HASH64_SEED;
+    }
+
+    private ImmutableFDN(ImmutableFDN parent, RDN rdn) {
+        this.parent = parent;
+        this.rdn = rdn;
+        this.depth = parent.depth + 1;
+        byte[] rdnBytes = rdn.getToken().encoded();
+        this.hash64 = FDNTokenCodec.hash64(parent.hash64, rdnBytes, 1, rdnBytes.length - 1);
+    }
+
+    /**
+     * Builds an ImmutableFDN from an (ordered, "Most Significant" first) list of RDNs.
+     */
+    public static ImmutableFDN of(List<RDN> rdnList) {
+        ImmutableFDN current = EMPTY;
+        for (RDN currentRDN : rdnList) {
+            current = current.append(currentRDN);
+        }
+        return (current);
+    }
+
+    /**
+     * Builds an ImmutableFDN directly from an FDNToken.
+     */
+    public static ImmutableFDN of(FDNToken token) {
+        if (token == null) {
+            throw (new IllegalArgumentException("null FDNToken passed to of()"));
+        }
+        ImmutableFDN current = EMPTY;
+        for (RDN currentRDN : FDNTokenCodec.decodeFDN(token.encoded())) {
+            current = current.appendOwned(currentRDN);
+        }
+        current.token = new FDNToken(token).freeze();
+        return (current);
+    }
+
+    /**
+     * @return A new ImmutableFDN with (a copy of) the RDN appended as the
+     * "Least Significant" member. This ImmutableFDN is shared as its parent.
+     */
+    public ImmutableFDN append(RDN toBeAddedRDN) {
+        if (toBeAddedRDN == null) {
+            throw (new IllegalArgumentException("Empty RDN passed to append"));
+        }
+        return (new ImmutableFDN(this, new RDN(toBeAddedRDN)));
+    }
+
+    /**
+     * Appends an RDN that is not (and will not be) referenced anywhere else, so
+     * no defensive copy is needed.
+     */
+    ImmutableFDN appendOwned(RDN toBeAddedRDN) {
+        return (new ImmutableFDN(this, toBeAddedRDN));
+    }
+
+    public ImmutableFDN append(ImmutableFDN additionalFDN) {
+        if (additionalFDN == null || additionalFDN.isEmpty()) {
+            return (this);
+        }
+        if (this.isEmpty()) {
+            return (additionalFDN);
+        }
+        ImmutableFDN current = this;
+        for (RDN currentRDN : additionalFDN.sharedRDNList()) {
+            current = current.appendOwned(currentRDN);
+        }
+        return (current);
+    }
+
+    /**
+     * @return The "Parent" FDN (i.e. with the "Least Significant" member
+     * removed), EMPTY for a single RDN FDN or null for the EMPTY FDN.
+     */
+    public ImmutableFDN getParentFDN() {
+        return (this.parent);
+    }
+
+    /**
+     * @return The ancestor (or this) FDN containing the first rdnCount RDNs.
+     */
+    public ImmutableFDN getAncestor(int rdnCount) {
+        if (rdnCount < 0 || rdnCount > this.depth) {
+            throw (new IndexOutOfBoundsException("rdnCount --> " + rdnCount + ", FDN depth --> " + this.depth));
+        }
+        ImmutableFDN current = this;
+        while (current.depth > rdnCount) {
+            current = current.parent;
+        }
+        return (current);
+    }
+
+    /**
+     * @return true if this FDN is equal to, or a descendant of, the prefix FDN.
+     */
+    public boolean startsWith(ImmutableFDN prefix) {
+        if (prefix == null || prefix.depth > this.depth) {
+            return (false);
+        }
+        return (getAncestor(prefix.depth).equals(prefix));
+    }
+
+    /**
+     * RDNs can still be modified, and the ones held here are shared with every
+     * FDN built on this one, so the public accessors hand out copies (which
+     * share the encoded token, so are cheap).
+     *
+     * @return A copy of the "Least Significant" RDN, or null for the EMPTY FDN.
+     */
+    public RDN getUnqualifiedRDN() {
+        return (copyOf(this.rdn));
+    }
+
+    /**
+     * @return The "Least Significant" RDN itself, for callers within this
+     * package that only read it.
+     */
+    RDN sharedUnqualifiedRDN() {
+        return (this.rdn);
+    }
+
+    /**
+     * @return A copy of the RDN at the index ("Most Significant" first).
+     */
+    public RDN getRDN(int index) {
+        if (index < 0 || index >= this.depth) {
+            throw (new IndexOutOfBoundsException("index --> " + index + ", FDN depth --> " + this.depth));
+        }
+        return (new RDN(getAncestor(index + 1).rdn));
+    }
+
+    /**
+     * @return (A copy of) the first RDN with the given Qualifier, or null if
+     * there is none. This is a (constant time) lookup in the qualifier index,
+     * which is built on first use.
+     */
+    public RDN extractRDNViaQualifier(String qualifier) {
+        if (qualifier == null) {
+            throw (new IllegalArgumentException("null qualifier passed to extractRDNViaQualifier()"));
+        }
+        return (copyOf(getQualifierIndex().lookup(FDNSymbolTable.getDefaultTable().lookupSymbol(qualifier))));
+    }
+
+    /**
+     * As per extractRDNViaQualifier(String), but with the Qualifier given as
+     * its id within FDNSymbolTable.getDefaultTable() - so callers can resolve
+     * the Qualifiers they use once.
+     */
+    public RDN extractRDNViaQualifier(int qualifierSymbol) {
+        return (copyOf(getQualifierIndex().lookup(qualifierSymbol)));
+    }
+
+    /**
+     * @return (A copy of) the first RDN for each of the Qualifiers (in the same
+     * order), with null for any Qualifier not present.
+     */
+    public RDN[] extractRDNsViaQualifiers(String... qualifiers) {
+        if (qualifiers == null) {
+            throw (new IllegalArgumentException("null qualifiers passed to extractRDNsViaQualifiers()"));
+        }
+        QualifierIndex currentIndex = getQualifierIndex();
+        FDNSymbolTable symbolTable = FDNSymbolTable.getDefaultTable();
+        RDN[] extractedRDNs = new RDN[qualifiers.length];
+        for (int counter = 0; counter < qualifiers.length; counter++) {
+            if (qualifiers[counter] == null) {
+                throw (new IllegalArgumentException("null qualifier passed to extractRDNsViaQualifiers()"));
+            }
+            extractedRDNs[counter] = copyOf(currentIndex.lookup(symbolTable.lookupSymbol(qualifiers[counter])));
+        }
+        return (extractedRDNs);
+    }
+
+    private QualifierIndex getQualifierIndex() {
+        QualifierIndex currentIndex = this.qualifierIndex;
+        if (currentIndex == null) {
+            currentIndex = new QualifierIndex(sharedRDNList());
+            this.qualifierIndex = currentIndex;
+        }
+        return (currentIndex);
+    }
+
+    public int getRDNCount() {
+        return (this.depth);
+    }
+
+    public boolean isEmpty() {
+        return (this.depth == 0);
+    }
+
+    /**
+     * @return An (unmodifiable) list of copies of the RDNs, "Most Significant"
+     * first.
+     */
+    public List<RDN> getRDNList() {
+        RDN[] rdnArray = new RDN[this.depth];
+        ImmutableFDN current = this;
+        for (int counter = this.depth - 1; counter >= 0; counter--) {
+            rdnArray[counter] = new RDN(current.rdn);
+            current = current.parent;
+        }
+        return (Collections.unmodifiableList(Arrays.asList(rdnArray)));
+    }
+
+    /**
+     * @return An (unmodifiable) list of the RDNs themselves, for callers within
+     * this package that only read them.
+     */
+    List<RDN> sharedRDNList() {
+        RDN[] rdnArray = new RDN[this.depth];
+        ImmutableFDN current = this;
+        for (int counter = this.depth - 1; counter >= 0; counter--) {
+            rdnArray[counter] = current.rdn;
+            current = current.parent;
+        }
+        return (Collections.unmodifiableList(Arrays.asList(rdnArray)));
+    }
+
+    private static RDN copyOf(RDN rdn) {
+        return ((rdn == null) ? null : new RDN(rdn));
+    }
+
+    /**
+     * @return The (precomputed) 64 bit hash, which is built incrementally from
+     * the parent's hash and agrees with getToken().getHash64().
+     */
+    public long getHash64() {
+        return (this.hash64);
+    }
+
+    /**
+     * @return The (cached) FDNToken. As it is shared, it cannot be modified; use
+     * new FDNToken(token) to obtain a modifiable copy.
+     */
+    public FDNToken getToken() {
+        FDNToken currentToken = this.token;
+        if (currentToken == null) {
+            currentToken = FDNToken.fromTrustedBytes(FDNTokenCodec.encodeFDN(sharedRDNList())).freeze();
+            this.token = currentToken;
+        }
+        return (currentToken);
+    }
+
+    public String getUnqualifiedToken() {
+        String currentUnqualifiedToken = this.unqualifiedToken;
+        if (currentUnqualifiedToken == null) {
+            StringBuilder unqualifiedTokenBuilder = new StringBuilder();
+            List<RDN> rdnList = sharedRDNList();
+            for (int counter = 0; counter < this.depth; counter++) {
+                if (counter > 0) {
+                    unqualifiedTokenBuilder.append('.');
+                }
+                unqualifiedTokenBuilder.append(rdnList.get(counter).getValue().replace('.', '_'));
+            }
+            currentUnqualifiedToken = unqualifiedTokenBuilder.toString();
+            this.unqualifiedToken = currentUnqualifiedToken;
+        }
+        return (currentUnqualifiedToken);
+    }
+
+    public String getID() {
+        StringBuilder idBuilder = new StringBuilder();
+        List<RDN> rdnList = sharedRDNList();
+        for (int counter = 0; counter < this.depth; counter++) {
+            RDN currentRDN = rdnList.get(counter);
+            if (counter > 0) {
+                idBuilder.append('.');
+            }
+            idBuilder.append(currentRDN.getQualifier()).append('=').append(currentRDN.getValue());
+        }
+        return (idBuilder.toString());
+    }
+
+    /**
+     * @return A new (mutable) FDN with the same content.
+     */
+    public FDN toFDN() {
+        return (new FDN(this));
+    }
+
+    /**
+     * A small (open addressing) map from Qualifier symbol id to the first RDN
+     * with that Qualifier. Qualifier ids come from the default FDNSymbolTable,
+     * so a lookup is an int hash probe rather than a scan of Qualifier strings.
+     */
+    private static final class QualifierIndex {
+        private final int[] qualifierSymbols;
+        private final RDN[] rdns;
+        private final int mask;
+
+        QualifierIndex(List<RDN> rdnList) {
+            int capacity = Integer.highestOneBit(Math.max(2, rdnList.size()) * 2 - 1) << 1;
+            this.qualifierSymbols = new int[capacity];
+            this.rdns = new RDN[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(qualifierSymbols, FDNSymbolTable.NO_SYMBOL);
+            FDNSymbolTable symbolTable = FDNSymbolTable.getDefaultTable();
+            for (RDN currentRDN : rdnList) {
+                int qualifierSymbol = symbolTable.getOrCreateSymbol(currentRDN.getQualifier());
+                int slot = qualifierSymbol & mask;
+                while (qualifierSymbols[slot] != FDNSymbolTable.NO_SYMBOL && qualifierSymbols[slot] != qualifierSymbol) {
+                    slot = (slot + 1) & mask;
+                }
+                // Only the first RDN with a given Qualifier is indexed
+                if (qualifierSymbols[slot] == FDNSymbolTable.NO_SYMBOL) {
+                    qualifierSymbols[slot] = qualifierSymbol;
+                    rdns[slot] = currentRDN;
+                }
+            }
+        }
+
+        RDN lookup(int qualifierSymbol) {
+            if (qualifierSymbol < 0) {
+                return (null);
+            }
+            int slot = qualifierSymbol & mask;
+            while (qualifierSymbols[slot] != FDNSymbolTable.NO_SYMBOL) {
+                if (qualifierSymbols[slot] == qualifierSymbol) {
+                    return (rdns[slot]);
+                }
+                slot = (slot + 1) & mask;
+            }
+            return (null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        String currentToString = this.fdnToString;
+        if (currentToString == null) {
+            // Same layout as the (original) FDN::toString(), i.e. {FDN:[rdn0, rdn1, ...]}
+            StringBuilder toStringBuilder = new StringBuilder(FDN_TO_STRING_PREFIX).append('[');
+            List<RDN> rdnList = sharedRDNList();
+            for (int counter = 0; counter < this.depth; counter++) {
+                if (counter > 0) {
+                    toStringBuilder.append(", ");
+                }
+                toStringBuilder.append(rdnList.get(counter));
+            }
+            currentToString = toStringBuilder.append(']').append(FDN_TO_STRING_SUFFIX).toString();
+            this.fdnToString = currentToString;
+        }
+        return (currentToString);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ImmutableFDN other = (ImmutableFDN) o;
+        if (this.depth != other.depth || this.hash64 != other.hash64) {
+            return (false);
+        }
+        // Walk up both chains, stopping as soon as we reach a shared ancestor
+        ImmutableFDN thisCurrent = this;
+        ImmutableFDN otherCurrent = other;
+        while (thisCurrent != otherCurrent) {
+            if (!Arrays.equals(thisCurrent.rdn.getToken().encoded(), otherCurrent.rdn.getToken().encoded())) {
+                return (false);
+            }
+            thisCurrent = thisCurrent.parent;
+            otherCurrent = otherCurrent.parent;
+        }
+        return (true);
+    }
+
+    @Override
+    public int hashCode() {
+        return (FDNTokenCodec.foldHash64(this.hash64));
+    }
+
+    @Override
+    public int compareTo(ImmutableFDN other) {
+        if (this == other) {
+            return (0);
+        }
+        return (FDNTokenCodec.compareFDNTokens(this.getToken().encoded(), other.getToken().encoded()));
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only, persistent registry of FDNs held within a memory-mapped file,
+ * so that a (warm) restart maps the file rather than re-building and
+ * re-tokenising every FDN.
+ *
+ * The FDNs are held dictionary-encoded (as per PackedFDN), with the symbols
+ * sorted by their UTF-8 bytes and the records sorted by their symbol ids - so
+ * all the FDNs under a given prefix are contiguous and prefix iteration is a
+ * binary search followed by a sequential scan. Lookup is via the (precomputed)
+ * 64 bit FDN hash. Lookups and iteration read directly from the mapped pages;
+ * symbol strings are decoded on first use.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   header        := MAGIC VERSION symbolCount recordCount symbolDataLength recordDataLength crc32(body)
+ *   body          := symbolOffsets[symbolCount + 1] symbolData (padded to 8)
+ *                    recordHashes[recordCount] (long) hashOrder[recordCount]
+ *                    recordOffsets[recordCount + 1] recordData[recordDataLength] (int)
+ * </pre>
+ * Files are limited to 2GB (i.e. a single MappedByteBuffer). Writes go to a
+ * temporary file which is then moved into place, so a reader never sees a
+ * partially written registry.
+ */
+public final class MappedFDNRegistry implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFDNRegistry.class);
+
+    private static final int MAGIC = 0x50464452; // "PFDR"
+    private static final int VERSION_1 = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int CRC_POSITION = 24;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int symbolCount;
+    private final int recordCount;
+    private final int symbolOffsetsPosition;
+    private final int symbolDataPosition;
+    private final int recordHashesPosition;
+    private final int hashOrderPosition;
+    private final int recordOffsetsPosition;
+    private final int recordDataPosition;
+    private final String[] symbolCache;
+
+    private MappedFDNRegistry(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw (new IOException("Not an FDN registry file"));
+        }
+        if (buffer.getInt(4) != VERSION_1) {
+            throw (new IOException("Unsupported FDN registry version --> " + buffer.getInt(4)));
+        }
+        this.symbolCount = buffer.getInt(8);
+        this.recordCount = buffer.getInt(12);
+        int symbolDataLength = buffer.getInt(16);
+        int recordDataLength = buffer.getInt(20);
+        this.symbolOffsetsPosition = HEADER_SIZE;
+        this.symbolDataPosition = symbolOffsetsPosition + ((symbolCount + 1) * 4);
+        this.recordHashesPosition = align8(symbolDataPosition + symbolDataLength);
+        this.hashOrderPosition = recordHashesPosition + (recordCount * 8);
+        this.recordOffsetsPosition = hashOrderPosition + (recordCount * 4);
+        this.recordDataPosition = recordOffsetsPosition + ((recordCount + 1) * 4);
+        if (symbolCount < 0 || recordCount < 0 || buffer.capacity() != recordDataPosition + (recordDataLength * 4)) {
+            throw (new IOException("FDN registry file is truncated or corrupt"));
+        }
+        CRC32 checksum = new CRC32();
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_SIZE);
+        checksum.update(body);
+        if (checksum.getValue() != buffer.getLong(CRC_POSITION)) {
+            throw (new IOException("FDN registry checksum mismatch"));
+        }
+        this.symbolCache = new String[symbolCount];
+    }
+
+    /**
+     * Maps (read-only) and verifies an existing registry file.
+     */
+    public static MappedFDNRegistry open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            MappedFDNRegistry registry = new MappedFDNRegistry(channel, buffer);
+            LOG.debug(".open(): Mapped {} FDNs and {} symbols from {}", registry.recordCount, registry.symbolCount, file);
+            return (registry);
+        } catch (IOException | RuntimeException openEx) {
+            channel.close();
+            throw openEx;
+        }
+    }
+
+    public static void write(Path file, Iterable<FDN> fdns) throws IOException {
+        if (fdns == null) {
+            throw (new IllegalArgumentException("null FDN collection passed to write()"));
+        }
+        ArrayList<ImmutableFDN> fdnList = new ArrayList<>();
+        for (FDN currentFDN : fdns) {
+            fdnList.add(currentFDN.toImmutableFDN());
+        }
+        writeImmutableFDNs(file, fdnList);
+    }
+
+    public static void write(Path file, FDNTokenSet tokenSet) throws IOException {
+        if (tokenSet == null) {
+            throw (new IllegalArgumentException("null FDNTokenSet passed to write()"));
+        }
+        ArrayList<ImmutableFDN> fdnList = new ArrayList<>();
+        for (FDNToken currentToken : tokenSet.getElements()) {
+            fdnList.add(ImmutableFDN.of(currentToken));
+        }
+        writeImmutableFDNs(file, fdnList);
+    }
+
+    private static void writeImmutableFDNs(Path file, ArrayList<ImmutableFDN> fdnList) throws IOException {
+        // Assign the symbol ids in (unsigned) UTF-8 byte order
+        HashMap<String, byte[]> symbolBytes = new HashMap<>();
+        for (ImmutableFDN currentFDN : fdnList) {
+            for (RDN currentRDN : currentFDN.sharedRDNList()) {
+                symbolBytes.computeIfAbsent(currentRDN.getQualifier(), symbol -> symbol.getBytes(StandardCharsets.UTF_8));
+                symbolBytes.computeIfAbsent(currentRDN.getValue(), symbol -> symbol.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        ArrayList<String> symbols = new ArrayList<>(symbolBytes.keySet());
+        symbols.sort((first, second) -> compareUnsigned(symbolBytes.get(first), symbolBytes.get(second)));
+        HashMap<String, Integer> symbolIds = new HashMap<>();
+        int symbolDataLength = 0;
+        for (int counter = 0; counter < symbols.size(); counter++) {
+            symbolIds.put(symbols.get(counter), counter);
+            symbolDataLength += symbolBytes.get(symbols.get(counter)).length;
+        }
+        // Pack, de-duplicate and sort the records
+        HashSet<ImmutableFDN> seenFDNs = new HashSet<>();
+        ArrayList<int[]> records = new ArrayList<>();
+        HashMap<int[], Long> recordHashes = new HashMap<>();
+        int recordDataLength = 0;
+        for (ImmutableFDN currentFDN : fdnList) {
+            if (!seenFDNs.add(currentFDN)) {
+                continue;
+            }
+            int[] record = new int[currentFDN.getRDNCount() * 2];
+            int position = 0;
+            for (RDN currentRDN : currentFDN.sharedRDNList()) {
+                record[position++] = symbolIds.get(currentRDN.getQualifier());
+                record[position++] = symbolIds.get(currentRDN.getValue());
+            }
+            records.add(record);
+            recordHashes.put(record, currentFDN.getHash64());
+            recordDataLength += record.length;
+        }
+        records.sort(MappedFDNRegistry::compareRecords);
+        int recordCount = records.size();
+        Integer[] hashOrder = new Integer[recordCount];
+        for (int counter = 0; counter < recordCount; counter++) {
+            hashOrder[counter] = counter;
+        }
+        Arrays.sort(hashOrder, Comparator.comparingLong(recordNumber -> recordHashes.get(records.get(recordNumber))));
+
+        int recordHashesPosition = align8(HEADER_SIZE + ((symbols.size() + 1) * 4) + symbolDataLength);
+        long fileSize = recordHashesPosition + (recordCount * 12L) + ((recordCount + 1) * 4L) + (recordDataLength * 4L);
+        if (fileSize > Integer.MAX_VALUE) {
+            throw (new IllegalArgumentException("FDN registry would exceed 2GB --> " + fileSize + " bytes"));
+        }
+        ByteBuffer output = ByteBuffer.allocate((int) fileSize);
+        output.putInt(MAGIC).putInt(VERSION_1).putInt(symbols.size()).putInt(recordCount)
+                .putInt(symbolDataLength).putInt(recordDataLength).putLong(0L);
+        int symbolOffset = 0;
+        for (String currentSymbol : symbols) {
+            output.putInt(symbolOffset);
+            symbolOffset += symbolBytes.get(currentSymbol).length;
+        }
+        output.putInt(symbolOffset);
+        for (String currentSymbol : symbols) {
+            output.put(symbolBytes.get(currentSymbol));
+        }
+        output.position(recordHashesPosition);
+        for (int[] currentRecord : records) {
+            output.putLong(recordHashes.get(currentRecord));
+        }
+        for (Integer recordNumber : hashOrder) {
+            output.putInt(recordNumber);
+        }
+        int recordOffset = 0;
+        for (int[] currentRecord : records) {
+            output.putInt(recordOffset);
+            recordOffset += currentRecord.length;
+        }
+        output.putInt(recordOffset);
+        for (int[] currentRecord : records) {
+            for (int symbolId : currentRecord) {
+                output.putInt(symbolId);
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(output.array(), HEADER_SIZE, output.capacity() - HEADER_SIZE);
+        output.putLong(CRC_POSITION, checksum.getValue());
+        output.rewind();
+
+        Path absoluteFile = file.toAbsolutePath();
+        Path temporaryFile = Files.createTempFile(absoluteFile.getParent(), absoluteFile.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel outputChannel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (output.hasRemaining()) {
+                    outputChannel.write(output);
+                }
+                outputChannel.force(true);
+            }
+            Files.move(temporaryFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+        LOG.debug(".write(): Wrote {} FDNs and {} symbols to {}", recordCount, symbols.size(), file);
+    }
+
+    //
+    // Lookup
+    //
+
+    public int size() {
+        return (recordCount);
+    }
+
+    public boolean isEmpty() {
+        return (recordCount == 0);
+    }
+
+    public boolean contains(FDN fdn) {
+        return (indexOf(fdn) >= 0);
+    }
+
+    public boolean contains(ImmutableFDN fdn) {
+        return (indexOf(fdn) >= 0);
+    }
+
+    public int indexOf(FDN fdn) {
+        if (fdn == null) {
+            return (-1);
+        }
+        return (indexOf(fdn.toImmutableFDN()));
+    }
+
+    /**
+     * @return The record number of the FDN within the registry, or -1 if it is
+     * not present.
+     */
+    public int indexOf(ImmutableFDN fdn) {
+        if (fdn == null) {
+            return (-1);
+        }
+        long hash64 = fdn.getHash64();
+        int[] packedFDN = null;
+        for (int hashPosition = firstHashPosition(hash64); hashPosition < recordCount; hashPosition++) {
+            int recordNumber = buffer.getInt(hashOrderPosition + (hashPosition * 4));
+            if (getHash64(recordNumber) != hash64) {
+                break;
+            }
+            if (packedFDN == null) {
+                packedFDN = resolveSymbols(fdn);
+                if (packedFDN == null) {
+                    return (-1);
+                }
+            }
+            if (compareRecord(recordNumber, packedFDN, packedFDN.length) == 0 && getRecordLength(recordNumber) == packedFDN.length) {
+                return (recordNumber);
+            }
+        }
+        return (-1);
+    }
+
+    /**
+     * @return The record number of an FDN with the given hash, or -1 if there
+     * is none.
+     */
+    public int indexOfHash(long hash64) {
+        int hashPosition = firstHashPosition(hash64);
+        if (hashPosition < recordCount) {
+            int recordNumber = buffer.getInt(hashOrderPosition + (hashPosition * 4));
+            if (getHash64(recordNumber) == hash64) {
+                return (recordNumber);
+            }
+        }
+        return (-1);
+    }
+
+    public long getHash64(int recordNumber) {
+        checkRecordNumber(recordNumber);
+        return (buffer.getLong(recordHashesPosition + (recordNumber * 8)));
+    }
+
+    public ImmutableFDN getFDN(int recordNumber) {
+        checkRecordNumber(recordNumber);
+        int start = recordDataPosition + (buffer.getInt(recordOffsetsPosition + (recordNumber * 4)) * 4);
+        int end = recordDataPosition + (buffer.getInt(recordOffsetsPosition + ((recordNumber + 1) * 4)) * 4);
+        ImmutableFDN current = ImmutableFDN.EMPTY;
+        for (int position = start; position < end; position += 8) {
+            current = current.appendOwned(new RDN(getSymbol(buffer.getInt(position)), getSymbol(buffer.getInt(position + 4))));
+        }
+        return (current);
+    }
+
+    /**
+     * @return An iterator over the FDNs equal to, or descendants of, the prefix
+     * (in registry order, i.e. each FDN before its descendants).
+     */
+    public Iterator<ImmutableFDN> descendants(FDN prefix) {
+        if (prefix == null) {
+            throw (new IllegalArgumentException("null prefix passed to descendants()"));
+        }
+        return (descendants(prefix.toImmutableFDN()));
+    }
+
+    public Iterator<ImmutableFDN> descendants(ImmutableFDN prefix) {
+        if (prefix == null) {
+            throw (new IllegalArgumentException("null prefix passed to descendants()"));
+        }
+        int[] packedPrefix = resolveSymbols(prefix);
+        if (packedPrefix == null) {
+            return (new PrefixIterator(null, recordCount));
+        }
+        int low = 0;
+        int high = recordCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareRecord(middle, packedPrefix, Integer.MAX_VALUE) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return (new PrefixIterator(packedPrefix, low));
+    }
+
+    /**
+     * Closes the underlying file channel. The (read-only) mapping itself is
+     * released by the JVM once the registry is no longer referenced.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return ("MappedFDNRegistry{records=" + recordCount + ", symbols=" + symbolCount + "}");
+    }
+
+    //
+    // Helpers
+    //
+
+    private final class PrefixIterator implements Iterator<ImmutableFDN> {
+        private final int[] packedPrefix;
+        private int nextRecord;
+
+        private PrefixIterator(int[] packedPrefix, int firstRecord) {
+            this.packedPrefix = packedPrefix;
+            this.nextRecord = firstRecord;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (packedPrefix != null && nextRecord < recordCount
+                    && getRecordLength(nextRecord) >= packedPrefix.length
+                    && compareRecord(nextRecord, packedPrefix, packedPrefix.length) == 0);
+        }
+
+        @Override
+        public ImmutableFDN next() {
+            if (!hasNext()) {
+                throw (new NoSuchElementException());
+            }
+            return (getFDN(nextRecord++));
+        }
+    }
+
+    private void checkRecordNumber(int recordNumber) {
+        if (recordNumber < 0 || recordNumber >= recordCount) {
+            throw (new IndexOutOfBoundsException("recordNumber --> " + recordNumber + ", size --> " + recordCount));
+        }
+    }
+
+    private int getRecordLength(int recordNumber) {
+        return (buffer.getInt(recordOffsetsPosition + ((recordNumber + 1) * 4)) - buffer.getInt(recordOffsetsPosition + (recordNumber * 4)));
+    }
+
+    private int firstHashPosition(long hash64) {
+        int low = 0;
+        int high = recordCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long middleHash = buffer.getLong(recordHashesPosition + (buffer.getInt(hashOrderPosition + (middle * 4)) * 8));
+            if (middleHash < hash64) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return (low);
+    }
+
+    /**
+     * Compares the (first limit symbols of the) record against the packed symbols.
+     */
+    private int compareRecord(int recordNumber, int[] packedSymbols, int limit) {
+        int start = recordDataPosition + (buffer.getInt(recordOffsetsPosition + (recordNumber * 4)) * 4);
+        int recordLength = getRecordLength(recordNumber);
+        int compareLength = Math.min(Math.min(recordLength, packedSymbols.length), limit);
+        for (int counter = 0; counter < compareLength; counter++) {
+            int difference = Integer.compare(buffer.getInt(start + (counter * 4)), packedSymbols[counter]);
+            if (difference != 0) {
+                return (difference);
+            }
+        }
+        if (compareLength == limit) {
+            return (0);
+        }
+        return (Integer.compare(recordLength, packedSymbols.length));
+    }
+
+    /**
+     * @return The FDN as symbol ids of this registry, or null if any of its
+     * qualifiers/values are not present.
+     */
+    private int[] resolveSymbols(ImmutableFDN fdn) {
+        int[] packedSymbols = new int[fdn.getRDNCount() * 2];
+        ImmutableFDN current = fdn;
+        for (int position = packedSymbols.length - 2; position >= 0; position -= 2) {
+            RDN currentRDN = current.sharedUnqualifiedRDN();
+            packedSymbols[position] = findSymbol(currentRDN.getQualifier());
+            packedSymbols[position + 1] = findSymbol(currentRDN.getValue());
+            if (packedSymbols[position] < 0 || packedSymbols[position + 1] < 0) {
+                return (null);
+            }
+            current = current.getParentFDN();
+        }
+        return (packedSymbols);
+    }
+
+    private int findSymbol(String symbol) {
+        byte[] symbolBytes = symbol.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = symbolCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int difference = compareSymbol(middle, symbolBytes);
+            if (difference < 0) {
+                low = middle + 1;
+            } else if (difference > 0) {
+                high = middle - 1;
+            } else {
+                return (middle);
+            }
+        }
+        return (FDNSymbolTable.NO_SYMBOL);
+    }
+
+    private int compareSymbol(int symbolId, byte[] symbolBytes) {
+        int start = symbolDataPosition + buffer.getInt(symbolOffsetsPosition + (symbolId * 4));
+        int length = symbolDataPosition + buffer.getInt(symbolOffsetsPosition + ((symbolId + 1) * 4)) - start;
+        int compareLength = Math.min(length, symbolBytes.length);
+        for (int counter = 0; counter < compareLength; counter++) {
+            int difference = (buffer.get(start + counter) & 0xFF) - (symbolBytes[counter] & 0xFF);
+            if (difference != 0) {
+                return (difference);
+            }
+        }
+        return (length - symbolBytes.length);
+    }
+
+    private String getSymbol(int symbolId) {
+        String symbol = symbolCache[symbolId];
+        if (symbol == null) {
+            int start = symbolDataPosition + buffer.getInt(symbolOffsetsPosition + (symbolId * 4));
+            int end = symbolDataPosition + buffer.getInt(symbolOffsetsPosition + ((symbolId + 1) * 4));
+            byte[] symbolBytes = new byte[end - start];
+            ByteBuffer symbolView = buffer.duplicate();
+            symbolView.position(start);
+            symbolView.get(symbolBytes);
+            symbol = new String(symbolBytes, StandardCharsets.UTF_8);
+            // A benign race - any thread decoding the symbol produces an equal String
+            symbolCache[symbolId] = symbol;
+        }
+        return (symbol);
+    }
+
+    private static int align8(int position) {
+        return ((position + 7) & ~7);
+    }
+
+    private static int compareUnsigned(byte[] first, byte[] second) {
+        int compareLength = Math.min(first.length, second.length);
+        for (int counter = 0; counter < compareLength; counter++) {
+            int difference = (first[counter] & 0xFF) - (second[counter] & 0xFF);
+            if (difference != 0) {
+                return (difference);
+            }
+        }
+        return (first.length - second.length);
+    }
+
+    private static int compareRecords(int[] first, int[] second) {
+        int compareLength = Math.min(first.length, second.length);
+        for (int counter = 0; counter < compareLength; counter++) {
+            int difference = Integer.compare(first[counter], second[counter]);
+            if (difference != 0) {
+                return (difference);
+            }
+        }
+        return (Integer.compare(first.length, second.length));
+    }
+}
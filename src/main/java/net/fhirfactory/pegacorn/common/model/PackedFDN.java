@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.Arrays;
+
+/**
+ * A compact, immutable, dictionary-encoded FDN: the Qualifier and Value of each
+ * RDN are held as symbol ids (from an FDNSymbolTable) in a single packed int[]
+ * of the form [qualifier0, value0, qualifier1, value1, ...]. Equality and
+ * prefix checks are primitive array comparisons.
+ *
+ * PackedFDNs from different symbol tables are never equal. The getHash64()
+ * value is the same as that of the equivalent FDN / FDNToken.
+ */
+public final class PackedFDN {
+
+    private final FDNSymbolTable symbolTable;
+    private final int[] symbols;
+    private final long hash64;
+
+    PackedFDN(FDNSymbolTable symbolTable, int[] symbols, long hash64) {
+        this.symbolTable = symbolTable;
+        this.symbols = symbols;
+        this.hash64 = hash64;
+    }
+
+    public static PackedFDN of(FDN fdn, FDNSymbolTable symbolTable) {
+        if (fdn == null) {
+            throw (new IllegalArgumentException("null FDN passed to of()"));
+        }
+        return (of(fdn.toImmutableFDN(), symbolTable));
+    }
+
+    public static PackedFDN of(ImmutableFDN fdn, FDNSymbolTable symbolTable) {
+        if (fdn == null || symbolTable == null) {
+            throw (new IllegalArgumentException("null FDN or FDNSymbolTable passed to of()"));
+        }
+        int[] symbols = new int[fdn.getRDNCount() * 2];
+        ImmutableFDN current = fdn;
+        for (int position = symbols.length - 2; position >= 0; position -= 2) {
+            RDN currentRDN = current.sharedUnqualifiedRDN();
+            symbols[position] = symbolTable.getOrCreateSymbol(currentRDN.getQualifier());
+            symbols[position + 1] = symbolTable.getOrCreateSymbol(currentRDN.getValue());
+            current = current.getParentFDN();
+        }
+        return (new PackedFDN(symbolTable, symbols, fdn.getHash64()));
+    }
+
+    /**
+     * Builds a PackedFDN straight from the token content (no RDNs are built).
+     */
+    public static PackedFDN of(FDNToken token, FDNSymbolTable symbolTable) {
+        if (token == null || symbolTable == null) {
+            throw (new IllegalArgumentException("null FDNToken or FDNSymbolTable passed to of()"));
+        }
+        FDNTokenReader reader = new FDNTokenReader(token);
+        int[] symbols = new int[reader.getRDNCount() * 2];
+        int position = 0;
+        while (reader.next()) {
+            symbols[position++] = symbolTable.getOrCreateSymbol(reader.getQualifier());
+            symbols[position++] = symbolTable.getOrCreateSymbol(reader.getValue());
+        }
+        return (new PackedFDN(symbolTable, symbols, token.getHash64()));
+    }
+
+    public ImmutableFDN toImmutableFDN() {
+        ImmutableFDN current = ImmutableFDN.EMPTY;
+        for (int position = 0; position < symbols.length; position += 2) {
+            current = current.appendOwned(new RDN(getString(position), getString(position + 1)));
+        }
+        return (current);
+    }
+
+    public FDN toFDN() {
+        return (new FDN(toImmutableFDN()));
+    }
+
+    public FDNToken toToken() {
+        return (new FDNToken(toImmutableFDN().getToken()));
+    }
+
+    public FDNSymbolTable getSymbolTable() {
+        return (symbolTable);
+    }
+
+    public int getRDNCount() {
+        return (symbols.length / 2);
+    }
+
+    public boolean isEmpty() {
+        return (symbols.length == 0);
+    }
+
+    public int getQualifierSymbol(int rdnIndex) {
+        return (symbols[rdnIndex * 2]);
+    }
+
+    public int getValueSymbol(int rdnIndex) {
+        return (symbols[(rdnIndex * 2) + 1]);
+    }
+
+    public String getQualifier(int rdnIndex) {
+        return (getString(rdnIndex * 2));
+    }
+
+    public String getValue(int rdnIndex) {
+        return (getString((rdnIndex * 2) + 1));
+    }
+
+    /**
+     * @return A copy of the packed [qualifier, value, ...] symbol ids.
+     */
+    public int[] toSymbolArray() {
+        return (symbols.clone());
+    }
+
+    int[] symbols() {
+        return (symbols);
+    }
+
+    /**
+     * @return The "Parent" PackedFDN, or null if this FDN has fewer than two RDNs
+     * (as per FDN::getParentFDN()).
+     */
+    public PackedFDN getParentFDN() {
+        if (getRDNCount() <= 1) {
+            return (null);
+        }
+        int[] parentSymbols = Arrays.copyOf(symbols, symbols.length - 2);
+        return (new PackedFDN(symbolTable, parentSymbols, computeHash64(symbolTable, parentSymbols)));
+    }
+
+    /**
+     * @return true if this FDN is equal to, or a descendant of, the prefix FDN.
+     */
+    public boolean startsWith(PackedFDN prefix) {
+        if (prefix == null || prefix.symbolTable != this.symbolTable || prefix.symbols.length > this.symbols.length) {
+            return (false);
+        }
+        for (int position = 0; position < prefix.symbols.length; position++) {
+            if (this.symbols[position] != prefix.symbols[position]) {
+                return (false);
+            }
+        }
+        return (true);
+    }
+
+    public long getHash64() {
+        return (hash64);
+    }
+
+    private String getString(int position) {
+        return (symbolTable.getString(symbols[position]));
+    }
+
+    /**
+     * Computes the FDN hash (see FDNTokenCodec) for a set of packed symbols.
+     */
+    static long computeHash64(FDNSymbolTable symbolTable, int[] symbols) {
+        long hash = FDNTokenCodec.HASH64_SEED;
+        for (int position = 0; position < symbols.length; position += 2) {
+            byte[] rdnBytes = FDNTokenCodec.encodeRDN(symbolTable.getString(symbols[position]), symbolTable.getString(symbols[position + 1]));
+            hash = FDNTokenCodec.hash64(hash, rdnBytes, 1, rdnBytes.length - 1);
+        }
+        return (hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PackedFDN other = (PackedFDN) o;
+        return (this.hash64 == other.hash64 && this.symbolTable == other.symbolTable && Arrays.equals(this.symbols, other.symbols));
+    }
+
+    @Override
+    public int hashCode() {
+        return (FDNTokenCodec.foldHash64(hash64));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder toStringBuilder = new StringBuilder("{PackedFDN:[");
+        for (int position = 0; position < symbols.length; position += 2) {
+            if (position > 0) {
+                toStringBuilder.append(", ");
+            }
+            toStringBuilder.append("[RDN=(").append(getString(position)).append(RDN.RDN_SEPARATOR).append(getString(position + 1)).append(")]");
+        }
+        return (toStringBuilder.append("]}").toString());
+    }
+}
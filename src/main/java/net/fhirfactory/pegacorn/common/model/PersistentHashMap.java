@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.Arrays;
+
+/**
+ * A persistent (immutable) hash map: put() and remove() return a new map,
+ * leaving this one unchanged, and share all but the O(log32 n) nodes on the
+ * path to the changed entry. It is a hash array mapped trie - each level
+ * consumes 5 bits of the key's hash, with a bitmap recording which of the 32
+ * slots are occupied, and keys whose (full) hashes collide share a list node.
+ *
+ * Being immutable, it can be read by any number of threads without locking.
+ * Null keys are not supported.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+final class PersistentHashMap<K, V> {
+
+    private static final int BITS_PER_LEVEL = 5;
+    private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+
+    private static final PersistentHashMap<Object, Object> EMPTY = new PersistentHashMap<>(null, 0);
+
+    private final TrieNode<K, V> root;
+    private final int size;
+
+    private PersistentHashMap(TrieNode<K, V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return ((PersistentHashMap<K, V>) EMPTY);
+    }
+
+    int size() {
+        return (size);
+    }
+
+    boolean isEmpty() {
+        return (size == 0);
+    }
+
+    V get(Object key) {
+        if (root == null || key == null) {
+            return (null);
+        }
+        Leaf<K, V> leaf = root.find(hashOf(key), key, 0);
+        return ((leaf == null) ? null : leaf.value);
+    }
+
+    boolean containsKey(Object key) {
+        if (root == null || key == null) {
+            return (false);
+        }
+        return (root.find(hashOf(key), key, 0) != null);
+    }
+
+    /**
+     * @return A map with the key mapped to the value (or this map, if it
+     * already was).
+     */
+    PersistentHashMap<K, V> put(K key, V value) {
+        if (key == null) {
+            throw (new IllegalArgumentException("null key passed to put()"));
+        }
+        int hash = hashOf(key);
+        if (root == null) {
+            return (new PersistentHashMap<>(new Leaf<>(hash, key, value), 1));
+        }
+        SizeChange sizeChange = new SizeChange();
+        TrieNode<K, V> newRoot = root.put(hash, key, value, 0, sizeChange);
+        if (newRoot == root) {
+            return (this);
+        }
+        return (new PersistentHashMap<>(newRoot, size + sizeChange.delta));
+    }
+
+    /**
+     * @return A map without the key (or this map, if it had no such key).
+     */
+    PersistentHashMap<K, V> remove(Object key) {
+        if (root == null || key == null) {
+            return (this);
+        }
+        TrieNode<K, V> newRoot = root.remove(hashOf(key), key, 0);
+        if (newRoot == root) {
+            return (this);
+        }
+        return (new PersistentHashMap<>(newRoot, size - 1));
+    }
+
+    private static int hashOf(Object key) {
+        // Spread the higher bits down, as HashMap does, as the low bits pick the first level
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16));
+    }
+
+    private static int slotOf(int hash, int shift) {
+        return ((hash >>> shift) & LEVEL_MASK);
+    }
+
+    /**
+     * @return A node holding both (leaf or collision) nodes, which have
+     * different hashes, as from the given level.
+     */
+    private static <K, V> TrieNode<K, V> merge(TrieNode<K, V> first, int firstHash, TrieNode<K, V> second, int secondHash, int shift) {
+        int firstSlot = slotOf(firstHash, shift);
+        int secondSlot = slotOf(secondHash, shift);
+        if (firstSlot == secondSlot) {
+            TrieNode<K, V>[] children = newNodeArray(1);
+            children[0] = merge(first, firstHash, second, secondHash, shift + BITS_PER_LEVEL);
+            return (new BitmapNode<>(1 << firstSlot, children));
+        }
+        TrieNode<K, V>[] children = newNodeArray(2);
+        children[(firstSlot < secondSlot) ? 0 : 1] = first;
+        children[(firstSlot < secondSlot) ? 1 : 0] = second;
+        return (new BitmapNode<>((1 << firstSlot) | (1 << secondSlot), children));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K, V> TrieNode<K, V>[] newNodeArray(int length) {
+        return ((TrieNode<K, V>[]) new TrieNode[length]);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K, V> Leaf<K, V>[] newLeafArray(int length) {
+        return ((Leaf<K, V>[]) new Leaf[length]);
+    }
+
+    private static final class SizeChange {
+        private int delta;
+    }
+
+    //
+    // The trie nodes. put() and remove() return the node itself if nothing
+    // changed, and remove() returns null once a node is empty.
+    //
+
+    private abstract static class TrieNode<K, V> {
+        abstract Leaf<K, V> find(int hash, Object key, int shift);
+
+        abstract TrieNode<K, V> put(int hash, K key, V value, int shift, SizeChange sizeChange);
+
+        abstract TrieNode<K, V> remove(int hash, Object key, int shift);
+    }
+
+    private static final class Leaf<K, V> extends TrieNode<K, V> {
+        private final int hash;
+        private final K key;
+        private final V value;
+
+        Leaf(int hash, K key, V value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        Leaf<K, V> find(int hash, Object key, int shift) {
+            return ((this.hash == hash && this.key.equals(key)) ? this : null);
+        }
+
+        @Override
+        TrieNode<K, V> put(int hash, K key, V value, int shift, SizeChange sizeChange) {
+            if (this.hash == hash) {
+                if (this.key.equals(key)) {
+                    return ((this.value == value) ? this : new Leaf<>(hash, key, value));
+                }
+                sizeChange.delta = 1;
+                Leaf<K, V>[] leaves = newLeafArray(2);
+                leaves[0] = this;
+                leaves[1] = new Leaf<>(hash, key, value);
+                return (new CollisionNode<>(hash, leaves));
+            }
+            sizeChange.delta = 1;
+            return (merge(this, this.hash, new Leaf<>(hash, key, value), hash, shift));
+        }
+
+        @Override
+        TrieNode<K, V> remove(int hash, Object key, int shift) {
+            return ((this.hash == hash && this.key.equals(key)) ? null : this);
+        }
+    }
+
+    private static final class CollisionNode<K, V> extends TrieNode<K, V> {
+        private final int hash;
+        private final Leaf<K, V>[] leaves;
+
+        CollisionNode(int hash, Leaf<K, V>[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+
+        private int indexOf(Object key) {
+            for (int counter = 0; counter < leaves.length; counter++) {
+                if (leaves[counter].key.equals(key)) {
+                    return (counter);
+                }
+            }
+            return (-1);
+        }
+
+        @Override
+        Leaf<K, V> find(int hash, Object key, int shift) {
+            if (this.hash != hash) {
+                return (null);
+            }
+            int index = indexOf(key);
+            return ((index < 0) ? null : leaves[index]);
+        }
+
+        @Override
+        TrieNode<K, V> put(int hash, K key, V value, int shift, SizeChange sizeChange) {
+            if (this.hash != hash) {
+                sizeChange.delta = 1;
+                return (merge(this, this.hash, new Leaf<>(hash, key, value), hash, shift));
+            }
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (leaves[index].value == value) {
+                    return (this);
+                }
+                Leaf<K, V>[] newLeaves = leaves.clone();
+                newLeaves[index] = new Leaf<>(hash, key, value);
+                return (new CollisionNode<>(hash, newLeaves));
+            }
+            sizeChange.delta = 1;
+            Leaf<K, V>[] newLeaves = Arrays.copyOf(leaves, leaves.length + 1);
+            newLeaves[leaves.length] = new Leaf<>(hash, key, value);
+            return (new CollisionNode<>(hash, newLeaves));
+        }
+
+        @Override
+        TrieNode<K, V> remove(int hash, Object key, int shift) {
+            int index = (this.hash == hash) ? indexOf(key) : -1;
+            if (index < 0) {
+                return (this);
+            }
+            if (leaves.length == 2) {
+                return (leaves[1 - index]);
+            }
+            Leaf<K, V>[] newLeaves = newLeafArray(leaves.length - 1);
+            System.arraycopy(leaves, 0, newLeaves, 0, index);
+            System.arraycopy(leaves, index + 1, newLeaves, index, leaves.length - index - 1);
+            return (new CollisionNode<>(hash, newLeaves));
+        }
+    }
+
+    private static final class BitmapNode<K, V> extends TrieNode<K, V> {
+        private final int bitmap;
+        private final TrieNode<K, V>[] children;
+
+        BitmapNode(int bitmap, TrieNode<K, V>[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        private int indexOf(int bit) {
+            return (Integer.bitCount(bitmap & (bit - 1)));
+        }
+
+        @Override
+        Leaf<K, V> find(int hash, Object key, int shift) {
+            int bit = 1 << slotOf(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return (null);
+            }
+            return (children[indexOf(bit)].find(hash, key, shift + BITS_PER_LEVEL));
+        }
+
+        @Override
+        TrieNode<K, V> put(int hash, K key, V value, int shift, SizeChange sizeChange) {
+            int bit = 1 << slotOf(hash, shift);
+            int index = indexOf(bit);
+            if ((bitmap & bit) == 0) {
+                sizeChange.delta = 1;
+                TrieNode<K, V>[] newChildren = newNodeArray(children.length + 1);
+                System.arraycopy(children, 0, newChildren, 0, index);
+                newChildren[index] = new Leaf<>(hash, key, value);
+                System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+                return (new BitmapNode<>(bitmap | bit, newChildren));
+            }
+            TrieNode<K, V> child = children[index];
+            TrieNode<K, V> newChild = child.put(hash, key, value, shift + BITS_PER_LEVEL, sizeChange);
+            if (newChild == child) {
+                return (this);
+            }
+            TrieNode<K, V>[] newChildren = children.clone();
+            newChildren[index] = newChild;
+            return (new BitmapNode<>(bitmap, newChildren));
+        }
+
+        @Override
+        TrieNode<K, V> remove(int hash, Object key, int shift) {
+            int bit = 1 << slotOf(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return (this);
+            }
+            int index = indexOf(bit);
+            TrieNode<K, V> child = children[index];
+            TrieNode<K, V> newChild = child.remove(hash, key, shift + BITS_PER_LEVEL);
+            if (newChild == child) {
+                return (this);
+            }
+            if (newChild == null) {
+                if (children.length == 1) {
+                    return (null);
+                }
+                if (children.length == 2 && !(children[1 - index] instanceof BitmapNode)) {
+                    // A lone leaf (or collision node) can be held by the level above
+                    return (children[1 - index]);
+                }
+                TrieNode<K, V>[] newChildren = newNodeArray(children.length - 1);
+                System.arraycopy(children, 0, newChildren, 0, index);
+                System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+                return (new BitmapNode<>(bitmap ^ bit, newChildren));
+            }
+            if (children.length == 1 && !(newChild instanceof BitmapNode)) {
+                return (newChild);
+            }
+            TrieNode<K, V>[] newChildren = children.clone();
+            newChildren[index] = newChild;
+            return (new BitmapNode<>(bitmap, newChildren));
+        }
+    }
+}
@@ -21,7 +21,6 @@
  */
 package net.fhirfactory.pegacorn.common.model;
 
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,7 +30,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
  *
  * @author Mark A. Hunter
  */
-public class RDN {
+public class RDN implements Comparable<RDN> {
 	private static final Logger LOG = LoggerFactory.getLogger(RDN.class);
 
 	private String qualifier;
@@ -40,12 +39,12 @@ public class RDN {
 	@JsonIgnore
 	public static String RDN_SEPARATOR = "=";
 
-	private static final String tokenEntryQualifierForQualifier = "Qualifier";
-	private static final String tokenEntryQualifierForValue = "Value";
-
 	@JsonIgnore
 	public RDNToken token;
 
+	@JsonIgnore
+	private long hash64;
+
 	@JsonIgnore
 	private String rdnToString;
 	
@@ -72,10 +71,12 @@ public class RDN {
 		if (otherRDN == null) {
 			throw (new IllegalArgumentException("null otherRDN passed to copy Constructor"));
 		}
-		this.value = new String(otherRDN.getValue());
-		this.qualifier = new String(otherRDN.getQualifier());
+		this.value = otherRDN.getValue();
+		this.qualifier = otherRDN.getQualifier();
+		// The encoded token content is never modified in place, so it can be shared
+		this.token = RDNToken.fromTrustedBytes(otherRDN.getToken().encoded());
+		this.hash64 = otherRDN.hash64;
 		convertToString();
-		createToken();
 		convertToConciseString();
 	}
 
@@ -86,25 +87,35 @@ public class RDN {
 			throw (new IllegalArgumentException("null RDNToken passed to Constructor"));
 		}
 
+		RDN decodedRDN;
 		try {
-			JSONObject jsonToken = new JSONObject(token.getContent());
-			LOG.trace(".RND(RDNToken): Converted Token into JSONObject --> {}", jsonToken);
-			if((!jsonToken.has(tokenEntryQualifierForQualifier)) || (!jsonToken.has(tokenEntryQualifierForValue)) ) {
-				throw (new IllegalArgumentException("invalid RDNToken passed to Constructor"));
-			}
-			LOG.trace(".RND(RDNToken): JSONObject has both Type and Value entries!");
-			this.qualifier = new String(jsonToken.getString(tokenEntryQualifierForQualifier));
-			this.value = new String(jsonToken.getString(tokenEntryQualifierForValue));
-		} catch (Exception jsonEx) {
-			throw (new IllegalArgumentException(jsonEx.getMessage()));
+			decodedRDN = FDNTokenCodec.decodeRDN(token.encoded());
+		} catch (Exception tokenEx) {
+			throw (new IllegalArgumentException("invalid RDNToken passed to Constructor --> " + tokenEx.getMessage()));
 		}
+		this.qualifier = decodedRDN.getQualifier();
+		this.value = decodedRDN.getValue();
+		this.token = decodedRDN.getToken();
+		this.hash64 = decodedRDN.hash64;
 		LOG.trace(".RND(RDNToken): new RDN created, now building different String values!");
 		convertToString();
-		createToken();
 		convertToConciseString();
 		LOG.trace(".RND(RDNToken): new RDN --> {}", this.rdnToString);
 	}
 
+	/**
+	 * Used by the FDNTokenCodec when decoding, where the RDNToken has already
+	 * been built from the token content.
+	 */
+	RDN(String qualifier, String value, RDNToken token) {
+		this.qualifier = qualifier;
+		this.value = value;
+		this.token = token;
+		this.hash64 = FDNTokenCodec.hash64OfRDNToken(token.encoded());
+		convertToString();
+		convertToConciseString();
+	}
+
 	public String getValue() {
 		return (this.value);
 	}
@@ -139,10 +150,8 @@ public class RDN {
 
 	@JsonIgnore
 	private void createToken() {
-		JSONObject newToken = new JSONObject();
-		newToken.put(tokenEntryQualifierForQualifier, this.getQualifier());
-		newToken.put(tokenEntryQualifierForValue, this.getValue());
-		this.token = new RDNToken(newToken.toString());
+		this.token = RDNToken.fromTrustedBytes(FDNTokenCodec.encodeRDN(this.getQualifier(), this.getValue()));
+		this.hash64 = FDNTokenCodec.hash64OfRDNToken(this.token.encoded());
 	}
 
 	@JsonIgnore
@@ -161,4 +170,36 @@ public class RDN {
 	public String getUnqualifiedValue(){
 		return(getValue());
 	}
+
+	/**
+	 * @return The (precomputed) 64 bit hash of the Qualifier/Value pair.
+	 */
+	@JsonIgnore
+	public long getHash64() {
+		return (this.hash64);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		RDN rdn = (RDN) o;
+		if (this.hash64 != rdn.hash64) {
+			return (false);
+		}
+		return (this.qualifier.equals(rdn.qualifier) && this.value.equals(rdn.value));
+	}
+
+	@Override
+	public int hashCode() {
+		return (FDNTokenCodec.foldHash64(this.hash64));
+	}
+
+	/**
+	 * RDNs are ordered by Qualifier, then Value (by their UTF-8 bytes).
+	 */
+	@Override
+	public int compareTo(RDN other) {
+		return (FDNTokenCodec.compareRDNTokens(this.getToken().encoded(), other.getToken().encoded()));
+	}
 }
@@ -22,28 +22,84 @@
 
 package net.fhirfactory.pegacorn.common.model;
 
+import java.util.Arrays;
+
+/**
+ * The RDNToken is the (binary) encoded form of an RDN - see FDNTokenCodec for
+ * the layout. The token content (String) is the Base64 form of the encoding.
+ */
 public class RDNToken {
+	private byte[] encoded;
 	private String content;
 	
 	public RDNToken() {
+		encoded = FDNTokenCodec.EMPTY_TOKEN;
 		content = new String();
 	}
 	
 	public RDNToken(String tokenContent) {
-		this.content = new String(tokenContent);
+		setContent(tokenContent);
+	}
+
+	public RDNToken(byte[] encodedToken) {
+		byte[] encodedCopy = encodedToken.clone();
+		FDNTokenCodec.decodeRDN(encodedCopy);
+		wrap(encodedCopy);
+	}
+
+	/**
+	 * Wraps (without copying or validating) an already encoded token.
+	 */
+	static RDNToken fromTrustedBytes(byte[] encodedToken) {
+		RDNToken token = new RDNToken();
+		token.wrap(encodedToken);
+		return(token);
+	}
+
+	private void wrap(byte[] encodedToken) {
+		this.encoded = encodedToken;
+		this.content = null;
 	}
 	
 	public String getContent() {
+		if (this.content == null) {
+			this.content = FDNTokenCodec.toContent(this.encoded);
+		}
 		return(this.content);
 	}
 	
 	public void setContent(String tokenContent) {
-		this.content = new String(tokenContent);
+		this.encoded = FDNTokenCodec.rdnContentToBytes(tokenContent);
+		this.content = null;
+	}
+
+	/**
+	 * @return A copy of the encoded (binary) form of this token.
+	 */
+	public byte[] toByteArray() {
+		return (this.encoded.clone());
+	}
+
+	byte[] encoded() {
+		return (this.encoded);
 	}
 	
 	@Override
 	public String toString() {
-		return("RDNToken{" + content + "}");
+		return("RDNToken{" + getContent() + "}");
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		RDNToken rdnToken = (RDNToken) o;
+		return (Arrays.equals(this.encoded, rdnToken.encoded));
+	}
+
+	@Override
+	public int hashCode() {
+		return (Arrays.hashCode(this.encoded));
 	}
 	
 }
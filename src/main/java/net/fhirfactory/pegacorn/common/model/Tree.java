@@ -21,6 +21,8 @@
  */
 package net.fhirfactory.pegacorn.common.model;
 
+import java.util.stream.Stream;
+
 /**
  *
  * @author mhunter
@@ -39,4 +41,11 @@ public class Tree<T> {
     public void setTreeNode(TreeNode<T> treeNode) {
         this.treeNode = treeNode;
     }
+
+    /**
+     * @return A Stream of all the nodes within the Tree (see TreeNode::stream()).
+     */
+    public Stream<TreeNode<T>> stream() {
+        return ((treeNode == null) ? Stream.empty() : treeNode.stream());
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+/**
+ * A single change to a (keyed) tree, as produced by TreeDiff or as published by
+ * a ConcurrentTree to its TreeChangeListeners.
+ *
+ * <pre>
+ *   ADDED        newParentKey, newData
+ *   REMOVED      oldParentKey, oldData
+ *   MOVED        oldParentKey, newParentKey (and oldData/newData)
+ *   DATA_CHANGED oldData, newData (and the unchanged parent key)
+ * </pre>
+ * A parent key is null for the root.
+ */
+public final class TreeChangeEvent<K, T> {
+
+    public enum ChangeType {
+        ADDED,
+        REMOVED,
+        MOVED,
+        DATA_CHANGED
+    }
+
+    private final ChangeType changeType;
+    private final K key;
+    private final K oldParentKey;
+    private final K newParentKey;
+    private final T oldData;
+    private final T newData;
+
+    public TreeChangeEvent(ChangeType changeType, K key, K oldParentKey, K newParentKey, T oldData, T newData) {
+        if (changeType == null || key == null) {
+            throw (new IllegalArgumentException("null changeType or key passed to Constructor"));
+        }
+        this.changeType = changeType;
+        this.key = key;
+        this.oldParentKey = oldParentKey;
+        this.newParentKey = newParentKey;
+        this.oldData = oldData;
+        this.newData = newData;
+    }
+
+    static <K, T> TreeChangeEvent<K, T> added(K key, K parentKey, T data) {
+        return (new TreeChangeEvent<>(ChangeType.ADDED, key, null, parentKey, null, data));
+    }
+
+    static <K, T> TreeChangeEvent<K, T> removed(K key, K parentKey, T data) {
+        return (new TreeChangeEvent<>(ChangeType.REMOVED, key, parentKey, null, data, null));
+    }
+
+    static <K, T> TreeChangeEvent<K, T> moved(K key, K oldParentKey, K newParentKey, T oldData, T newData) {
+        return (new TreeChangeEvent<>(ChangeType.MOVED, key, oldParentKey, newParentKey, oldData, newData));
+    }
+
+    static <K, T> TreeChangeEvent<K, T> dataChanged(K key, K parentKey, T oldData, T newData) {
+        return (new TreeChangeEvent<>(ChangeType.DATA_CHANGED, key, parentKey, parentKey, oldData, newData));
+    }
+
+    public ChangeType getChangeType() {
+        return (changeType);
+    }
+
+    public K getKey() {
+        return (key);
+    }
+
+    public K getOldParentKey() {
+        return (oldParentKey);
+    }
+
+    public K getNewParentKey() {
+        return (newParentKey);
+    }
+
+    public T getOldData() {
+        return (oldData);
+    }
+
+    public T getNewData() {
+        return (newData);
+    }
+
+    @Override
+    public String toString() {
+        return ("TreeChangeEvent{" + changeType + ", key=" + key + ", oldParentKey=" + oldParentKey + ", newParentKey=" + newParentKey + "}");
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Computes the changes (TreeChangeEvents) between two versions of a tree.
+ *
+ * The events are ordered so that they can be applied in turn (see
+ * ConcurrentTree::apply()): additions, moves and data changes in pre-order of
+ * the new tree (so a parent is in place before its children), then removals
+ * with children before their parents.
+ *
+ * For ConcurrentTree Snapshots, subtrees that are shared (by reference) by the
+ * two Snapshots are skipped, so the cost is in proportion to the size of the
+ * change rather than that of the tree. Plain Trees carry no such sharing, so
+ * they are indexed (by key) and compared in full.
+ */
+public final class TreeDiff {
+
+    private TreeDiff() {
+    }
+
+    /**
+     * Diffs two Trees of FDNs, keyed by FDN.
+     */
+    public static List<TreeChangeEvent<ImmutableFDN, FDN>> diffFDNTrees(Tree<FDN> before, Tree<FDN> after) {
+        return (diff(before, after, FDN::toImmutableFDN));
+    }
+
+    public static <K, T> List<TreeChangeEvent<K, T>> diff(Tree<T> before, Tree<T> after, Function<T, K> keyFunction) {
+        if (before == null || after == null || keyFunction == null) {
+            throw (new IllegalArgumentException("null Tree or keyFunction passed to diff()"));
+        }
+        HashMap<K, TreeNode<T>> beforeIndex = indexTree(before, keyFunction);
+        HashMap<K, TreeNode<T>> afterIndex = indexTree(after, keyFunction);
+        ArrayList<TreeChangeEvent<K, T>> events = new ArrayList<>();
+        if (after.getTreeNode() != null) {
+            for (Iterator<TreeNode<T>> afterNodes = after.getTreeNode().preOrderIterator(); afterNodes.hasNext(); ) {
+                TreeNode<T> afterNode = afterNodes.next();
+                K key = keyFunction.apply(afterNode.getNodeData());
+                K afterParentKey = parentKeyOf(afterNode, keyFunction);
+                TreeNode<T> beforeNode = beforeIndex.get(key);
+                if (beforeNode == null) {
+                    events.add(TreeChangeEvent.added(key, afterParentKey, afterNode.getNodeData()));
+                    continue;
+                }
+                K beforeParentKey = parentKeyOf(beforeNode, keyFunction);
+                if (!Objects.equals(beforeParentKey, afterParentKey)) {
+                    events.add(TreeChangeEvent.moved(key, beforeParentKey, afterParentKey, beforeNode.getNodeData(), afterNode.getNodeData()));
+                }
+                if (!Objects.equals(beforeNode.getNodeData(), afterNode.getNodeData())) {
+                    events.add(TreeChangeEvent.dataChanged(key, afterParentKey, beforeNode.getNodeData(), afterNode.getNodeData()));
+                }
+            }
+        }
+        if (before.getTreeNode() != null) {
+            for (Iterator<TreeNode<T>> beforeNodes = before.getTreeNode().postOrderIterator(); beforeNodes.hasNext(); ) {
+                TreeNode<T> beforeNode = beforeNodes.next();
+                K key = keyFunction.apply(beforeNode.getNodeData());
+                if (!afterIndex.containsKey(key)) {
+                    events.add(TreeChangeEvent.removed(key, parentKeyOf(beforeNode, keyFunction), beforeNode.getNodeData()));
+                }
+            }
+        }
+        return (events);
+    }
+
+    public static <K, T> List<TreeChangeEvent<K, T>> diff(ConcurrentTree.Snapshot<K, T> before, ConcurrentTree.Snapshot<K, T> after) {
+        if (before == null || after == null) {
+            throw (new IllegalArgumentException("null Snapshot passed to diff()"));
+        }
+        ArrayList<TreeChangeEvent<K, T>> events = new ArrayList<>();
+        ArrayList<ConcurrentTree.Node<K, T>> removedRoots = new ArrayList<>();
+        ArrayList<K> removedRootParentKeys = new ArrayList<>();
+        ArrayDeque<DiffStep<K, T>> pending = new ArrayDeque<>();
+        ConcurrentTree.Node<K, T> beforeRoot = before.getRoot();
+        ConcurrentTree.Node<K, T> afterRoot = after.getRoot();
+        if (beforeRoot.getKey().equals(afterRoot.getKey())) {
+            pending.push(new DiffStep<>(beforeRoot, afterRoot, null));
+        } else {
+            pending.push(new DiffStep<>(null, afterRoot, null));
+            removedRoots.add(beforeRoot);
+            removedRootParentKeys.add(null);
+        }
+        while (!pending.isEmpty()) {
+            DiffStep<K, T> step = pending.pop();
+            ConcurrentTree.Node<K, T> afterNode = step.afterNode;
+            ConcurrentTree.Node<K, T> beforeNode = step.beforeNode;
+            if (beforeNode == null) {
+                // A node that is not beneath the same parent in "before"
+                beforeNode = before.getNode(afterNode.getKey());
+                if (beforeNode == null) {
+                    events.add(TreeChangeEvent.added(afterNode.getKey(), step.afterParentKey, afterNode.getData()));
+                    pushEntered(afterNode, pending);
+                    continue;
+                }
+                events.add(TreeChangeEvent.moved(afterNode.getKey(), before.getParentKey(afterNode.getKey()), step.afterParentKey, beforeNode.getData(), afterNode.getData()));
+            }
+            if (beforeNode == afterNode) {
+                // A shared (and so unchanged) subtree
+                continue;
+            }
+            if (!Objects.equals(beforeNode.getData(), afterNode.getData())) {
+                events.add(TreeChangeEvent.dataChanged(afterNode.getKey(), step.afterParentKey, beforeNode.getData(), afterNode.getData()));
+            }
+            ArrayList<DiffStep<K, T>> childSteps = new ArrayList<>(afterNode.getChildCount());
+            for (ConcurrentTree.Node<K, T> afterChild : afterNode.getChildren()) {
+                childSteps.add(new DiffStep<>(beforeNode.getChild(afterChild.getKey()), afterChild, afterNode.getKey()));
+            }
+            for (int counter = childSteps.size() - 1; counter >= 0; counter--) {
+                pending.push(childSteps.get(counter));
+            }
+            for (ConcurrentTree.Node<K, T> beforeChild : beforeNode.getChildren()) {
+                if (afterNode.getChild(beforeChild.getKey()) == null) {
+                    removedRoots.add(beforeChild);
+                    removedRootParentKeys.add(beforeNode.getKey());
+                }
+            }
+        }
+        for (int counter = 0; counter < removedRoots.size(); counter++) {
+            addRemovals(removedRoots.get(counter), removedRootParentKeys.get(counter), after, events);
+        }
+        return (events);
+    }
+
+    //
+    // Helpers
+    //
+
+    private static final class DiffStep<K, T> {
+        final ConcurrentTree.Node<K, T> beforeNode;
+        final ConcurrentTree.Node<K, T> afterNode;
+        final K afterParentKey;
+
+        DiffStep(ConcurrentTree.Node<K, T> beforeNode, ConcurrentTree.Node<K, T> afterNode, K afterParentKey) {
+            this.beforeNode = beforeNode;
+            this.afterNode = afterNode;
+            this.afterParentKey = afterParentKey;
+        }
+    }
+
+    private static <K, T> void pushEntered(ConcurrentTree.Node<K, T> afterNode, ArrayDeque<DiffStep<K, T>> pending) {
+        ArrayList<ConcurrentTree.Node<K, T>> children = new ArrayList<>(afterNode.getChildren());
+        for (int counter = children.size() - 1; counter >= 0; counter--) {
+            pending.push(new DiffStep<>(null, children.get(counter), afterNode.getKey()));
+        }
+    }
+
+    /**
+     * Adds REMOVED events (children first) for the nodes of a subtree that has
+     * left its "before" position, other than those still present in "after"
+     * (which have moved, and are reported as such).
+     */
+    private static <K, T> void addRemovals(ConcurrentTree.Node<K, T> subtreeRoot, K parentKey, ConcurrentTree.Snapshot<K, T> after, List<TreeChangeEvent<K, T>> events) {
+        if (after.containsKey(subtreeRoot.getKey())) {
+            return;
+        }
+        ArrayDeque<ConcurrentTree.Node<K, T>> nodes = new ArrayDeque<>();
+        ArrayDeque<Iterator<ConcurrentTree.Node<K, T>>> childIterators = new ArrayDeque<>();
+        nodes.push(subtreeRoot);
+        childIterators.push(subtreeRoot.getChildren().iterator());
+        while (!nodes.isEmpty()) {
+            Iterator<ConcurrentTree.Node<K, T>> currentChildren = childIterators.peek();
+            if (currentChildren.hasNext()) {
+                ConcurrentTree.Node<K, T> child = currentChildren.next();
+                if (!after.containsKey(child.getKey())) {
+                    nodes.push(child);
+                    childIterators.push(child.getChildren().iterator());
+                }
+                continue;
+            }
+            ConcurrentTree.Node<K, T> removedNode = nodes.pop();
+            childIterators.pop();
+            K removedParentKey = nodes.isEmpty() ? parentKey : nodes.peek().getKey();
+            events.add(TreeChangeEvent.removed(removedNode.getKey(), removedParentKey, removedNode.getData()));
+        }
+    }
+
+    private static <K, T> HashMap<K, TreeNode<T>> indexTree(Tree<T> tree, Function<T, K> keyFunction) {
+        HashMap<K, TreeNode<T>> index = new HashMap<>();
+        if (tree.getTreeNode() == null) {
+            return (index);
+        }
+        for (Iterator<TreeNode<T>> treeNodes = tree.getTreeNode().preOrderIterator(); treeNodes.hasNext(); ) {
+            TreeNode<T> currentNode = treeNodes.next();
+            if (index.put(keyFunction.apply(currentNode.getNodeData()), currentNode) != null) {
+                throw (new IllegalArgumentException("Duplicate node key within Tree --> " + keyFunction.apply(currentNode.getNodeData())));
+            }
+        }
+        return (index);
+    }
+
+    private static <K, T> K parentKeyOf(TreeNode<T> node, Function<T, K> keyFunction) {
+        return ((node.getParent() == null) ? null : keyFunction.apply(node.getParent().getNodeData()));
+    }
+}
@@ -21,8 +21,15 @@
  */
 package net.fhirfactory.pegacorn.common.model;
 
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *
@@ -71,4 +78,59 @@ public class TreeNode<T> {
     public TreeNode<T> getParent() {
         return parent;
     }
+
+    /**
+     * @return An iterator over this node and its descendants, each node before
+     * its children.
+     */
+    public Iterator<TreeNode<T>> preOrderIterator() {
+        return (new TreeTraversal.PreOrderIterator<>(this));
+    }
+
+    /**
+     * @return An iterator over this node and its descendants, each node after
+     * its children.
+     */
+    public Iterator<TreeNode<T>> postOrderIterator() {
+        return (new TreeTraversal.PostOrderIterator<>(this));
+    }
+
+    /**
+     * @return An iterator over this node and its descendants, level by level.
+     */
+    public Iterator<TreeNode<T>> breadthFirstIterator() {
+        return (new TreeTraversal.BreadthFirstIterator<>(this));
+    }
+
+    /**
+     * @return A (splittable) Spliterator over this node and its descendants.
+     */
+    public Spliterator<TreeNode<T>> spliterator() {
+        return (new TreeTraversal.TreeNodeSpliterator<>(this));
+    }
+
+    /**
+     * @return A Stream of this node and its descendants (pre-order when
+     * sequential); use stream().parallel() to fan out across subtrees.
+     */
+    public Stream<TreeNode<T>> stream() {
+        return (StreamSupport.stream(spliterator(), false));
+    }
+
+    /**
+     * Aggregates (e.g. rolls up health/status) over this node and its
+     * descendants: each node's result is nodeValue(data) combined, in order,
+     * with each of its children's results.
+     */
+    public <R> R aggregate(Function<T, R> nodeValue, BinaryOperator<R> combiner) {
+        return (TreeTraversal.aggregate(this, nodeValue, combiner));
+    }
+
+    /**
+     * As per aggregate(nodeValue, combiner), with sibling subtrees aggregated in
+     * parallel on the ForkJoinPool. The combiner must be associative.
+     */
+    public <R> R aggregate(Function<T, R> nodeValue, BinaryOperator<R> combiner, ForkJoinPool pool) {
+        return (pool.invoke(new TreeTraversal.AggregationTask<>(this, nodeValue, combiner, 0)));
+    }
 }
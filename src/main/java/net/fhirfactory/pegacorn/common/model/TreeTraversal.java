@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The (iterative - so deep trees cannot overflow the stack) traversals behind
+ * TreeNode's iterators, spliterator() and aggregate().
+ *
+ * The traversals read TreeNode::getChildren() as they go, so the (sub)tree
+ * must not be modified while it is being traversed.
+ */
+final class TreeTraversal {
+
+    /**
+     * Beyond this depth (below the node aggregate() was called on), subtrees
+     * are aggregated within the current task rather than forked, bounding the
+     * number of nested (joined) tasks.
+     */
+    private static final int MAXIMUM_FORK_DEPTH = 16;
+
+    private TreeTraversal() {
+    }
+
+    //
+    // Iterators
+    //
+
+    static final class PreOrderIterator<T> implements Iterator<TreeNode<T>> {
+        private final ArrayDeque<TreeNode<T>> pending = new ArrayDeque<>();
+
+        PreOrderIterator(TreeNode<T> root) {
+            pending.push(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (!pending.isEmpty());
+        }
+
+        @Override
+        public TreeNode<T> next() {
+            if (pending.isEmpty()) {
+                throw (new NoSuchElementException());
+            }
+            TreeNode<T> current = pending.pop();
+            pushChildrenReversed(current, pending);
+            return (current);
+        }
+    }
+
+    static final class PostOrderIterator<T> implements Iterator<TreeNode<T>> {
+        private final ArrayDeque<TreeNode<T>> nodes = new ArrayDeque<>();
+        private final ArrayDeque<Iterator<TreeNode<T>>> childIterators = new ArrayDeque<>();
+
+        PostOrderIterator(TreeNode<T> root) {
+            nodes.push(root);
+            childIterators.push(root.getChildren().iterator());
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (!nodes.isEmpty());
+        }
+
+        @Override
+        public TreeNode<T> next() {
+            if (nodes.isEmpty()) {
+                throw (new NoSuchElementException());
+            }
+            // Descend to the first node whose children have all been returned
+            while (childIterators.peek().hasNext()) {
+                TreeNode<T> child = childIterators.peek().next();
+                nodes.push(child);
+                childIterators.push(child.getChildren().iterator());
+            }
+            childIterators.pop();
+            return (nodes.pop());
+        }
+    }
+
+    static final class BreadthFirstIterator<T> implements Iterator<TreeNode<T>> {
+        private final ArrayDeque<TreeNode<T>> pending = new ArrayDeque<>();
+
+        BreadthFirstIterator(TreeNode<T> root) {
+            pending.add(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (!pending.isEmpty());
+        }
+
+        @Override
+        public TreeNode<T> next() {
+            if (pending.isEmpty()) {
+                throw (new NoSuchElementException());
+            }
+            TreeNode<T> current = pending.poll();
+            pending.addAll(current.getChildren());
+            return (current);
+        }
+    }
+
+    //
+    // Spliterator
+    //
+
+    /**
+     * A splittable spliterator over a (sub)tree. It holds a stack of pending
+     * subtrees (each traversed pre-order) plus a set of single nodes; a split
+     * hands off half of the pending subtrees or, if there is only one, the
+     * children of that subtree's root (keeping the root itself). There is no
+     * encounter order once split.
+     */
+    static final class TreeNodeSpliterator<T> implements Spliterator<TreeNode<T>> {
+        private final ArrayDeque<TreeNode<T>> pendingSubtrees;
+        private final ArrayDeque<TreeNode<T>> pendingNodes;
+        private long estimatedSize;
+
+        TreeNodeSpliterator(TreeNode<T> root) {
+            this.pendingSubtrees = new ArrayDeque<>();
+            this.pendingNodes = new ArrayDeque<>();
+            this.pendingSubtrees.push(root);
+            this.estimatedSize = Long.MAX_VALUE;
+        }
+
+        private TreeNodeSpliterator(ArrayDeque<TreeNode<T>> pendingSubtrees, long estimatedSize) {
+            this.pendingSubtrees = pendingSubtrees;
+            this.pendingNodes = new ArrayDeque<>();
+            this.estimatedSize = estimatedSize;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TreeNode<T>> action) {
+            if (!pendingNodes.isEmpty()) {
+                action.accept(pendingNodes.pop());
+                return (true);
+            }
+            if (pendingSubtrees.isEmpty()) {
+                return (false);
+            }
+            TreeNode<T> current = pendingSubtrees.pop();
+            pushChildrenReversed(current, pendingSubtrees);
+            action.accept(current);
+            return (true);
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super TreeNode<T>> action) {
+            while (!pendingNodes.isEmpty()) {
+                action.accept(pendingNodes.pop());
+            }
+            while (!pendingSubtrees.isEmpty()) {
+                TreeNode<T> current = pendingSubtrees.pop();
+                pushChildrenReversed(current, pendingSubtrees);
+                action.accept(current);
+            }
+        }
+
+        @Override
+        public Spliterator<TreeNode<T>> trySplit() {
+            if (pendingSubtrees.size() == 1) {
+                TreeNode<T> onlySubtree = pendingSubtrees.peek();
+                if (onlySubtree.getChildren().isEmpty()) {
+                    return (null);
+                }
+                pendingSubtrees.pop();
+                pendingNodes.push(onlySubtree);
+                ArrayDeque<TreeNode<T>> splitSubtrees = new ArrayDeque<>(onlySubtree.getChildren());
+                return (split(splitSubtrees));
+            }
+            if (pendingSubtrees.size() < 2) {
+                return (null);
+            }
+            // Hand off the bottom (i.e. the "later", and typically larger) half
+            int splitCount = pendingSubtrees.size() / 2;
+            ArrayDeque<TreeNode<T>> splitSubtrees = new ArrayDeque<>(splitCount);
+            for (int counter = 0; counter < splitCount; counter++) {
+                splitSubtrees.push(pendingSubtrees.pollLast());
+            }
+            return (split(splitSubtrees));
+        }
+
+        private Spliterator<TreeNode<T>> split(ArrayDeque<TreeNode<T>> splitSubtrees) {
+            if (estimatedSize != Long.MAX_VALUE) {
+                estimatedSize >>>= 1;
+            }
+            return (new TreeNodeSpliterator<>(splitSubtrees, estimatedSize));
+        }
+
+        @Override
+        public long estimateSize() {
+            if (pendingSubtrees.isEmpty()) {
+                return (pendingNodes.size());
+            }
+            return (estimatedSize);
+        }
+
+        @Override
+        public int characteristics() {
+            return (Spliterator.NONNULL);
+        }
+    }
+
+    //
+    // Aggregation
+    //
+
+    /**
+     * Aggregates a (sub)tree within the current thread: each node's result is
+     * nodeValue(node) combined, in order, with its children's results.
+     */
+    static <T, R> R aggregate(TreeNode<T> root, Function<T, R> nodeValue, BinaryOperator<R> combiner) {
+        ArrayDeque<TreeNode<T>> nodes = new ArrayDeque<>();
+        ArrayDeque<Iterator<TreeNode<T>>> childIterators = new ArrayDeque<>();
+        ArrayDeque<R> results = new ArrayDeque<>();
+        nodes.push(root);
+        childIterators.push(root.getChildren().iterator());
+        results.push(nodeValue.apply(root.getNodeData()));
+        while (!nodes.isEmpty()) {
+            Iterator<TreeNode<T>> currentChildren = childIterators.peek();
+            if (currentChildren.hasNext()) {
+                TreeNode<T> child = currentChildren.next();
+                nodes.push(child);
+                childIterators.push(child.getChildren().iterator());
+                results.push(nodeValue.apply(child.getNodeData()));
+                continue;
+            }
+            nodes.pop();
+            childIterators.pop();
+            R completed = results.pop();
+            if (nodes.isEmpty()) {
+                return (completed);
+            }
+            results.push(combiner.apply(results.pop(), completed));
+        }
+        throw (new IllegalStateException("Unreachable"));
+    }
+
+    static final class AggregationTask<T, R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+        private final TreeNode<T> node;
+        private final Function<T, R> nodeValue;
+        private final BinaryOperator<R> combiner;
+        private final int forkDepth;
+
+        AggregationTask(TreeNode<T> node, Function<T, R> nodeValue, BinaryOperator<R> combiner, int forkDepth) {
+            this.node = node;
+            this.nodeValue = nodeValue;
+            this.combiner = combiner;
+            this.forkDepth = forkDepth;
+        }
+
+        @Override
+        protected R compute() {
+            if (forkDepth >= MAXIMUM_FORK_DEPTH || node.getChildren().size() < 2) {
+                if (forkDepth < MAXIMUM_FORK_DEPTH && node.getChildren().size() == 1) {
+                    // Follow a single child chain without forking
+                    AggregationTask<T, R> onlyChildTask = new AggregationTask<>(node.getChildren().iterator().next(), nodeValue, combiner, forkDepth + 1);
+                    return (combiner.apply(nodeValue.apply(node.getNodeData()), onlyChildTask.compute()));
+                }
+                return (aggregate(node, nodeValue, combiner));
+            }
+            List<AggregationTask<T, R>> childTasks = new ArrayList<>(node.getChildren().size());
+            for (TreeNode<T> child : node.getChildren()) {
+                AggregationTask<T, R> childTask = new AggregationTask<>(child, nodeValue, combiner, forkDepth + 1);
+                childTask.fork();
+                childTasks.add(childTask);
+            }
+            R result = nodeValue.apply(node.getNodeData());
+            for (AggregationTask<T, R> childTask : childTasks) {
+                result = combiner.apply(result, childTask.join());
+            }
+            return (result);
+        }
+    }
+
+    private static <T> void pushChildrenReversed(TreeNode<T> node, ArrayDeque<TreeNode<T>> stack) {
+        if (node.getChildren().isEmpty()) {
+            return;
+        }
+        ArrayList<TreeNode<T>> children = new ArrayList<>(node.getChildren());
+        for (int counter = children.size() - 1; counter >= 0; counter--) {
+            stack.push(children.get(counter));
+        }
+    }
+}
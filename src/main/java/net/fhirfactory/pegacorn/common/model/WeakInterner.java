@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * A thread-safe interner that only weakly references its canonical instances,
+ * so entries that are no longer used anywhere else are dropped by the garbage
+ * collector (and purged from the pool on the next intern() call).
+ *
+ * @param <T> The (immutable, or at least never modified once interned) type
+ */
+final class WeakInterner<T> {
+
+    private final ConcurrentHashMap<WeakEntry<T>, WeakEntry<T>> entries = new ConcurrentHashMap<>();
+    private final ReferenceQueue<T> staleEntries = new ReferenceQueue<>();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param candidate The instance to be interned
+     * @param canonicalFactory Builds the instance to be stored (and returned)
+     * when there is no existing equal instance - e.g. a frozen copy of the candidate.
+     * @return The canonical instance equal to the candidate
+     */
+    T intern(T candidate, UnaryOperator<T> canonicalFactory) {
+        expungeStaleEntries();
+        WeakEntry<T> probe = new WeakEntry<>(candidate, null);
+        while (true) {
+            WeakEntry<T> existingEntry = entries.get(probe);
+            if (existingEntry != null) {
+                T existing = existingEntry.get();
+                if (existing != null) {
+                    hitCount.increment();
+                    return (existing);
+                }
+                entries.remove(existingEntry, existingEntry);
+                continue;
+            }
+            T canonical = canonicalFactory.apply(candidate);
+            WeakEntry<T> newEntry = new WeakEntry<>(canonical, staleEntries);
+            WeakEntry<T> priorEntry = entries.putIfAbsent(newEntry, newEntry);
+            if (priorEntry == null) {
+                missCount.increment();
+                return (canonical);
+            }
+            T prior = priorEntry.get();
+            if (prior != null) {
+                hitCount.increment();
+                return (prior);
+            }
+            entries.remove(priorEntry, priorEntry);
+        }
+    }
+
+    /**
+     * @return The canonical instance equal to the candidate, or null if there is none.
+     */
+    T lookup(T candidate) {
+        WeakEntry<T> existingEntry = entries.get(new WeakEntry<>(candidate, null));
+        return ((existingEntry == null) ? null : existingEntry.get());
+    }
+
+    long getHitCount() {
+        return (hitCount.sum());
+    }
+
+    long getMissCount() {
+        return (missCount.sum());
+    }
+
+    /**
+     * @return The number of entries (which may include some that have been
+     * collected, but not yet purged).
+     */
+    int size() {
+        expungeStaleEntries();
+        return (entries.size());
+    }
+
+    void clear() {
+        entries.clear();
+        hitCount.reset();
+        missCount.reset();
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends T> staleReference;
+        while ((staleReference = staleEntries.poll()) != null) {
+            entries.remove(staleReference);
+        }
+    }
+
+    private static final class WeakEntry<T> extends WeakReference<T> {
+        private final int hash;
+
+        WeakEntry(T referent, ReferenceQueue<? super T> queue) {
+            super(referent, queue);
+            this.hash = referent.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof WeakEntry)) return false;
+            WeakEntry<?> other = (WeakEntry<?>) o;
+            if (this.hash != other.hash) return false;
+            Object thisReferent = this.get();
+            return (thisReferent != null && thisReferent.equals(other.get()));
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.hash);
+        }
+    }
+}
@@ -1,14 +1,60 @@
 package net.fhirfactory.pegacorn.fhir.helpers;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import net.fhirfactory.pegacorn.util.FHIRContextUtility;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 @ApplicationScoped
 public class BundleDecoder {
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String RESOURCE_TYPE_FIELD = "resourceType";
+    private static final String BUNDLE_TYPE_FIELD = "type";
+    private static final String BUNDLE_ENTRY_FIELD = "entry";
+    private static final String ENTRY_RESOURCE_FIELD = "resource";
+    private static final String BUNDLE_RESOURCE_TYPE = ResourceType.Bundle.name();
+    private static final String MESSAGE_HEADER_RESOURCE_TYPE = ResourceType.MessageHeader.name();
+    private static final String MESSAGE_BUNDLE_TYPE = Bundle.BundleType.MESSAGE.toCode();
+
+    public static final int DEFAULT_PARALLEL_CHUNK_SIZE = 256;
+
+    @Inject
+    private FHIRContextUtility fhirContextUtility;
+
+    private volatile FhirContext fallbackFhirContext;
+
+    private volatile Executor parallelDecodingExecutor = ForkJoinPool.commonPool();
+    private volatile int parallelDecodingChunkSize = DEFAULT_PARALLEL_CHUNK_SIZE;
+
     public MessageHeader extractMessageHeader(Bundle bundleResource){
         if(bundleResource == null){
             return(null);
@@ -23,4 +69,465 @@ public class BundleDecoder {
         }
         return(null);
     }
+
+    /**
+     * Builds a BundleIndex over the entries of the Bundle, for processors that
+     * look up (or resolve References to) more than one resource.
+     *
+     * @return The index, or null if the Bundle is null.
+     */
+    public BundleIndex buildIndex(Bundle bundleResource){
+        if(bundleResource == null){
+            return(null);
+        }
+        return(new BundleIndex(bundleResource));
+    }
+
+    /**
+     * Extracts the MessageHeader from a (JSON encoded) message Bundle without
+     * parsing the whole Bundle: the JSON is streamed up to the MessageHeader
+     * entry, and only that resource is materialised. As a MessageHeader is
+     * (by the FHIR messaging rules) the first entry, the cost is independent
+     * of the size of the Bundle.
+     *
+     * @return The MessageHeader, or null if the JSON is not a message Bundle
+     * or contains no MessageHeader.
+     * @throws DataFormatException if the JSON is malformed.
+     */
+    public MessageHeader extractMessageHeader(String bundleJSON){
+        if(bundleJSON == null || bundleJSON.isEmpty()){
+            return(null);
+        }
+        try(JsonParser jsonParser = JSON_FACTORY.createParser(bundleJSON)){
+            return(streamMessageHeader(jsonParser));
+        } catch(IOException ioEx){
+            throw(new DataFormatException("Unable to read Bundle JSON: " + ioEx.getMessage(), ioEx));
+        }
+    }
+
+    public MessageHeader extractMessageHeader(byte[] bundleJSON){
+        if(bundleJSON == null || bundleJSON.length == 0){
+            return(null);
+        }
+        try(JsonParser jsonParser = JSON_FACTORY.createParser(bundleJSON)){
+            return(streamMessageHeader(jsonParser));
+        } catch(IOException ioEx){
+            throw(new DataFormatException("Unable to read Bundle JSON: " + ioEx.getMessage(), ioEx));
+        }
+    }
+
+    /**
+     * As per extractMessageHeader(String). The stream is read only as far as
+     * needed, and is not closed.
+     */
+    public MessageHeader extractMessageHeader(InputStream bundleJSON){
+        if(bundleJSON == null){
+            return(null);
+        }
+        try(JsonParser jsonParser = JSON_FACTORY.createParser(bundleJSON)){
+            jsonParser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            return(streamMessageHeader(jsonParser));
+        } catch(com.fasterxml.jackson.core.JsonProcessingException jsonEx){
+            throw(new DataFormatException("Unable to read Bundle JSON: " + jsonEx.getMessage(), jsonEx));
+        } catch(IOException ioEx){
+            throw(new UncheckedIOException(ioEx));
+        }
+    }
+
+    //
+    // Streaming helpers
+    //
+
+    private MessageHeader streamMessageHeader(JsonParser jsonParser) throws IOException {
+        if(jsonParser.nextToken() != JsonToken.START_OBJECT){
+            throw(new DataFormatException("Bundle JSON is not an object"));
+        }
+        String bundleType = null;
+        String messageHeaderJSON = null;
+        while(jsonParser.nextToken() == JsonToken.FIELD_NAME){
+            String fieldName = jsonParser.getCurrentName();
+            JsonToken valueToken = jsonParser.nextToken();
+            if(RESOURCE_TYPE_FIELD.equals(fieldName)){
+                if(!BUNDLE_RESOURCE_TYPE.equals(jsonParser.getValueAsString())){
+                    return(null);
+                }
+            } else if(BUNDLE_TYPE_FIELD.equals(fieldName)){
+                bundleType = jsonParser.getValueAsString();
+                if(!MESSAGE_BUNDLE_TYPE.equals(bundleType)){
+                    return(null);
+                }
+            } else if(BUNDLE_ENTRY_FIELD.equals(fieldName) && valueToken == JsonToken.START_ARRAY && messageHeaderJSON == null){
+                // If the type is still to come, the rest of the entries have to be stepped over to reach it
+                messageHeaderJSON = findMessageHeaderEntry(jsonParser, bundleType == null);
+            } else {
+                jsonParser.skipChildren();
+            }
+            // Stop as soon as we have both the type and the header (normally the type comes first)
+            if(bundleType != null && messageHeaderJSON != null){
+                break;
+            }
+        }
+        if(!MESSAGE_BUNDLE_TYPE.equals(bundleType) || messageHeaderJSON == null){
+            return(null);
+        }
+        return(getFhirContext().newJsonParser().parseResource(MessageHeader.class, messageHeaderJSON));
+    }
+
+    /**
+     * Scans the entry array (positioned at its START_ARRAY) for the first
+     * MessageHeader resource. Non-matching resources are skipped without being
+     * materialised where their resourceType comes first (as HAPI writes it).
+     *
+     * @return The MessageHeader JSON, or null if none was found. If found, the
+     * parser is left within the entry array unless consumeRemainder is set.
+     */
+    private String findMessageHeaderEntry(JsonParser jsonParser, boolean consumeRemainder) throws IOException {
+        while(jsonParser.nextToken() == JsonToken.START_OBJECT){
+            while(jsonParser.nextToken() == JsonToken.FIELD_NAME){
+                String fieldName = jsonParser.getCurrentName();
+                JsonToken valueToken = jsonParser.nextToken();
+                if(ENTRY_RESOURCE_FIELD.equals(fieldName) && valueToken == JsonToken.START_OBJECT){
+                    String messageHeaderJSON = readIfMessageHeader(jsonParser);
+                    if(messageHeaderJSON != null){
+                        if(consumeRemainder){
+                            skipToEndOfObject(jsonParser);
+                            while(jsonParser.nextToken() == JsonToken.START_OBJECT){
+                                jsonParser.skipChildren();
+                            }
+                        }
+                        return(messageHeaderJSON);
+                    }
+                } else {
+                    jsonParser.skipChildren();
+                }
+            }
+        }
+        return(null);
+    }
+
+    /**
+     * Reads the resource (positioned at its START_OBJECT), consuming it entirely.
+     *
+     * @return The resource JSON if it is a MessageHeader, otherwise null.
+     */
+    private String readIfMessageHeader(JsonParser jsonParser) throws IOException {
+        StringWriter resourceWriter = new StringWriter();
+        boolean isMessageHeader = false;
+        try(JsonGenerator resourceGenerator = JSON_FACTORY.createGenerator(resourceWriter)){
+            resourceGenerator.writeStartObject();
+            boolean firstField = true;
+            while(jsonParser.nextToken() == JsonToken.FIELD_NAME){
+                String fieldName = jsonParser.getCurrentName();
+                jsonParser.nextToken();
+                if(RESOURCE_TYPE_FIELD.equals(fieldName)){
+                    isMessageHeader = MESSAGE_HEADER_RESOURCE_TYPE.equals(jsonParser.getValueAsString());
+                    if(firstField && !isMessageHeader){
+                        // Not a MessageHeader: skip the rest of the resource unread
+                        skipToEndOfObject(jsonParser);
+                        return(null);
+                    }
+                }
+                firstField = false;
+                resourceGenerator.writeFieldName(fieldName);
+                resourceGenerator.copyCurrentStructure(jsonParser);
+            }
+            resourceGenerator.writeEndObject();
+        }
+        return(isMessageHeader ? resourceWriter.toString() : null);
+    }
+
+    private void skipToEndOfObject(JsonParser jsonParser) throws IOException {
+        while(jsonParser.nextToken() == JsonToken.FIELD_NAME){
+            jsonParser.nextToken();
+            jsonParser.skipChildren();
+        }
+    }
+
+    //
+    // Parallel decoding
+    //
+
+    public Executor getParallelDecodingExecutor(){
+        return(this.parallelDecodingExecutor);
+    }
+
+    /**
+     * Sets the Executor the entry chunks are parsed on (the common ForkJoinPool by
+     * default). On newer JVMs a virtual-thread-per-task Executor may be used.
+     */
+    public void setParallelDecodingExecutor(Executor parallelDecodingExecutor){
+        if(parallelDecodingExecutor == null){
+            throw(new IllegalArgumentException("parallelDecodingExecutor is null"));
+        }
+        this.parallelDecodingExecutor = parallelDecodingExecutor;
+    }
+
+    public int getParallelDecodingChunkSize(){
+        return(this.parallelDecodingChunkSize);
+    }
+
+    public void setParallelDecodingChunkSize(int parallelDecodingChunkSize){
+        if(parallelDecodingChunkSize < 1){
+            throw(new IllegalArgumentException("parallelDecodingChunkSize must be at least 1, was " + parallelDecodingChunkSize));
+        }
+        this.parallelDecodingChunkSize = parallelDecodingChunkSize;
+    }
+
+    /**
+     * Decodes a (JSON encoded) Bundle, parsing its entries in parallel. The entry
+     * array is split (by streaming, without parsing the resources) into chunks of
+     * getParallelDecodingChunkSize() entries, each chunk is parsed as a Bundle of
+     * its own on the parallel decoding Executor, and the entries are then
+     * reassembled, in their original order, into the Bundle. Worthwhile for large
+     * batch/transaction Bundles.
+     *
+     * As a single-threaded parse does, the References between entries are then
+     * linked to their targets (Reference.getResource()) - across chunks too - and
+     * the entries' resource ids are taken from their fullUrls.
+     *
+     * @throws DataFormatException if the JSON is malformed or not a Bundle.
+     */
+    public Bundle decodeBundleInParallel(String bundleJSON){
+        if(bundleJSON == null || bundleJSON.isEmpty()){
+            return(null);
+        }
+        try(JsonParser jsonParser = JSON_FACTORY.createParser(bundleJSON)){
+            return(decodeBundleInParallel(jsonParser));
+        } catch(IOException ioEx){
+            throw(new DataFormatException("Unable to read Bundle JSON: " + ioEx.getMessage(), ioEx));
+        }
+    }
+
+    public Bundle decodeBundleInParallel(byte[] bundleJSON){
+        if(bundleJSON == null || bundleJSON.length == 0){
+            return(null);
+        }
+        try(JsonParser jsonParser = JSON_FACTORY.createParser(bundleJSON)){
+            return(decodeBundleInParallel(jsonParser));
+        } catch(IOException ioEx){
+            throw(new DataFormatException("Unable to read Bundle JSON: " + ioEx.getMessage(), ioEx));
+        }
+    }
+
+    /**
+     * As per decodeBundleInParallel(String). The stream is not closed.
+     */
+    public Bundle decodeBundleInParallel(InputStream bundleJSON){
+        if(bundleJSON == null){
+            return(null);
+        }
+        try(JsonParser jsonParser = JSON_FACTORY.createParser(bundleJSON)){
+            jsonParser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            return(decodeBundleInParallel(jsonParser));
+        } catch(com.fasterxml.jackson.core.JsonProcessingException jsonEx){
+            throw(new DataFormatException("Unable to read Bundle JSON: " + jsonEx.getMessage(), jsonEx));
+        } catch(IOException ioEx){
+            throw(new UncheckedIOException(ioEx));
+        }
+    }
+
+    private Bundle decodeBundleInParallel(JsonParser jsonParser) throws IOException {
+        if(jsonParser.nextToken() != JsonToken.START_OBJECT){
+            throw(new DataFormatException("Bundle JSON is not an object"));
+        }
+        FhirContext fhirContext = getFhirContext();
+        Executor executor = this.parallelDecodingExecutor;
+        int chunkSize = this.parallelDecodingChunkSize;
+        List<CompletableFuture<Bundle>> chunkFutures = new ArrayList<>();
+        StringWriter shellWriter = new StringWriter();
+        try{
+            try(JsonGenerator shellGenerator = JSON_FACTORY.createGenerator(shellWriter)){
+                shellGenerator.writeStartObject();
+                while(jsonParser.nextToken() == JsonToken.FIELD_NAME){
+                    String fieldName = jsonParser.getCurrentName();
+                    JsonToken valueToken = jsonParser.nextToken();
+                    if(BUNDLE_ENTRY_FIELD.equals(fieldName) && valueToken == JsonToken.START_ARRAY){
+                        splitEntries(jsonParser, chunkSize, fhirContext, executor, chunkFutures);
+                    } else {
+                        if(RESOURCE_TYPE_FIELD.equals(fieldName) && !BUNDLE_RESOURCE_TYPE.equals(jsonParser.getValueAsString())){
+                            throw(new DataFormatException("Expected a Bundle but found resourceType " + jsonParser.getValueAsString()));
+                        }
+                        shellGenerator.writeFieldName(fieldName);
+                        shellGenerator.copyCurrentStructure(jsonParser);
+                    }
+                }
+                shellGenerator.writeEndObject();
+            }
+            Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, shellWriter.toString());
+            for(CompletableFuture<Bundle> chunkFuture: chunkFutures){
+                for(Bundle.BundleEntryComponent entry: chunkFuture.join().getEntry()){
+                    bundle.addEntry(entry);
+                }
+            }
+            if(chunkFutures.size() > 1){
+                linkReferences(bundle, fhirContext);
+            }
+            if(fhirContext.getParserOptions().isOverrideResourceIdWithBundleEntryFullUrl()){
+                overrideResourceIdsWithFullUrls(bundle);
+            }
+            return(bundle);
+        } catch(CompletionException completionEx){
+            cancelAll(chunkFutures);
+            if(completionEx.getCause() instanceof RuntimeException){
+                throw((RuntimeException)completionEx.getCause());
+            }
+            throw(completionEx);
+        } catch(IOException | RuntimeException ex){
+            cancelAll(chunkFutures);
+            throw(ex);
+        }
+    }
+
+    /**
+     * Splits the entry array (positioned at its START_ARRAY) into chunk Bundles,
+     * submitting each to the Executor as soon as it is full. The final (partial)
+     * chunk is parsed on the calling thread, which would otherwise only wait.
+     */
+    private void splitEntries(JsonParser jsonParser, int chunkSize, FhirContext fhirContext, Executor executor, List<CompletableFuture<Bundle>> chunkFutures) throws IOException {
+        StringWriter chunkWriter = null;
+        JsonGenerator chunkGenerator = null;
+        int chunkEntryCount = 0;
+        while(jsonParser.nextToken() != JsonToken.END_ARRAY){
+            if(chunkGenerator == null){
+                chunkWriter = new StringWriter();
+                chunkGenerator = JSON_FACTORY.createGenerator(chunkWriter);
+                chunkGenerator.writeStartObject();
+                chunkGenerator.writeStringField(RESOURCE_TYPE_FIELD, BUNDLE_RESOURCE_TYPE);
+                chunkGenerator.writeArrayFieldStart(BUNDLE_ENTRY_FIELD);
+            }
+            chunkGenerator.copyCurrentStructure(jsonParser);
+            chunkEntryCount += 1;
+            if(chunkEntryCount == chunkSize){
+                String chunkJSON = closeChunk(chunkGenerator, chunkWriter);
+                chunkFutures.add(CompletableFuture.supplyAsync(() -> parseChunk(fhirContext, chunkJSON), executor));
+                chunkGenerator = null;
+                chunkEntryCount = 0;
+            }
+        }
+        if(chunkGenerator != null){
+            String chunkJSON = closeChunk(chunkGenerator, chunkWriter);
+            chunkFutures.add(CompletableFuture.completedFuture(parseChunk(fhirContext, chunkJSON)));
+        }
+    }
+
+    /**
+     * Parses a chunk, leaving the resource ids as they are in the JSON: the
+     * References are linked by those ids, so the fullUrls may only replace them
+     * once the whole Bundle has been linked.
+     */
+    private Bundle parseChunk(FhirContext fhirContext, String chunkJSON){
+        IParser chunkParser = fhirContext.newJsonParser();
+        chunkParser.setOverrideResourceIdWithBundleEntryFullUrl(false);
+        return(chunkParser.parseResource(Bundle.class, chunkJSON));
+    }
+
+    /**
+     * Links each Reference in the (reassembled) Bundle to its target, keyed the
+     * same way HAPI's parser does it for a whole Bundle: by entry fullUrl and by
+     * (unqualified, versionless) "Type/id", later resources taking precedence.
+     * Each chunk has already been linked within itself, but a target in another
+     * chunk was not visible at the time. Contained ("#id") References that the
+     * chunk parse resolved are left as they are.
+     */
+    private void linkReferences(Bundle bundle, FhirContext fhirContext){
+        Map<String, Resource> resourcesByKey = new HashMap<>();
+        for(Bundle.BundleEntryComponent entry: bundle.getEntry()){
+            if(entry.hasFullUrl() && entry.getResource() != null){
+                resourcesByKey.put(entry.getFullUrl(), entry.getResource());
+            }
+        }
+        // As HAPI's parser lists them: contained resources before their container
+        List<Resource> resources = new ArrayList<>(bundle.getEntry().size() + 1);
+        for(Bundle.BundleEntryComponent entry: bundle.getEntry()){
+            Resource resource = entry.getResource();
+            if(resource instanceof DomainResource){
+                resources.addAll(((DomainResource)resource).getContained());
+            }
+            if(resource != null){
+                resources.add(resource);
+            }
+        }
+        resources.add(bundle);
+        for(Resource resource: resources){
+            IdType resourceId = resource.getIdElement();
+            if(resourceId != null && !resourceId.isEmpty()){
+                resourcesByKey.put(resourceId.withResourceType(resource.fhirType()).toUnqualifiedVersionless().getValue(), resource);
+            }
+        }
+        FhirTerser terser = fhirContext.newTerser();
+        for(Resource resource: resources){
+            for(Reference reference: terser.getAllPopulatedChildElementsOfType(resource, Reference.class)){
+                if(reference.isEmpty() || isResolvedContainedReference(reference)){
+                    continue;
+                }
+                Resource target = resourcesByKey.get(reference.getReferenceElement().toUnqualifiedVersionless().getValue());
+                if(target != null){
+                    reference.setResource(target);
+                }
+            }
+        }
+    }
+
+    private boolean isResolvedContainedReference(Reference reference){
+        return(reference.getResource() != null && reference.hasReference() && reference.getReference().startsWith("#"));
+    }
+
+    /**
+     * Gives each entry's resource the id a single-threaded parse would (R4 rules):
+     * the fullUrl if the resource has no id, or a "urn:" fullUrl that ends with
+     * the id; otherwise, if the fullUrl names the same id, the id qualified with
+     * the fullUrl's base.
+     */
+    private void overrideResourceIdsWithFullUrls(Bundle bundle){
+        for(Bundle.BundleEntryComponent entry: bundle.getEntry()){
+            Resource resource = entry.getResource();
+            String fullUrl = entry.getFullUrl();
+            if(resource == null || fullUrl == null){
+                continue;
+            }
+            IdType resourceId = resource.getIdElement();
+            if(resourceId.getValue() == null || resourceId.getValue().trim().isEmpty()){
+                resourceId.setValue(fullUrl);
+            } else if(fullUrl.startsWith("urn:") && fullUrl.endsWith(":" + resourceId.getIdPart())){
+                resourceId.setValue(fullUrl);
+            } else {
+                IdType fullUrlId = new IdType(fullUrl);
+                if(fullUrlId.hasBaseUrl() && fullUrlId.getIdPart() != null && fullUrlId.getIdPart().equals(resourceId.getIdPart())){
+                    IdType qualifiedId = resourceId.withServerBase(fullUrlId.getBaseUrl(), resourceId.getResourceType());
+                    resourceId.setValue(qualifiedId.getValue());
+                }
+            }
+        }
+    }
+
+    private String closeChunk(JsonGenerator chunkGenerator, StringWriter chunkWriter) throws IOException {
+        chunkGenerator.writeEndArray();
+        chunkGenerator.writeEndObject();
+        chunkGenerator.close();
+        return(chunkWriter.toString());
+    }
+
+    private void cancelAll(List<CompletableFuture<Bundle>> chunkFutures){
+        for(CompletableFuture<Bundle> chunkFuture: chunkFutures){
+            chunkFuture.cancel(false);
+        }
+    }
+
+    private FhirContext getFhirContext(){
+        if(fhirContextUtility != null){
+            return(fhirContextUtility.getFhirContext());
+        }
+        // Not injected (e.g. used outside of CDI): FhirContexts are expensive, so build just the one
+        FhirContext currentFhirContext = fallbackFhirContext;
+        if(currentFhirContext == null){
+            synchronized(this){
+                currentFhirContext = fallbackFhirContext;
+                if(currentFhirContext == null){
+                    currentFhirContext = FhirContext.forR4();
+                    fallbackFhirContext = currentFhirContext;
+                }
+            }
+        }
+        return(currentFhirContext);
+    }
 }
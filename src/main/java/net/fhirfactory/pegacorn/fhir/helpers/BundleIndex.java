@@ -0,0 +1,271 @@
+package net.fhirfactory.pegacorn.fhir.helpers;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A lookup index over the entries of a Bundle, built in a single pass, so that
+ * finding resources by type, by fullUrl or by logical id (and so resolving the
+ * References between entries) does not rescan the entry list each time.
+ *
+ * The index is a snapshot: changes to the Bundle after it was built are not
+ * reflected. It is safe for concurrent readers.
+ */
+public class BundleIndex {
+
+    private static final String HISTORY_SEGMENT = "/_history/";
+
+    private final Bundle bundle;
+    private final Map<ResourceType, List<Resource>> resourcesByType;
+    private final Map<String, Bundle.BundleEntryComponent> entriesByFullUrl;
+    private final Map<String, Bundle.BundleEntryComponent> entriesByTypeAndId;
+    private final int resourceCount;
+
+    public BundleIndex(Bundle bundle){
+        if(bundle == null){
+            throw(new IllegalArgumentException("bundle is null"));
+        }
+        this.bundle = bundle;
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        Map<ResourceType, List<Resource>> byType = new EnumMap<>(ResourceType.class);
+        Map<String, Bundle.BundleEntryComponent> byFullUrl = new HashMap<>(mapCapacity(entries.size()));
+        Map<String, Bundle.BundleEntryComponent> byTypeAndId = new HashMap<>(mapCapacity(entries.size()));
+        int count = 0;
+        for(Bundle.BundleEntryComponent entry: entries){
+            if(entry.hasFullUrl()){
+                byFullUrl.putIfAbsent(entry.getFullUrl(), entry);
+            }
+            Resource resource = entry.getResource();
+            if(resource == null){
+                continue;
+            }
+            count += 1;
+            ResourceType resourceType = resource.getResourceType();
+            byType.computeIfAbsent(resourceType, type -> new ArrayList<>()).add(resource);
+            String id = resource.getIdElement().getIdPart();
+            if(id != null && !id.isEmpty()){
+                byTypeAndId.putIfAbsent(resourceType.name() + "/" + id, entry);
+            }
+        }
+        for(Map.Entry<ResourceType, List<Resource>> typeEntry: byType.entrySet()){
+            typeEntry.setValue(Collections.unmodifiableList(typeEntry.getValue()));
+        }
+        this.resourcesByType = byType;
+        this.entriesByFullUrl = byFullUrl;
+        this.entriesByTypeAndId = byTypeAndId;
+        this.resourceCount = count;
+    }
+
+    public Bundle getBundle(){
+        return(this.bundle);
+    }
+
+    /**
+     * @return The number of entries that carry a resource.
+     */
+    public int size(){
+        return(this.resourceCount);
+    }
+
+    public boolean hasResources(ResourceType resourceType){
+        return(this.resourcesByType.containsKey(resourceType));
+    }
+
+    /**
+     * @return The resources of the given type, in Bundle order (an empty list if there are none).
+     */
+    public List<Resource> getResources(ResourceType resourceType){
+        List<Resource> resources = this.resourcesByType.get(resourceType);
+        if(resources == null){
+            return(Collections.emptyList());
+        }
+        return(resources);
+    }
+
+    public <T extends Resource> List<T> getResources(ResourceType resourceType, Class<T> resourceClass){
+        List<Resource> resources = getResources(resourceType);
+        List<T> typedResources = new ArrayList<>(resources.size());
+        for(Resource resource: resources){
+            if(resourceClass.isInstance(resource)){
+                typedResources.add(resourceClass.cast(resource));
+            }
+        }
+        return(typedResources);
+    }
+
+    /**
+     * @return The first resource of the given type, or null if there is none.
+     */
+    public Resource getFirstResource(ResourceType resourceType){
+        List<Resource> resources = this.resourcesByType.get(resourceType);
+        if(resources == null){
+            return(null);
+        }
+        return(resources.get(0));
+    }
+
+    public Bundle.BundleEntryComponent getEntryByFullUrl(String fullUrl){
+        if(fullUrl == null){
+            return(null);
+        }
+        return(this.entriesByFullUrl.get(fullUrl));
+    }
+
+    public Resource getResourceByFullUrl(String fullUrl){
+        Bundle.BundleEntryComponent entry = getEntryByFullUrl(fullUrl);
+        if(entry == null){
+            return(null);
+        }
+        return(entry.getResource());
+    }
+
+    public Resource getResource(ResourceType resourceType, String id){
+        if(resourceType == null || id == null){
+            return(null);
+        }
+        Bundle.BundleEntryComponent entry = this.entriesByTypeAndId.get(resourceType.name() + "/" + id);
+        if(entry == null){
+            return(null);
+        }
+        return(entry.getResource());
+    }
+
+    /**
+     * Resolves a reference string against the Bundle, without knowing which
+     * entry it came from; see resolve(String, BundleEntryComponent).
+     *
+     * @return The referenced resource, or null if it is not within the Bundle.
+     */
+    public Resource resolve(String reference){
+        return(resolve(reference, (Bundle.BundleEntryComponent)null));
+    }
+
+    /**
+     * Resolves a reference string, made from within the given entry, against
+     * the Bundle as per the FHIR Bundle reference resolution rules (ignoring
+     * any "/_history/" version):
+     * <ul>
+     * <li>An absolute reference (a URL or a "urn:") only matches an entry
+     * with that fullUrl.</li>
+     * <li>A relative ("Type/id") reference made from an entry with a RESTful
+     * fullUrl is resolved against that entry's base. An entry with no base
+     * of its own (none given, or a "urn:" fullUrl) resolves it by "Type/id"
+     * - to any entry that does not sit on a different base.</li>
+     * </ul>
+     *
+     * @param referencingEntry The entry holding the reference (may be null)
+     * @return The referenced resource, or null if it is not within the Bundle.
+     */
+    public Resource resolve(String reference, Bundle.BundleEntryComponent referencingEntry){
+        if(reference == null || reference.isEmpty() || reference.startsWith("#")){
+            return(null);
+        }
+        Resource resource = getResourceByFullUrl(reference);
+        if(resource != null){
+            return(resource);
+        }
+        String versionlessReference = stripHistory(reference);
+        if(isAbsolute(versionlessReference)){
+            return(getResourceByFullUrl(versionlessReference));
+        }
+        String referencingBase = null;
+        if(referencingEntry != null){
+            referencingBase = restfulBase(referencingEntry.getFullUrl());
+        }
+        if(referencingBase != null){
+            resource = getResourceByFullUrl(referencingBase + versionlessReference);
+            if(resource != null){
+                return(resource);
+            }
+        }
+        Bundle.BundleEntryComponent entry = this.entriesByTypeAndId.get(versionlessReference);
+        if(entry == null){
+            return(null);
+        }
+        String entryBase = restfulBase(entry.getFullUrl());
+        if(referencingBase != null && entryBase != null && !referencingBase.equals(entryBase)){
+            return(null);
+        }
+        return(entry.getResource());
+    }
+
+    /**
+     * Resolves a Reference: an already-attached resource is returned as is,
+     * otherwise the reference string is resolved as per resolve(String).
+     * Contained ("#id") references are not Bundle entries, so resolve to null.
+     */
+    public Resource resolve(Reference reference){
+        return(resolve(reference, (Bundle.BundleEntryComponent)null));
+    }
+
+    /**
+     * As resolve(Reference), but resolving the reference string as per
+     * resolve(String, BundleEntryComponent).
+     */
+    public Resource resolve(Reference reference, Bundle.BundleEntryComponent referencingEntry){
+        if(reference == null){
+            return(null);
+        }
+        if(reference.getResource() instanceof Resource){
+            return((Resource)reference.getResource());
+        }
+        if(!reference.hasReference()){
+            return(null);
+        }
+        return(resolve(reference.getReference(), referencingEntry));
+    }
+
+    public <T extends Resource> T resolve(Reference reference, Class<T> resourceClass){
+        Resource resource = resolve(reference);
+        if(resourceClass.isInstance(resource)){
+            return(resourceClass.cast(resource));
+        }
+        return(null);
+    }
+
+    private static String stripHistory(String reference){
+        int historyIndex = reference.indexOf(HISTORY_SEGMENT);
+        if(historyIndex < 0){
+            return(reference);
+        }
+        return(reference.substring(0, historyIndex));
+    }
+
+    private static boolean isAbsolute(String reference){
+        return(reference.startsWith("urn:") || reference.contains("://"));
+    }
+
+    /**
+     * @return The base (up to and including the "/" before "Type/id") of a
+     * RESTful fullUrl, or null if the fullUrl is not one.
+     */
+    private static String restfulBase(String fullUrl){
+        if(fullUrl == null){
+            return(null);
+        }
+        int schemeEnd = fullUrl.indexOf("://");
+        if(schemeEnd < 0){
+            return(null);
+        }
+        String versionlessUrl = stripHistory(fullUrl);
+        int idSlash = versionlessUrl.lastIndexOf('/');
+        int typeSlash = (idSlash > 0) ? versionlessUrl.lastIndexOf('/', idSlash - 1) : -1;
+        if(typeSlash <= schemeEnd + 2 || idSlash == versionlessUrl.length() - 1){
+            return(null);
+        }
+        return(versionlessUrl.substring(0, typeSlash + 1));
+    }
+
+    private static int mapCapacity(int expectedSize){
+        return((int)(expectedSize / 0.75f) + 1);
+    }
+}
@@ -18,10 +18,82 @@
  */
 package net.fhirfactory.pegacorn.internals.events;
 
+import java.util.Arrays;
+
 /**
+ * The Pegacorn event Extensions, with their canonical URLs (all within the
+ * http://pegacorn.fhirbox.net/pegacorn/R1/event/ namespace). Only the
+ * Extensions the platform actually defines belong here - currently just
+ * event_action (see EventAction).
+ *
+ * fromUrl() resolves a URL without hashing it: after a single check of the
+ * shared namespace prefix, the remainder is dispatched on its length (via a
+ * precomputed table) and compared in place with the (few) candidates.
  *
  * @author Mark A. Hunter (ACT Health)
  */
 public enum PegacornEventExtensionEnum {
-    
+    EVENT_ACTION("event_action");
+
+    public static final String EVENT_EXTENSION_URL_PREFIX = "http://pegacorn.fhirbox.net/pegacorn/R1/event/";
+
+    private static final PegacornEventExtensionEnum[][] EXTENSIONS_BY_NAME_LENGTH = buildDispatchTable();
+
+    private final String extensionName;
+    private final String url;
+
+    PegacornEventExtensionEnum(String extensionName) {
+        this.extensionName = extensionName;
+        this.url = EVENT_EXTENSION_URL_PREFIX + extensionName;
+    }
+
+    public String getUrl() {
+        return (url);
+    }
+
+    /**
+     * @return The name of the Extension (i.e. the URL without the namespace prefix).
+     */
+    public String getExtensionName() {
+        return (extensionName);
+    }
+
+    /**
+     * @return The event Extension with the URL, or null if it is not a (known)
+     * Pegacorn event Extension URL.
+     */
+    public static PegacornEventExtensionEnum fromUrl(String url) {
+        if (url == null || !url.startsWith(EVENT_EXTENSION_URL_PREFIX)) {
+            return (null);
+        }
+        int nameLength = url.length() - EVENT_EXTENSION_URL_PREFIX.length();
+        if (nameLength >= EXTENSIONS_BY_NAME_LENGTH.length) {
+            return (null);
+        }
+        PegacornEventExtensionEnum[] candidates = EXTENSIONS_BY_NAME_LENGTH[nameLength];
+        if (candidates == null) {
+            return (null);
+        }
+        for (PegacornEventExtensionEnum candidate : candidates) {
+            if (url.regionMatches(EVENT_EXTENSION_URL_PREFIX.length(), candidate.extensionName, 0, nameLength)) {
+                return (candidate);
+            }
+        }
+        return (null);
+    }
+
+    private static PegacornEventExtensionEnum[][] buildDispatchTable() {
+        int maximumLength = 0;
+        for (PegacornEventExtensionEnum extension : values()) {
+            maximumLength = Math.max(maximumLength, extension.extensionName.length());
+        }
+        PegacornEventExtensionEnum[][] dispatchTable = new PegacornEventExtensionEnum[maximumLength + 1][];
+        for (PegacornEventExtensionEnum extension : values()) {
+            PegacornEventExtensionEnum[] existing = dispatchTable[extension.extensionName.length()];
+            PegacornEventExtensionEnum[] candidates = (existing == null) ? new PegacornEventExtensionEnum[1] : Arrays.copyOf(existing, existing.length + 1);
+            candidates[candidates.length - 1] = extension;
+            dispatchTable[extension.extensionName.length()] = candidates;
+        }
+        return (dispatchTable);
+    }
 }
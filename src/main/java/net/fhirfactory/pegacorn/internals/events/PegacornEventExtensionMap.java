@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.fhirfactory.pegacorn.internals.events;
+
+import java.util.EnumMap;
+import java.util.Map;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Type;
+
+/**
+ * Holds (at most) one Extension per Pegacorn event Extension, in an EnumMap -
+ * so getting/setting an event Extension is an array access with no URL
+ * hashing or comparison. URLs are only resolved (see
+ * PegacornEventExtensionEnum.fromUrl()) when Extensions are read in from a
+ * Meta or a PegacornEventExtensionSet.
+ *
+ * As per PegacornEventExtensionSet, the Extensions are shared rather than
+ * copied. Not thread-safe.
+ *
+ * @author Mark A. Hunter (ACT Health)
+ */
+public class PegacornEventExtensionMap {
+
+    private final EnumMap<PegacornEventExtensionEnum, Extension> extensions = new EnumMap<>(PegacornEventExtensionEnum.class);
+
+    public PegacornEventExtensionMap() {
+    }
+
+    /**
+     * Takes the (first) Pegacorn event Extension of each kind within the set;
+     * any other Extensions are ignored.
+     */
+    public PegacornEventExtensionMap(PegacornEventExtensionSet extensionSet) {
+        if (extensionSet == null) {
+            throw (new IllegalArgumentException("null PegacornEventExtensionSet passed to Constructor"));
+        }
+        for (Extension currentExtension : extensionSet.getExtensionList()) {
+            addIfEventExtension(currentExtension);
+        }
+    }
+
+    public PegacornEventExtensionMap(Meta sourceMeta) {
+        if (sourceMeta == null) {
+            throw (new IllegalArgumentException("null Meta passed to Constructor"));
+        }
+        for (Extension currentExtension : sourceMeta.getExtension()) {
+            addIfEventExtension(currentExtension);
+        }
+    }
+
+    public Extension getExtension(PegacornEventExtensionEnum extensionType) {
+        return (extensions.get(extensionType));
+    }
+
+    /**
+     * @return The value of the Extension, or null if it is not present.
+     */
+    public Type getValue(PegacornEventExtensionEnum extensionType) {
+        Extension extension = extensions.get(extensionType);
+        return ((extension == null) ? null : extension.getValue());
+    }
+
+    public boolean hasExtension(PegacornEventExtensionEnum extensionType) {
+        return (extensions.containsKey(extensionType));
+    }
+
+    /**
+     * Sets the event Extension, which must have one of the Pegacorn event
+     * Extension URLs.
+     */
+    public void setExtension(Extension extension) {
+        if (extension == null) {
+            throw (new IllegalArgumentException("null Extension passed to setExtension()"));
+        }
+        PegacornEventExtensionEnum extensionType = PegacornEventExtensionEnum.fromUrl(extension.getUrl());
+        if (extensionType == null) {
+            throw (new IllegalArgumentException("Not a Pegacorn event Extension URL --> " + extension.getUrl()));
+        }
+        extensions.put(extensionType, extension);
+    }
+
+    /**
+     * Sets (a new Extension with) the value for the event Extension.
+     */
+    public Extension setValue(PegacornEventExtensionEnum extensionType, Type value) {
+        if (extensionType == null || value == null) {
+            throw (new IllegalArgumentException("null extensionType or value passed to setValue()"));
+        }
+        Extension extension = new Extension(extensionType.getUrl(), value);
+        extensions.put(extensionType, extension);
+        return (extension);
+    }
+
+    public Extension removeExtension(PegacornEventExtensionEnum extensionType) {
+        return (extensions.remove(extensionType));
+    }
+
+    public int size() {
+        return (extensions.size());
+    }
+
+    public boolean isEmpty() {
+        return (extensions.isEmpty());
+    }
+
+    /**
+     * @return A PegacornEventExtensionSet of the Extensions (in enum order).
+     */
+    public PegacornEventExtensionSet toExtensionSet() {
+        PegacornEventExtensionSet extensionSet = new PegacornEventExtensionSet();
+        for (Map.Entry<PegacornEventExtensionEnum, Extension> currentEntry : extensions.entrySet()) {
+            extensionSet.addExtension(currentEntry.getValue());
+        }
+        return (extensionSet);
+    }
+
+    /**
+     * Writes the Extensions into the Meta, replacing any of the Meta's existing
+     * Extensions with the same URLs.
+     */
+    public void applyTo(Meta targetMeta) {
+        if (targetMeta == null) {
+            throw (new IllegalArgumentException("null Meta passed to applyTo()"));
+        }
+        targetMeta.getExtension().removeIf(existingExtension -> {
+            PegacornEventExtensionEnum extensionType = PegacornEventExtensionEnum.fromUrl(existingExtension.getUrl());
+            return (extensionType != null && extensions.containsKey(extensionType));
+        });
+        targetMeta.getExtension().addAll(extensions.values());
+    }
+
+    private void addIfEventExtension(Extension extension) {
+        PegacornEventExtensionEnum extensionType = PegacornEventExtensionEnum.fromUrl(extension.getUrl());
+        if (extensionType != null) {
+            extensions.putIfAbsent(extensionType, extension);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return ("PegacornEventExtensionMap{" + extensions.keySet() + "}");
+    }
+}
@@ -19,38 +19,187 @@
 package net.fhirfactory.pegacorn.internals.events;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.hl7.fhir.r4.model.Meta;
 import org.hl7.fhir.r4.model.Extension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * A set of (event) Extensions, indexed by URL.
+ *
+ * The set is copy-on-write: its content is held as an immutable snapshot (an
+ * unmodifiable list plus a URL index) which is replaced as a whole on each
+ * change, so reads are lock-free, allocation free and O(1) by URL. The
+ * Extensions themselves are shared rather than deep-copied, so an Extension
+ * must not be modified once it has been added to a set.
  *
  * @author Mark A. Hunter (ACT Health)
  */
 public class PegacornEventExtensionSet {
 
     private static final Logger LOG = LoggerFactory.getLogger(PegacornEventExtensionSet.class);
-    public ArrayList<Extension> extensionList;
+    private static final Snapshot EMPTY_SNAPSHOT = new Snapshot(new ArrayList<>());
+
+    private volatile Snapshot snapshot;
 
     public PegacornEventExtensionSet() {
-        LOG.debug("constructure(): Entry - empty constructor");
-        this.extensionList = new ArrayList<Extension>();
+        LOG.debug("constructor(): Entry - empty constructor");
+        this.snapshot = EMPTY_SNAPSHOT;
     }
 
     public PegacornEventExtensionSet(Extension sourceExtensionEntity) {
         LOG.debug("constructor(): Entry - source (single) Extension Entity provided");
-        this.extensionList.add(sourceExtensionEntity.copy());
+        checkExtension(sourceExtensionEntity);
+        ArrayList<Extension> extensions = new ArrayList<>(1);
+        extensions.add(sourceExtensionEntity);
+        this.snapshot = new Snapshot(extensions);
     }
 
     public PegacornEventExtensionSet(List<Extension> sourceExtensionEntityList) {
-        LOG.debug(" constructor(): Entry - source (list) Extension Entity provided");
-        this.extensionList.addAll(extensionList);
+        LOG.debug("constructor(): Entry - source (list) Extension Entity provided");
+        if (sourceExtensionEntityList == null) {
+            throw (new IllegalArgumentException("null Extension list passed to Constructor"));
+        }
+        ArrayList<Extension> extensions = new ArrayList<>(sourceExtensionEntityList.size());
+        for (Extension currentExtension : sourceExtensionEntityList) {
+            extensions.add(checkExtension(currentExtension));
+        }
+        this.snapshot = new Snapshot(extensions);
+    }
+
+    /**
+     * Builds a set from the Extensions within the Meta.
+     */
+    public PegacornEventExtensionSet(Meta sourceMeta) {
+        this((sourceMeta == null) ? null : sourceMeta.getExtension());
     }
 
+    /**
+     * @return The (unmodifiable) list of Extensions, in the order they were added.
+     */
     public List<Extension> getExtensionList() {
-        return (this.extensionList);
+        return (this.snapshot.extensions);
+    }
+
+    /**
+     * @return The first Extension with the URL, or null if there is none.
+     */
+    public Extension getExtension(String url) {
+        List<Extension> matchingExtensions = this.snapshot.extensionsByUrl.get(url);
+        return ((matchingExtensions == null) ? null : matchingExtensions.get(0));
+    }
+
+    /**
+     * @return The (unmodifiable) list of Extensions with the URL (empty if none).
+     */
+    public List<Extension> getExtensions(String url) {
+        List<Extension> matchingExtensions = this.snapshot.extensionsByUrl.get(url);
+        return ((matchingExtensions == null) ? Collections.emptyList() : matchingExtensions);
+    }
+
+    public Extension getExtension(PegacornEventExtensionEnum extensionType) {
+        return (getExtension(extensionType.getUrl()));
+    }
+
+    public boolean hasExtension(String url) {
+        return (this.snapshot.extensionsByUrl.containsKey(url));
+    }
+
+    public int size() {
+        return (this.snapshot.extensions.size());
+    }
+
+    public boolean isEmpty() {
+        return (this.snapshot.extensions.isEmpty());
     }
 
+    public synchronized void addExtension(Extension extension) {
+        checkExtension(extension);
+        ArrayList<Extension> extensions = new ArrayList<>(this.snapshot.extensions.size() + 1);
+        extensions.addAll(this.snapshot.extensions);
+        extensions.add(extension);
+        this.snapshot = new Snapshot(extensions);
+    }
+
+    /**
+     * Replaces any Extensions with the same URL by the Extension.
+     */
+    public synchronized void setExtension(Extension extension) {
+        checkExtension(extension);
+        ArrayList<Extension> extensions = new ArrayList<>(this.snapshot.extensions.size() + 1);
+        for (Extension currentExtension : this.snapshot.extensions) {
+            if (!extension.getUrl().equals(currentExtension.getUrl())) {
+                extensions.add(currentExtension);
+            }
+        }
+        extensions.add(extension);
+        this.snapshot = new Snapshot(extensions);
+    }
+
+    /**
+     * @return true if any Extensions with the URL were removed.
+     */
+    public synchronized boolean removeExtensions(String url) {
+        if (!hasExtension(url)) {
+            return (false);
+        }
+        ArrayList<Extension> extensions = new ArrayList<>(this.snapshot.extensions.size());
+        for (Extension currentExtension : this.snapshot.extensions) {
+            if (!currentExtension.getUrl().equals(url)) {
+                extensions.add(currentExtension);
+            }
+        }
+        this.snapshot = new Snapshot(extensions);
+        return (true);
+    }
+
+    /**
+     * Writes the Extensions into the Meta, replacing any of the Meta's existing
+     * Extensions with the same URLs.
+     */
+    public void applyTo(Meta targetMeta) {
+        if (targetMeta == null) {
+            throw (new IllegalArgumentException("null Meta passed to applyTo()"));
+        }
+        Snapshot currentSnapshot = this.snapshot;
+        targetMeta.getExtension().removeIf(existingExtension -> currentSnapshot.extensionsByUrl.containsKey(existingExtension.getUrl()));
+        targetMeta.getExtension().addAll(currentSnapshot.extensions);
+    }
+
+    @Override
+    public String toString() {
+        return ("PegacornEventExtensionSet{urls=" + this.snapshot.extensionsByUrl.keySet() + "}");
+    }
+
+    private static Extension checkExtension(Extension extension) {
+        if (extension == null || extension.getUrl() == null) {
+            throw (new IllegalArgumentException("null Extension (or Extension URL) passed to PegacornEventExtensionSet"));
+        }
+        return (extension);
+    }
+
+    //
+    // An immutable view of the set's content
+    //
+
+    private static final class Snapshot {
+        private final List<Extension> extensions;
+        private final Map<String, List<Extension>> extensionsByUrl;
+
+        Snapshot(ArrayList<Extension> extensions) {
+            this.extensions = Collections.unmodifiableList(extensions);
+            HashMap<String, List<Extension>> index = new HashMap<>();
+            for (Extension currentExtension : extensions) {
+                index.computeIfAbsent(currentExtension.getUrl(), url -> new ArrayList<>(1)).add(currentExtension);
+            }
+            for (Map.Entry<String, List<Extension>> currentEntry : index.entrySet()) {
+                currentEntry.setValue(Collections.unmodifiableList(currentEntry.getValue()));
+            }
+            this.extensionsByUrl = index;
+        }
+    }
 }
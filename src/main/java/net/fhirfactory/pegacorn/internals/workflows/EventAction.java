@@ -20,6 +20,8 @@ package net.fhirfactory.pegacorn.internals.workflows;
 
 import javax.inject.Singleton;
 
+import net.fhirfactory.pegacorn.internals.events.PegacornEventExtensionEnum;
+
 /**
  *
  * @author Mark A. Hunter (ACT Health)
@@ -27,15 +29,15 @@ import javax.inject.Singleton;
 
 public class EventAction {
     
-    private static final String MESSAGE_ACTION_CREATE = "pegacorn.event.action.Create";
-    private static final String MESSAGE_ACTION_UPDATE = "pegacorn.event.action.Update";
-    private static final String MESSAGE_ACTION_DELETE = "pegacorn.event.action.Delete";
-    private static final String MESSAGE_ACTION_REVIEW = "pegacorn.event.action.Review";
+    private static final String MESSAGE_ACTION_CREATE = EventActionType.CREATE.getCode();
+    private static final String MESSAGE_ACTION_UPDATE = EventActionType.UPDATE.getCode();
+    private static final String MESSAGE_ACTION_DELETE = EventActionType.DELETE.getCode();
+    private static final String MESSAGE_ACTION_REVIEW = EventActionType.REVIEW.getCode();
     
-    private static final String MESSAGE_ACTION_UPDATE_ADD = "pegacorn.event.action.Update.Add";
-    private static final String MESSAGE_ACTION_UPDATE_REMOVE = "pegacorn.event.action.Update.Remove";
+    private static final String MESSAGE_ACTION_UPDATE_ADD = EventActionType.UPDATE_ADD.getCode();
+    private static final String MESSAGE_ACTION_UPDATE_REMOVE = EventActionType.UPDATE_REMOVE.getCode();
     
-    private static final String MESSAGE_ACTION_URL = "http://pegacorn.fhirbox.net/pegacorn/R1/event/event_action";
+    private static final String MESSAGE_ACTION_URL = PegacornEventExtensionEnum.EVENT_ACTION.getUrl();
     
     public String getActionCreate(){return(MESSAGE_ACTION_CREATE);}
     public String getActionUpdate(){return(MESSAGE_ACTION_UPDATE);}
@@ -46,81 +48,37 @@ public class EventAction {
     
     public String getEventActionSystem(){return(MESSAGE_ACTION_URL);}
     
+    /**
+     * @return The (most specific) action within the value - see EventActionType.classify().
+     */
+    public EventActionType classifyAction(String testValue){
+        return(EventActionType.classify(testValue));
+    }
+
     public boolean isActionCreate(String testValue){
-        if( testValue == null ){
-            return(false);
-        }
-        if( testValue.isEmpty()){
-            return(false);
-        }
-        if( testValue.contains(MESSAGE_ACTION_CREATE)){
-            return(true);
-        }
-        return(false);
+        return(EventActionType.classify(testValue) == EventActionType.CREATE);
     }
     
+    /**
+     * @return true for an Update action, including the Update.Add and Update.Remove variants.
+     */
     public boolean isActionUpdate(String testValue){
-        if( testValue == null ){
-            return(false);
-        }
-        if( testValue.isEmpty()){
-            return(false);
-        }
-        if( testValue.contains(MESSAGE_ACTION_UPDATE)){
-            return(true);
-        }
-        return(false);
+        return(EventActionType.classify(testValue).isUpdate());
     }    
     
     public boolean isActionDelete(String testValue){
-        if( testValue == null ){
-            return(false);
-        }
-        if( testValue.isEmpty()){
-            return(false);
-        }
-        if( testValue.contains(MESSAGE_ACTION_DELETE)){
-            return(true);
-        }
-        return(false);
+        return(EventActionType.classify(testValue) == EventActionType.DELETE);
     }   
 
     public boolean isActionReview(String testValue){
-        if( testValue == null ){
-            return(false);
-        }
-        if( testValue.isEmpty()){
-            return(false);
-        }
-        if( testValue.contains(MESSAGE_ACTION_REVIEW)){
-            return(true);
-        }
-        return(false);
+        return(EventActionType.classify(testValue) == EventActionType.REVIEW);
     }   
     
     public boolean isActionUpdateAdd(String testValue){
-        if( testValue == null ){
-            return(false);
-        }
-        if( testValue.isEmpty()){
-            return(false);
-        }
-        if( testValue.contains(MESSAGE_ACTION_UPDATE_ADD)){
-            return(true);
-        }
-        return(false);
+        return(EventActionType.classify(testValue) == EventActionType.UPDATE_ADD);
     }      
     
     public boolean isActionUpdateRemove(String testValue){
-        if( testValue == null ){
-            return(false);
-        }
-        if( testValue.isEmpty()){
-            return(false);
-        }
-        if( testValue.contains(MESSAGE_ACTION_UPDATE_REMOVE)){
-            return(true);
-        }
-        return(false);
+        return(EventActionType.classify(testValue) == EventActionType.UPDATE_REMOVE);
     }    
 }
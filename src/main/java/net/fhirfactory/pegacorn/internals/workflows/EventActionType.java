@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.fhirfactory.pegacorn.internals.workflows;
+
+import java.util.stream.Stream;
+
+/**
+ * The Pegacorn event actions, as carried (as a code) within the event_action
+ * extension - see EventAction.
+ *
+ * classify() resolves a value in a single pass: it finds the common
+ * "pegacorn.event.action." prefix once, then selects the candidate action(s)
+ * from the character that follows it, checking the most specific code
+ * (e.g. "Update.Add" before "Update") first.
+ */
+public enum EventActionType {
+    CREATE("pegacorn.event.action.Create"),
+    UPDATE("pegacorn.event.action.Update"),
+    UPDATE_ADD("pegacorn.event.action.Update.Add"),
+    UPDATE_REMOVE("pegacorn.event.action.Update.Remove"),
+    DELETE("pegacorn.event.action.Delete"),
+    REVIEW("pegacorn.event.action.Review"),
+    UNKNOWN(null);
+
+    public static final String ACTION_CODE_PREFIX = "pegacorn.event.action.";
+
+    private static final EventActionType[] UPDATE_CANDIDATES = {UPDATE_ADD, UPDATE_REMOVE, UPDATE};
+    private static final EventActionType[] CREATE_CANDIDATES = {CREATE};
+    private static final EventActionType[] DELETE_CANDIDATES = {DELETE};
+    private static final EventActionType[] REVIEW_CANDIDATES = {REVIEW};
+    private static final EventActionType[] NO_CANDIDATES = {};
+
+    private final String code;
+
+    EventActionType(String code) {
+        this.code = code;
+    }
+
+    /**
+     * @return The action code, or null for UNKNOWN.
+     */
+    public String getCode() {
+        return (code);
+    }
+
+    /**
+     * @return true for UPDATE and its (UPDATE_ADD, UPDATE_REMOVE) variants.
+     */
+    public boolean isUpdate() {
+        return (this == UPDATE || this == UPDATE_ADD || this == UPDATE_REMOVE);
+    }
+
+    /**
+     * Classifies a value which contains an action code (as per the EventAction
+     * isActionX() methods, the code may be embedded within a longer value).
+     *
+     * @return The (most specific) action, or UNKNOWN if the value is null, empty
+     * or contains no action code.
+     */
+    public static EventActionType classify(String value) {
+        if (value == null || value.isEmpty()) {
+            return (UNKNOWN);
+        }
+        int prefixPosition = value.indexOf(ACTION_CODE_PREFIX);
+        while (prefixPosition >= 0) {
+            int actionPosition = prefixPosition + ACTION_CODE_PREFIX.length();
+            if (actionPosition >= value.length()) {
+                return (UNKNOWN);
+            }
+            for (EventActionType candidate : candidatesFor(value.charAt(actionPosition))) {
+                int suffixLength = candidate.code.length() - ACTION_CODE_PREFIX.length();
+                if (value.regionMatches(actionPosition, candidate.code, ACTION_CODE_PREFIX.length(), suffixLength)) {
+                    return (candidate);
+                }
+            }
+            prefixPosition = value.indexOf(ACTION_CODE_PREFIX, actionPosition);
+        }
+        return (UNKNOWN);
+    }
+
+    /**
+     * @return The classification of each value (in the same order).
+     */
+    public static EventActionType[] classify(String[] values) {
+        if (values == null) {
+            throw (new IllegalArgumentException("null values passed to classify()"));
+        }
+        EventActionType[] actionTypes = new EventActionType[values.length];
+        for (int counter = 0; counter < values.length; counter++) {
+            actionTypes[counter] = classify(values[counter]);
+        }
+        return (actionTypes);
+    }
+
+    public static Stream<EventActionType> classify(Stream<String> values) {
+        if (values == null) {
+            throw (new IllegalArgumentException("null values passed to classify()"));
+        }
+        return (values.map(EventActionType::classify));
+    }
+
+    private static EventActionType[] candidatesFor(char actionInitial) {
+        switch (actionInitial) {
+            case 'U':
+                return (UPDATE_CANDIDATES);
+            case 'C':
+                return (CREATE_CANDIDATES);
+            case 'D':
+                return (DELETE_CANDIDATES);
+            case 'R':
+                return (REVIEW_CANDIDATES);
+            default:
+                return (NO_CANDIDATES);
+        }
+    }
+}
@@ -24,6 +24,27 @@ package net.fhirfactory.pegacorn.common.model;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
@@ -210,4 +231,727 @@ class FDNTest {
 		}
 	}
 
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDN#getToken()}.
+	 */
+	@Test
+	void testTokenEncoding() {
+		LOG.debug(".testTokenEncoding(): Entry...");
+		FDNToken binaryToken = testFDN1.getToken();
+		FDN decodedFDN = new FDN(new FDNToken(binaryToken.getContent()));
+		if (!decodedFDN.equals(testFDN1)) {
+			fail("FDN re-created from the FDNToken content is not equal to the original");
+		}
+		if (!decodedFDN.getUnqualifiedRDN().getQualifier().contentEquals("Some Information")) {
+			fail("FDN re-created from the FDNToken content has the wrong least significant RDN");
+		}
+		FDN expectedFDN = new FDN();
+		expectedFDN.appendRDN(new RDN("TestType0", "TestValue0"));
+		expectedFDN.appendRDN(new RDN("TestType1", "TestValue1"));
+		FDNToken legacyToken = new FDNToken("{FDNToken:{\"0\":\"{\\\"Qualifier\\\":\\\"TestType0\\\",\\\"Value\\\":\\\"TestValue0\\\"}\","
+				+ "\"1\":\"{\\\"Qualifier\\\":\\\"TestType1\\\",\\\"Value\\\":\\\"TestValue1\\\"}\"}}");
+		if (!legacyToken.equals(expectedFDN.getToken())) {
+			fail("Legacy (JSON) FDNToken is not equal to the equivalent binary FDNToken");
+		}
+		assertThrows(IllegalArgumentException.class, () -> new FDNToken("not-a-token!"));
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDNToken#FDNToken(String)},
+	 * checking that a token whose lengths are not minimally encoded (so that it
+	 * would not be byte-wise equal to the token of the same FDN) is rejected.
+	 */
+	@Test
+	void testNonMinimalTokenRejected() {
+		LOG.debug(".testNonMinimalTokenRejected(): Entry...");
+		FDN singleFDN = new FDN();
+		singleFDN.appendRDN(new RDN("A", "B"));
+		byte[] canonicalBytes = { FDNTokenCodec.FORMAT_VERSION_1, 1, 1, 'A', 1, 'B' };
+		assertArrayEquals(canonicalBytes, singleFDN.getToken().toByteArray());
+		assertEquals(singleFDN, new FDN(new FDNToken(toContent(canonicalBytes))));
+		byte[] paddedQualifierLength = { FDNTokenCodec.FORMAT_VERSION_1, 1, (byte) 0x81, 0x00, 'A', 1, 'B' };
+		byte[] paddedRDNCount = { FDNTokenCodec.FORMAT_VERSION_1, (byte) 0x81, 0x00, 1, 'A', 1, 'B' };
+		byte[] paddedValueLength = { FDNTokenCodec.FORMAT_VERSION_1, 1, 1, 'A', (byte) 0x81, (byte) 0x80, 0x00, 'B' };
+		for (byte[] paddedBytes : Arrays.asList(paddedQualifierLength, paddedRDNCount, paddedValueLength)) {
+			assertThrows(IllegalArgumentException.class, () -> new FDNToken(toContent(paddedBytes)));
+			assertThrows(IllegalArgumentException.class, () -> new FDNToken(paddedBytes));
+			assertThrows(IllegalArgumentException.class, () -> new FDNTokenReader(FDNToken.fromTrustedBytes(paddedBytes)).skipRemaining());
+		}
+		byte[] paddedRDNToken = { FDNTokenCodec.FORMAT_VERSION_1, (byte) 0x81, 0x00, 'A', 1, 'B' };
+		assertThrows(IllegalArgumentException.class, () -> new RDNToken(toContent(paddedRDNToken)));
+		FDNTokenReader reader = new FDNTokenReader(testFDN1.getToken());
+		while (reader.next()) {
+			assertEquals(testFDN1.getRDNSet().get(reader.getRDNIndex()).getToken(), reader.toRDN().getToken());
+		}
+	}
+
+	private static String toContent(byte[] encoded) {
+		return (Base64.getUrlEncoder().withoutPadding().encodeToString(encoded));
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDN#getToken()}, checking that
+	 * the token cached within the (shared) ImmutableFDN cannot be modified via an
+	 * FDN.
+	 */
+	@Test
+	void testGetTokenIsNotShared() {
+		LOG.debug(".testGetTokenIsNotShared(): Entry...");
+		FDN aliasFDN = new FDN(testFDN1.toImmutableFDN());
+		FDNToken originalToken = new FDNToken(testFDN1.getToken());
+		aliasFDN.getToken().setContent(testFDN1.getParentFDN().getToken().getContent());
+		if (!testFDN1.getToken().equals(originalToken) || !testFDN1.toImmutableFDN().getToken().equals(originalToken)) {
+			fail("Modifying one FDN's token changed another FDN's token");
+		}
+		assertThrows(IllegalStateException.class, () -> testFDN1.toImmutableFDN().getToken().setContent(originalToken.getContent()));
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDN#getUnqualifiedRDN()} (and
+	 * the other RDN accessors), checking that the RDNs held within the (shared)
+	 * ImmutableFDN cannot be modified via an FDN.
+	 */
+	@Test
+	void testReturnedRDNsAreNotShared() {
+		LOG.debug(".testReturnedRDNsAreNotShared(): Entry...");
+		FDNInternPool pool = new FDNInternPool();
+		FDN internedFDN = pool.intern(new FDN(testFDN1));
+		FDN twinFDN = pool.intern(new FDN(testFDN1.getToken()));
+		String originalID = internedFDN.getID();
+		long originalHash64 = internedFDN.toImmutableFDN().getHash64();
+		FDNToken originalToken = new FDNToken(internedFDN.getToken());
+		RDN firstRDN = internedFDN.getRDNSet().get(0);
+		internedFDN.getUnqualifiedRDN().setValue("Changed");
+		internedFDN.getRDNSet().get(1).setQualifier("Changed");
+		internedFDN.toImmutableFDN().getRDN(0).setValue("Changed");
+		internedFDN.toImmutableFDN().getRDNList().get(0).setValue("Changed");
+		internedFDN.extractRDNViaQualifier(firstRDN.getQualifier()).setValue("Changed");
+		internedFDN.extractRDNsViaQualifiers(firstRDN.getQualifier())[0].setValue("Changed");
+		internedFDN.getRDNSet().clear();
+		FDN freshFDN = new FDN(internedFDN.getToken());
+		if (!originalID.contentEquals(internedFDN.getID()) || !originalID.contentEquals(twinFDN.getID())
+				|| !originalID.contentEquals(freshFDN.getID()) || internedFDN.getRDNSet().size() != 3) {
+			fail("Modifying a returned RDN changed the FDN it came from");
+		}
+		if (twinFDN.toImmutableFDN().getHash64() != originalHash64 || freshFDN.toImmutableFDN().getHash64() != originalHash64
+				|| !twinFDN.toImmutableFDN().getToken().equals(originalToken) || !twinFDN.equals(freshFDN)) {
+			fail("Modifying a returned RDN changed the FDN hash or token");
+		}
+		if (!firstRDN.getValue().contentEquals(twinFDN.extractRDNViaQualifier(firstRDN.getQualifier()).getValue())) {
+			fail("Modifying a returned RDN changed the qualifier index");
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDN#getParentFDN()}, checking
+	 * that only the "Least Significant" RDN is removed and that the parent shares
+	 * the underlying ImmutableFDN.
+	 */
+	@Test
+	void testGetParentFDNStructure() {
+		LOG.debug(".testGetParentFDNStructure(): Entry...");
+		FDN parentFDN = testFDN1.getParentFDN();
+		if (parentFDN.getRDNCount() != 2) {
+			fail("Parent FDN should have 2 RDNs, but has --> " + parentFDN.getRDNCount());
+		}
+		if (!parentFDN.getUnqualifiedRDN().getQualifier().contentEquals("*#($ Per Crapus")) {
+			fail("Parent FDN has the wrong least significant RDN");
+		}
+		if (parentFDN.toImmutableFDN() != testFDN1.toImmutableFDN().getParentFDN()) {
+			fail("Parent FDN does not share the ImmutableFDN of the child");
+		}
+		FDN rebuiltFDN = new FDN(parentFDN);
+		rebuiltFDN.appendRDN(new RDN("Some Information", "OtherStuff"));
+		if (!rebuiltFDN.equals(testFDN1) || rebuiltFDN.hashCode() != testFDN1.hashCode()) {
+			fail("Re-appending the removed RDN should give an equal FDN");
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDN#appendRDNs(java.lang.Iterable)}.
+	 */
+	@Test
+	void testAppendRDNs() {
+		LOG.debug(".testAppendRDNs(): Entry...");
+		FDN batchFDN = new FDN();
+		batchFDN.appendRDNs(testFDN1.getRDNSet());
+		if (!batchFDN.equals(testFDN1)) {
+			fail("FDN built via appendRDNs() is not equal to the one built via appendRDN()");
+		}
+		if (!batchFDN.toString().contentEquals(testFDN1.toString())
+				|| !batchFDN.getUnqualifiedToken().contentEquals(testFDN1.getUnqualifiedToken())
+				|| !batchFDN.getToken().equals(testFDN1.getToken())) {
+			fail("FDN built via appendRDNs() has different derived values");
+		}
+		batchFDN.appendRDN(new RDN("Extra", "Value.With.Dots"));
+		if (!batchFDN.getUnqualifiedToken().endsWith(".Value_With_Dots") || batchFDN.getToken().equals(testFDN1.getToken())) {
+			fail("Derived values were not refreshed after appendRDN()");
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDNInternPool}.
+	 */
+	@Test
+	void testInternPool() {
+		LOG.debug(".testInternPool(): Entry...");
+		FDNInternPool pool = new FDNInternPool();
+		FDN firstFDN = pool.intern(new FDN(testFDN1.getToken()));
+		FDN secondFDN = pool.intern(new FDN(testFDN1));
+		if (firstFDN.toImmutableFDN() != secondFDN.toImmutableFDN()) {
+			fail("Interned FDNs do not share the canonical ImmutableFDN");
+		}
+		FDNToken firstToken = pool.intern(new FDNToken(testFDN1.getToken()));
+		FDNToken secondToken = pool.intern(new FDNToken(testFDN1.getToken().getContent()));
+		if (firstToken != secondToken) {
+			fail("Interned FDNTokens are not the same instance");
+		}
+		assertThrows(IllegalStateException.class, () -> firstToken.setContent(""));
+		assertEquals(2, pool.getHitCount());
+		assertEquals(2, pool.getMissCount());
+		assertEquals(1, pool.getTokenCount());
+		assertEquals(1, pool.getFDNCount());
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDN#hashCode()}, checking that
+	 * the FDN, FDNToken and RDN hashes agree with equals().
+	 */
+	@Test
+	void testHashConsistency() {
+		LOG.debug(".testHashConsistency(): Entry...");
+		FDN equalFDN = new FDN(new FDNToken(testFDN1.getToken().getContent()));
+		assertEquals(testFDN1.getHash64(), equalFDN.getHash64());
+		assertEquals(testFDN1.getHash64(), testFDN1.getToken().getHash64());
+		assertEquals(testFDN1.hashCode(), equalFDN.hashCode());
+		assertEquals(new RDN("TestType0", "TestValue0"), new RDN("TestType0", "TestValue0"));
+		assertEquals(new RDN("TestType0", "TestValue0").hashCode(), new RDN("TestType0", "TestValue0").hashCode());
+		assertNotEquals(new RDN("TestType0", "TestValue0"), new RDN("TestType0", "TestValue1"));
+		Map<FDN, String> fdnMap = new HashMap<>();
+		fdnMap.put(testFDN1, "found");
+		assertEquals("found", fdnMap.get(equalFDN));
+		assertNull(fdnMap.get(testFDN1.getParentFDN()));
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDNTokenReader}, including
+	 * legacy (JSON) tokens with out-of-order entries and escaped content.
+	 */
+	@Test
+	void testTokenReader() {
+		LOG.debug(".testTokenReader(): Entry...");
+		FDNToken legacyToken = new FDNToken("{\"FDNToken\":{\"1\":\"{\\\"Value\\\":\\\"Value.1\\\",\\\"Qualifier\\\":\\\"Type1\\\"}\","
+				+ "\"0\":\"{\\\"Qualifier\\\":\\\"Type0\\\",\\\"Value\\\":\\\"Say \\\\\\\"hi\\\\\\\"\\\"}\"}}");
+		FDNTokenReader reader = new FDNTokenReader(legacyToken);
+		assertEquals(2, reader.getRDNCount());
+		assertTrue(reader.next());
+		assertEquals("Type0", reader.getQualifier());
+		assertEquals("Say \"hi\"", reader.getValue());
+		assertTrue(reader.next());
+		assertEquals("Type1", reader.getQualifier());
+		assertFalse(reader.next());
+		assertEquals("Say \"hi\".Value_1", legacyToken.toTag());
+		assertEquals(new FDN(legacyToken).getUnqualifiedToken(), legacyToken.getUnqualifiedToken());
+		assertEquals(testFDN1.getUnqualifiedToken(), testFDN1.getToken().getUnqualifiedToken());
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.PackedFDN}.
+	 */
+	@Test
+	void testPackedFDN() {
+		LOG.debug(".testPackedFDN(): Entry...");
+		FDNSymbolTable symbolTable = new FDNSymbolTable();
+		PackedFDN packedFDN = PackedFDN.of(testFDN1, symbolTable);
+		PackedFDN packedFromToken = PackedFDN.of(testFDN1.getToken(), symbolTable);
+		assertEquals(packedFDN, packedFromToken);
+		assertEquals(testFDN1.getHash64(), packedFDN.getHash64());
+		assertEquals(testFDN1, packedFDN.toFDN());
+		assertEquals(testFDN1.getToken(), packedFDN.toToken());
+		PackedFDN packedParent = packedFDN.getParentFDN();
+		assertEquals(PackedFDN.of(testFDN1.getParentFDN(), symbolTable), packedParent);
+		assertTrue(packedFDN.startsWith(packedParent));
+		assertFalse(packedParent.startsWith(packedFDN));
+		assertEquals(6, symbolTable.size());
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDNJacksonModule}.
+	 */
+	@Test
+	void testJacksonModule() throws Exception {
+		LOG.debug(".testJacksonModule(): Entry...");
+		ObjectMapper compactMapper = new ObjectMapper().registerModule(new FDNJacksonModule());
+		String compactJSON = compactMapper.writeValueAsString(testFDN1);
+		assertTrue(compactJSON.startsWith("[["));
+		assertEquals(testFDN1, compactMapper.readValue(compactJSON, FDN.class));
+		assertEquals(testFDN1.getToken(), compactMapper.readValue(compactJSON, FDNToken.class));
+		ObjectMapper tokenMapper = new ObjectMapper().registerModule(new FDNJacksonModule(FDNJacksonModule.FDNJsonFormat.TOKEN_STRING));
+		String tokenJSON = tokenMapper.writeValueAsString(testFDN1);
+		assertEquals("\"" + testFDN1.getToken().getContent() + "\"", tokenJSON);
+		// Either mapper reads either form
+		assertEquals(testFDN1, compactMapper.readValue(tokenJSON, FDN.class));
+		assertEquals(testFDN1, tokenMapper.readValue(compactJSON, FDN.class));
+		FDNTokenSet tokenSet = new FDNTokenSet();
+		tokenSet.addElement(testFDN1.getToken());
+		tokenSet.addElement(testFDN1.getParentFDN().getToken());
+		FDNTokenSet decodedSet = compactMapper.readValue(compactMapper.writeValueAsString(tokenSet), FDNTokenSet.class);
+		assertTrue(decodedSet.containsAll(tokenSet));
+		assertEquals(2, decodedSet.size());
+		RDN testRDN = new RDN("Site", "Site.A");
+		assertEquals(testRDN, tokenMapper.readValue(compactMapper.writeValueAsString(testRDN), RDN.class));
+		// The FDNType survives a round trip in either form
+		FDN typedFDN = new FDN(testFDN1);
+		typedFDN.setFDNType("PlatformService");
+		for (ObjectMapper mapper : Arrays.asList(compactMapper, tokenMapper)) {
+			String typedJSON = mapper.writeValueAsString(typedFDN);
+			assertTrue(typedJSON.startsWith("{\"fdnType\":\"PlatformService\""));
+			FDN decodedFDN = compactMapper.readValue(typedJSON, FDN.class);
+			assertEquals(typedFDN, decodedFDN);
+			assertEquals("PlatformService", decodedFDN.getFDNType());
+		}
+		assertNull(compactMapper.readValue(compactJSON, FDN.class).getFDNType());
+		FDN beanFormFDN = compactMapper.readValue("{\"content\":\"" + testFDN1.getToken().getContent() + "\"}", FDN.class);
+		assertEquals(testFDN1, beanFormFDN);
+		// Empty Qualifiers/Values are rejected (as per new RDN()) whatever is being read
+		for (String emptyPairJSON : Arrays.asList("[[\"\",\"\"]]", "[[\"Site\",\"\"]]", "[[\"\",\"SiteA\"]]")) {
+			assertThrows(JsonMappingException.class, () -> compactMapper.readValue(emptyPairJSON, FDNToken.class));
+			assertThrows(JsonMappingException.class, () -> compactMapper.readValue(emptyPairJSON, FDN.class));
+			assertThrows(JsonMappingException.class, () -> compactMapper.readValue(emptyPairJSON, ImmutableFDN.class));
+			assertThrows(JsonMappingException.class, () -> compactMapper.readValue(emptyPairJSON.substring(1, emptyPairJSON.length() - 1), RDN.class));
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.MappedFDNRegistry}.
+	 */
+	@Test
+	void testMappedFDNRegistry() throws Exception {
+		LOG.debug(".testMappedFDNRegistry(): Entry...");
+		FDN parentFDN = testFDN1.getParentFDN();
+		FDN siblingFDN = new FDN(parentFDN);
+		siblingFDN.appendRDN(new RDN("Some Information", "Another Value"));
+		FDN otherFDN = new FDN();
+		otherFDN.appendRDN(new RDN("Site", "SiteB"));
+		Path registryFile = Files.createTempFile("FDNTest", ".registry");
+		try {
+			MappedFDNRegistry.write(registryFile, Arrays.asList(testFDN1, otherFDN, siblingFDN, parentFDN, testFDN1));
+			try (MappedFDNRegistry registry = MappedFDNRegistry.open(registryFile)) {
+				assertEquals(4, registry.size());
+				int recordNumber = registry.indexOf(testFDN1);
+				assertTrue(recordNumber >= 0);
+				assertEquals(recordNumber, registry.indexOfHash(testFDN1.getHash64()));
+				assertEquals(testFDN1.toImmutableFDN(), registry.getFDN(recordNumber));
+				assertEquals(-1, registry.indexOf(new FDN(testFDN1.getToken()).getParentFDN().getParentFDN()));
+				int descendantCount = 0;
+				for (Iterator<ImmutableFDN> descendants = registry.descendants(parentFDN); descendants.hasNext(); descendantCount++) {
+					assertTrue(descendants.next().startsWith(parentFDN.toImmutableFDN()));
+				}
+				assertEquals(3, descendantCount);
+			}
+			// Corrupt a byte within the body
+			byte[] registryBytes = Files.readAllBytes(registryFile);
+			registryBytes[registryBytes.length - 1] ^= 0x01;
+			Files.write(registryFile, registryBytes);
+			assertThrows(IOException.class, () -> MappedFDNRegistry.open(registryFile));
+		} finally {
+			Files.deleteIfExists(registryFile);
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDNPatternCompiler}.
+	 */
+	@Test
+	void testPatternMatching() {
+		LOG.debug(".testPatternMatching(): Entry...");
+		FDN serviceFDN = new FDN();
+		serviceFDN.appendRDN(new RDN("Site", "SiteA"));
+		serviceFDN.appendRDN(new RDN("Platform", "P1"));
+		serviceFDN.appendRDN(new RDN("Service", "Ingres.Service"));
+		FDNPatternAutomaton<String> automaton = new FDNPatternCompiler<String>()
+				.add("Site=*.Platform=P1.Service=**", "serviceOrBelow")
+				.add("Site=*.Platform=P1.**", "platformOrBelow")
+				.add("**.Service=Ingres\\.Service", "anyIngres")
+				.add("*=SiteA.*=*.*=*", "threeLevels")
+				.add("Site=SiteB.**", "otherSite")
+				.compile();
+		Set<String> matched = automaton.match(serviceFDN);
+		assertEquals(4, matched.size());
+		assertFalse(matched.contains("otherSite"));
+		assertEquals(matched, automaton.match(serviceFDN.getToken()));
+		Set<String> parentMatched = automaton.match(serviceFDN.getParentFDN());
+		assertEquals(1, parentMatched.size());
+		assertTrue(parentMatched.contains("platformOrBelow"));
+		FDNPattern pattern = FDNPattern.parse("Site=*.Service=Ingres\\.Service");
+		assertEquals(pattern, FDNPattern.parse(pattern.toString()));
+		assertTrue(FDNPattern.of(serviceFDN).matches(serviceFDN));
+		assertFalse(pattern.matches(serviceFDN));
+		assertThrows(IllegalArgumentException.class, () -> FDNPattern.parse("Site.Platform=P1"));
+		// Escaped wildcards are literals
+		FDN starFDN = new FDN();
+		starFDN.appendRDN(new RDN("Site", "*"));
+		assertTrue(FDNPattern.parse("Site=\\*").matches(starFDN));
+		assertFalse(FDNPattern.parse("Site=\\*").matches(serviceFDN.getParentFDN().getParentFDN()));
+		assertTrue(FDNPattern.parse(new StringBuilder("Site=").append('*').toString()).matches(starFDN));
+		assertEquals("Site=\\*", FDNPattern.of(starFDN).toString());
+		assertThrows(IllegalArgumentException.class, () -> FDNPattern.parse("\\*\\*"));
+		FDN doubleStarFDN = new FDN();
+		doubleStarFDN.appendRDN(new RDN("Site", "**"));
+		FDN belowDoubleStarFDN = new FDN(doubleStarFDN);
+		belowDoubleStarFDN.appendRDN(new RDN("Platform", "P1"));
+		assertTrue(FDNPattern.parse("Site=\\*\\*").matches(doubleStarFDN));
+		assertFalse(FDNPattern.parse("Site=\\*\\*").matches(belowDoubleStarFDN));
+		assertTrue(FDNPattern.parse("Site=**").matches(belowDoubleStarFDN));
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDN#compareTo(FDN)} and
+	 * {@link net.fhirfactory.pegacorn.common.model.FDNIndex}.
+	 */
+	@Test
+	void testOrderingAndIndex() {
+		LOG.debug(".testOrderingAndIndex(): Entry...");
+		FDN siteA = new FDN();
+		siteA.appendRDN(new RDN("Site", "A"));
+		FDN siteAB = new FDN();
+		siteAB.appendRDN(new RDN("Site", "AB"));
+		FDN platformA1 = new FDN(siteA);
+		platformA1.appendRDN(new RDN("Platform", "1"));
+		FDN platformA2 = new FDN(siteA);
+		platformA2.appendRDN(new RDN("Platform", "2"));
+		assertTrue(siteA.compareTo(platformA1) < 0);
+		assertTrue(platformA1.compareTo(platformA2) < 0);
+		assertTrue(platformA2.compareTo(siteAB) < 0);
+		assertEquals(0, platformA1.compareTo(new FDN(platformA1.getToken())));
+		assertEquals(Integer.signum(platformA2.compareTo(siteAB)), Integer.signum(platformA2.getToken().compareTo(siteAB.getToken())));
+		assertTrue(new FDN().getToken().compareTo(siteA.getToken()) < 0);
+		FDNIndex<String> index = new FDNIndex<>();
+		index.put(siteAB, "siteAB");
+		index.put(platformA2, "platformA2");
+		index.put(siteA, "siteA");
+		index.put(platformA1, "platformA1");
+		assertEquals("siteA", index.firstEntry().getValue());
+		assertEquals(3, index.subtree(siteA).size());
+		assertEquals("platformA2", index.subtree(siteA).lastEntry().getValue());
+		assertEquals(1, index.subtree(platformA1).size());
+		assertEquals(4, index.subtree(new FDN()).size());
+		assertEquals(2, index.range(platformA1, siteAB).size());
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDN#extractRDNsViaQualifiers(String...)}.
+	 */
+	@Test
+	void testQualifierExtraction() {
+		LOG.debug(".testQualifierExtraction(): Entry...");
+		FDN serviceFDN = new FDN();
+		serviceFDN.appendRDN(new RDN("Site", "SiteA"));
+		serviceFDN.appendRDN(new RDN("Platform", "P1"));
+		serviceFDN.appendRDN(new RDN("Service", "S1"));
+		serviceFDN.appendRDN(new RDN("Platform", "P2"));
+		assertEquals(new RDN("Platform", "P1"), serviceFDN.extractRDNViaQualifier("Platform"));
+		assertNull(serviceFDN.extractRDNViaQualifier("Unknown Qualifier"));
+		RDN[] extracted = serviceFDN.extractRDNsViaQualifiers("Service", "Site", "Missing");
+		assertEquals(new RDN("Service", "S1"), extracted[0]);
+		assertEquals(new RDN("Site", "SiteA"), extracted[1]);
+		assertNull(extracted[2]);
+		int siteSymbol = FDNSymbolTable.getDefaultTable().lookupSymbol("Site");
+		assertEquals(new RDN("Site", "SiteA"), serviceFDN.toImmutableFDN().extractRDNViaQualifier(siteSymbol));
+		assertNull(new FDN().extractRDNViaQualifier("Site"));
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.FDNTreeBuilder}.
+	 */
+	@Test
+	void testTreeBuilder() {
+		LOG.debug(".testTreeBuilder(): Entry...");
+		FDN platformFDN = new FDN();
+		platformFDN.appendRDN(new RDN("Site", "SiteA"));
+		platformFDN.appendRDN(new RDN("Platform", "P1"));
+		FDN serviceFDN1 = new FDN(platformFDN);
+		serviceFDN1.appendRDN(new RDN("Service", "S1"));
+		FDN serviceFDN2 = new FDN(platformFDN);
+		serviceFDN2.appendRDN(new RDN("Service", "S2"));
+		// The Site and Platform FDNs are synthesised, the duplicate is ignored
+		Tree<FDN> siteTree = FDNTreeBuilder.buildTree(Arrays.asList(serviceFDN1, serviceFDN2, serviceFDN1));
+		TreeNode<FDN> siteNode = siteTree.getTreeNode();
+		assertEquals(platformFDN.getParentFDN(), siteNode.getNodeData());
+		assertEquals(1, siteNode.getChildren().size());
+		TreeNode<FDN> platformNode = siteNode.getChildren().iterator().next();
+		assertEquals(platformFDN, platformNode.getNodeData());
+		assertEquals(2, platformNode.getChildren().size());
+		assertSame(siteNode, platformNode.getParent());
+		assertEquals(4, siteTree.stream().count());
+		// Two Sites, so the tree is rooted at an empty FDN
+		FDN otherSiteFDN = new FDN();
+		otherSiteFDN.appendRDN(new RDN("Site", "SiteB"));
+		FDNTokenSet tokenSet = new FDNTokenSet();
+		tokenSet.addElement(serviceFDN1.getToken());
+		tokenSet.addElement(otherSiteFDN.getToken());
+		Tree<FDN> multiSiteTree = FDNTreeBuilder.buildTree(tokenSet);
+		assertEquals(0, multiSiteTree.getTreeNode().getNodeData().getRDNCount());
+		assertEquals(2, multiSiteTree.getTreeNode().getChildren().size());
+		assertEquals(5, multiSiteTree.stream().count());
+	}
+
+	/**
+	 * Test method for {@link net.fhirfactory.pegacorn.common.model.FDNTrie}.
+	 */
+	@Test
+	void testFDNTrie() {
+		LOG.debug(".testFDNTrie(): Entry...");
+		FDN siteFDN = new FDN();
+		siteFDN.appendRDN(new RDN("Site", "SiteA"));
+		FDN platformFDN = new FDN(siteFDN);
+		platformFDN.appendRDN(new RDN("Platform", "P1"));
+		FDN serviceFDN1 = new FDN(platformFDN);
+		serviceFDN1.appendRDN(new RDN("Service", "S1"));
+		FDN serviceFDN2 = new FDN(platformFDN);
+		serviceFDN2.appendRDN(new RDN("Service", "S2"));
+		FDN otherSiteFDN = new FDN();
+		otherSiteFDN.appendRDN(new RDN("Site", "SiteB"));
+		FDNTrie<String> trie = new FDNTrie<>();
+		assertNull(trie.put(siteFDN, "site"));
+		assertNull(trie.put(serviceFDN1, "s1"));
+		assertNull(trie.put(serviceFDN2.toImmutableFDN(), "s2"));
+		assertEquals("s1", trie.put(serviceFDN1, "s1b"));
+		assertEquals(3, trie.size());
+		assertEquals("s1b", trie.get(serviceFDN1));
+		assertEquals("s2", trie.get(new FDN(serviceFDN2)));
+		// The Platform node exists (as an intermediate node) but holds no value
+		assertNull(trie.get(platformFDN));
+		assertFalse(trie.containsKey(platformFDN));
+		assertNull(trie.get(otherSiteFDN));
+		// Longest prefix
+		FDN deepFDN = new FDN(serviceFDN1);
+		deepFDN.appendRDN(new RDN("Component", "C1"));
+		assertEquals(serviceFDN1.toImmutableFDN(), trie.longestPrefixMatch(deepFDN).getKey());
+		assertEquals("site", trie.longestPrefixMatch(platformFDN).getValue());
+		assertNull(trie.longestPrefixMatch(otherSiteFDN));
+		// Descendants
+		Set<String> platformValues = new HashSet<>();
+		trie.descendants(platformFDN).forEachRemaining(entry -> platformValues.add(entry.getValue()));
+		assertEquals(new HashSet<>(Arrays.asList("s1b", "s2")), platformValues);
+		Iterator<Map.Entry<ImmutableFDN, String>> siteDescendants = trie.descendants(siteFDN);
+		int siteDescendantCount = 0;
+		while (siteDescendants.hasNext()) {
+			siteDescendants.next();
+			siteDescendantCount++;
+		}
+		assertEquals(3, siteDescendantCount);
+		assertFalse(trie.descendants(otherSiteFDN).hasNext());
+		// toTree: root, Site, Platform, S1, S2
+		Tree<ImmutableFDN> trieTree = trie.toTree();
+		assertEquals(5, trieTree.stream().count());
+		assertTrue(trieTree.stream().anyMatch(node -> node.getNodeData().equals(platformFDN.toImmutableFDN())));
+		// Remove: the emptied Platform branch is pruned, the Site value stays
+		assertNull(trie.remove(platformFDN));
+		assertNull(trie.remove(otherSiteFDN));
+		assertEquals("s1b", trie.remove(serviceFDN1));
+		assertEquals(4, trie.toTree().stream().count());
+		assertEquals("s2", trie.remove(serviceFDN2));
+		assertEquals(2, trie.toTree().stream().count());
+		assertEquals(1, trie.size());
+		assertEquals("site", trie.get(siteFDN));
+		assertEquals("site", trie.remove(siteFDN));
+		assertTrue(trie.isEmpty());
+		assertEquals(1, trie.toTree().stream().count());
+		assertThrows(IllegalArgumentException.class, () -> trie.get((FDN) null));
+	}
+
+	/**
+	 * Test method for {@link net.fhirfactory.pegacorn.common.model.FDNTokenSet},
+	 * checking ordering, de-duplication and removal.
+	 */
+	@Test
+	void testTokenSetOrdering() {
+		LOG.debug(".testTokenSetOrdering(): Entry...");
+		FDNTokenSet tokenSet = new FDNTokenSet();
+		assertTrue(tokenSet.isEmpty());
+		assertEquals("", tokenSet.toString());
+		for (int counter = 9; counter >= 0; counter--) {
+			tokenSet.addElement(tokenFor(counter));
+		}
+		// Duplicates (including equal but distinct instances) are ignored, and keep their position
+		tokenSet.addElement(tokenFor(9));
+		tokenSet.getElements().add(tokenFor(5));
+		assertEquals(10, tokenSet.size());
+		assertEquals(tokensFor(9, 8, 7, 6, 5, 4, 3, 2, 1, 0), new ArrayList<>(tokenSet.getElements()));
+		// Remove, via the set and via the view
+		tokenSet.removeElement(tokenFor(7));
+		tokenSet.removeElement(tokenFor(42));
+		assertTrue(tokenSet.getElements().remove(tokenFor(0)));
+		Iterator<FDNToken> elementIterator = tokenSet.getElements().iterator();
+		elementIterator.next();
+		elementIterator.remove();
+		assertFalse(tokenSet.contains(tokenFor(9)));
+		assertEquals(tokensFor(8, 6, 5, 4, 3, 2, 1), new ArrayList<>(tokenSet.getElements()));
+		// Re-adding a removed token puts it at the end
+		tokenSet.addElement(tokenFor(9));
+		assertEquals(tokenFor(9), new ArrayList<>(tokenSet.getElements()).get(7));
+		// The toString() cache follows changes
+		String beforeString = tokenSet.toString();
+		tokenSet.removeElement(tokenFor(9));
+		assertNotEquals(beforeString, tokenSet.toString());
+		// The held tokens are (frozen) copies
+		FDNToken addedToken = tokenFor(11);
+		tokenSet.addElement(addedToken);
+		addedToken.setContent(tokenFor(12).getContent());
+		assertTrue(tokenSet.contains(tokenFor(11)));
+		assertFalse(tokenSet.contains(tokenFor(12)));
+		// setElements() replaces the content, in the given set's order
+		tokenSet.setElements(new LinkedHashSet<>(tokensFor(3, 1, 2)));
+		assertEquals(tokensFor(3, 1, 2), new ArrayList<>(tokenSet.getElements()));
+		tokenSet.setElements(null);
+		assertEquals(3, tokenSet.size());
+		FDNTokenSet copySet = new FDNTokenSet(tokenSet);
+		assertEquals(tokensFor(3, 1, 2), new ArrayList<>(copySet.getElements()));
+		tokenSet.clear();
+		assertTrue(tokenSet.isEmpty());
+		assertEquals(3, copySet.size());
+	}
+
+	/**
+	 * Test method for {@link net.fhirfactory.pegacorn.common.model.FDNTokenSet},
+	 * adding and removing from several threads at once.
+	 */
+	@Test
+	void testTokenSetConcurrency() throws Exception {
+		LOG.debug(".testTokenSetConcurrency(): Entry...");
+		FDNTokenSet tokenSet = new FDNTokenSet();
+		int threadCount = 4;
+		int tokensPerThread = 500;
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			CountDownLatch startLatch = new CountDownLatch(1);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int thread = 0; thread < threadCount; thread++) {
+				int firstToken = thread * tokensPerThread;
+				futures.add(executor.submit(() -> {
+					startLatch.await();
+					for (int counter = firstToken; counter < firstToken + tokensPerThread; counter++) {
+						tokenSet.addElement(tokenFor(counter));
+						// Every thread also adds (and removes) a shared token
+						tokenSet.addElement(tokenFor(-1));
+						tokenSet.removeElement(tokenFor(-1));
+						if (counter % 2 == 1) {
+							tokenSet.removeElement(tokenFor(counter));
+						}
+					}
+					return (null);
+				}));
+			}
+			startLatch.countDown();
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		tokenSet.removeElement(tokenFor(-1));
+		assertEquals(threadCount * tokensPerThread / 2, tokenSet.size());
+		// The ordered view agrees with the membership index
+		List<FDNToken> elements = new ArrayList<>(tokenSet.getElements());
+		assertEquals(tokenSet.size(), elements.size());
+		assertEquals(elements.size(), new HashSet<>(elements).size());
+		for (int counter = 0; counter < threadCount * tokensPerThread; counter++) {
+			assertEquals(counter % 2 == 0, tokenSet.contains(tokenFor(counter)));
+		}
+		// Each thread's tokens are in that thread's insertion order
+		for (int thread = 0; thread < threadCount; thread++) {
+			int previousIndex = -1;
+			for (int counter = thread * tokensPerThread; counter < (thread + 1) * tokensPerThread; counter += 2) {
+				int currentIndex = elements.indexOf(tokenFor(counter));
+				assertTrue(currentIndex > previousIndex);
+				previousIndex = currentIndex;
+			}
+		}
+	}
+
+	/**
+	 * Test method for the FDNTokenSet union(), intersect(), difference() and
+	 * containsAll() operations.
+	 */
+	@Test
+	void testTokenSetAlgebra() {
+		LOG.debug(".testTokenSetAlgebra(): Entry...");
+		FDNTokenSet emptySet = new FDNTokenSet();
+		FDNTokenSet leftSet = tokenSetFor(5, 1, 4, 2, 3);
+		FDNTokenSet rightSet = tokenSetFor(6, 3, 1, 7);
+		FDNTokenSet smallSet = tokenSetFor(3, 9, 5);
+		// union: this set's order, then the other set's new elements
+		assertEquals(tokensFor(5, 1, 4, 2, 3, 6, 7), new ArrayList<>(leftSet.union(rightSet).getElements()));
+		assertEquals(tokensFor(5, 1, 4, 2, 3), new ArrayList<>(leftSet.union(emptySet).getElements()));
+		assertEquals(tokensFor(6, 3, 1, 7), new ArrayList<>(emptySet.union(rightSet).getElements()));
+		assertEquals(5, leftSet.union(null).size());
+		// intersect: this set's order, whichever set is the smaller
+		assertEquals(tokensFor(1, 3), new ArrayList<>(leftSet.intersect(rightSet).getElements()));
+		assertEquals(tokensFor(5, 3), new ArrayList<>(leftSet.intersect(smallSet).getElements()));
+		assertEquals(tokensFor(3, 5), new ArrayList<>(smallSet.intersect(leftSet).getElements()));
+		assertTrue(leftSet.intersect(emptySet).isEmpty());
+		assertTrue(emptySet.intersect(leftSet).isEmpty());
+		assertTrue(leftSet.intersect(null).isEmpty());
+		assertTrue(leftSet.intersect(tokenSetFor(8, 9)).isEmpty());
+		// difference: this set's order
+		assertEquals(tokensFor(5, 4, 2), new ArrayList<>(leftSet.difference(rightSet).getElements()));
+		assertEquals(tokensFor(5, 1, 4, 2, 3), new ArrayList<>(leftSet.difference(emptySet).getElements()));
+		assertTrue(emptySet.difference(leftSet).isEmpty());
+		assertTrue(leftSet.difference(leftSet).isEmpty());
+		assertEquals(5, leftSet.difference(null).size());
+		// containsAll
+		assertTrue(leftSet.containsAll(tokenSetFor(3, 5)));
+		assertTrue(leftSet.containsAll(emptySet));
+		assertTrue(leftSet.containsAll(null));
+		assertTrue(emptySet.containsAll(emptySet));
+		assertFalse(emptySet.containsAll(leftSet));
+		assertFalse(leftSet.containsAll(smallSet));
+		assertFalse(smallSet.containsAll(leftSet));
+		// The operands are unchanged, and the results are independent of them
+		FDNTokenSet unionSet = leftSet.union(rightSet);
+		unionSet.removeElement(tokenFor(5));
+		assertEquals(tokensFor(5, 1, 4, 2, 3), new ArrayList<>(leftSet.getElements()));
+		assertEquals(tokensFor(6, 3, 1, 7), new ArrayList<>(rightSet.getElements()));
+	}
+
+	private static FDNTokenSet tokenSetFor(int... nodeNumbers) {
+		FDNTokenSet tokenSet = new FDNTokenSet();
+		for (FDNToken token : tokensFor(nodeNumbers)) {
+			tokenSet.addElement(token);
+		}
+		return (tokenSet);
+	}
+
+	private static FDNToken tokenFor(int nodeNumber) {
+		FDN nodeFDN = new FDN();
+		nodeFDN.appendRDN(new RDN("Site", "SiteA"));
+		nodeFDN.appendRDN(new RDN("Node", "N" + nodeNumber));
+		return (nodeFDN.getToken());
+	}
+
+	private static List<FDNToken> tokensFor(int... nodeNumbers) {
+		List<FDNToken> tokens = new ArrayList<>();
+		for (int nodeNumber : nodeNumbers) {
+			tokens.add(tokenFor(nodeNumber));
+		}
+		return (tokens);
+	}
+
 }
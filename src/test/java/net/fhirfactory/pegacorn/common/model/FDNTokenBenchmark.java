@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.common.model;
+
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+/**
+ * A simple (stand-alone) timing comparison of the FDNToken decoding paths. It
+ * is not part of the unit tests - run it directly, e.g. from the IDE, via
+ * FDNTokenBenchmark.main().
+ *
+ * The "org.json" case is the original FDN(FDNToken) approach (parse the outer
+ * JSON, then parse each RDN's JSON), kept here as the baseline.
+ */
+public class FDNTokenBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200_000;
+    private static final int MEASURED_ITERATIONS = 1_000_000;
+
+    public static void main(String[] args) {
+        FDN fdn = new FDN();
+        fdn.appendRDN(new RDN("Site", "SiteA"));
+        fdn.appendRDN(new RDN("Platform", "Platform.01"));
+        fdn.appendRDN(new RDN("Service", "pegacorn-communicate"));
+        fdn.appendRDN(new RDN("Component", "iris-matrix-bridge"));
+        fdn.appendRDN(new RDN("Subsystem", "RoomServer"));
+        FDNToken binaryToken = fdn.getToken();
+        String legacyContent = toLegacyContent(fdn);
+
+        System.out.println("Legacy token size (chars) --> " + legacyContent.length() + ", binary token size (bytes) --> " + binaryToken.toByteArray().length);
+        run("decode: org.json (legacy)", () -> legacyDecode(legacyContent));
+        run("decode: compatibility reader (legacy -> binary)", () -> new FDNToken(legacyContent));
+        run("decode: FDN(FDNToken) (binary)", () -> new FDN(binaryToken).getUnqualifiedRDN());
+        run("unqualified token: via FDN", () -> new FDN(binaryToken).getUnqualifiedToken());
+        run("unqualified token: via FDNTokenReader", () -> FDNTokenReader.toUnqualifiedToken(binaryToken));
+        FDNToken otherToken = new FDNToken(binaryToken.getContent());
+        run("equals: binary tokens", () -> binaryToken.equals(otherToken));
+    }
+
+    private static void run(String name, Supplier<Object> operation) {
+        Object sink = null;
+        for (int counter = 0; counter < WARMUP_ITERATIONS; counter++) {
+            sink = operation.get();
+        }
+        long start = System.nanoTime();
+        for (int counter = 0; counter < MEASURED_ITERATIONS; counter++) {
+            sink = operation.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-50s %8.1f ns/op (%s)", name, (double) elapsed / MEASURED_ITERATIONS, (sink == null) ? "null" : "ok"));
+    }
+
+    private static String toLegacyContent(FDN fdn) {
+        JSONObject rdnSet = new JSONObject();
+        int counter = 0;
+        for (RDN currentRDN : fdn.getRDNSet()) {
+            JSONObject rdnToken = new JSONObject();
+            rdnToken.put("Qualifier", currentRDN.getQualifier());
+            rdnToken.put("Value", currentRDN.getValue());
+            rdnSet.put(Integer.toString(counter++), rdnToken.toString());
+        }
+        JSONObject token = new JSONObject();
+        token.put("FDNToken", rdnSet);
+        return (token.toString());
+    }
+
+    private static Object legacyDecode(String legacyContent) {
+        JSONObject rdnSet = new JSONObject(legacyContent).getJSONObject("FDNToken");
+        String[] values = new String[rdnSet.length()];
+        for (int counter = 0; counter < values.length; counter++) {
+            JSONObject rdnToken = new JSONObject(rdnSet.getString(Integer.toString(counter)));
+            values[counter] = new String(rdnToken.getString("Value"));
+        }
+        return (values);
+    }
+}
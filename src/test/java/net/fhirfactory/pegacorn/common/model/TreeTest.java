@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.fhirfactory.pegacorn.common.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class TreeTest {
+	private static final Logger LOG = LoggerFactory.getLogger(TreeTest.class);
+
+	ConcurrentTree<String, String> testTree;
+
+	/**
+	 * Builds the tree: root --> (site-a --> (platform-1, platform-2), site-b)
+	 */
+	@BeforeEach
+	void setUp() throws Exception {
+		LOG.debug(".setUp(): Entry...");
+		testTree = new ConcurrentTree<>("root", data -> data);
+		testTree.add("root", "site-a");
+		testTree.add("root", "site-b");
+		testTree.add("site-a", "platform-1");
+		testTree.add("site-a", "platform-2");
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.ConcurrentTree}.
+	 */
+	@Test
+	void testConcurrentTreeSnapshots() {
+		LOG.debug(".testConcurrentTreeSnapshots(): Entry...");
+		ConcurrentTree.Snapshot<String, String> before = testTree.snapshot();
+		assertEquals(5, before.size());
+		assertEquals("platform-2", before.findByPath(Arrays.asList("root", "site-a", "platform-2")).getKey());
+		assertNull(before.findByPath(Arrays.asList("root", "site-b", "platform-2")));
+		assertEquals(3, before.getPathTo("platform-1").size());
+		testTree.move("site-a", "site-b");
+		testTree.remove("platform-1");
+		ConcurrentTree.Snapshot<String, String> after = testTree.snapshot();
+		// The earlier snapshot is unaffected by the updates
+		assertEquals(5, before.size());
+		assertEquals("site-a", before.getParent("platform-1").getKey());
+		assertEquals(4, after.size());
+		assertEquals(4, after.getPathTo("platform-2").size());
+		assertEquals("site-b", after.getParent("site-a").getKey());
+		// Unchanged subtrees are shared between snapshots
+		assertSame(before.getNode("platform-2"), after.getNode("platform-2"));
+		assertThrows(IllegalArgumentException.class, () -> testTree.move("site-b", "platform-2"));
+		assertThrows(IllegalArgumentException.class, () -> testTree.add("root", "site-a"));
+		ConcurrentTree<String, String> copiedTree = ConcurrentTree.from(after.toTree(), data -> data);
+		assertEquals(4, copiedTree.size());
+		assertEquals(1, copiedTree.getNode("site-b").getChildCount());
+	}
+
+	/**
+	 * Test method for the
+	 * {@link net.fhirfactory.pegacorn.common.model.TreeNode} traversals.
+	 */
+	@Test
+	void testTreeNodeTraversal() {
+		LOG.debug(".testTreeNodeTraversal(): Entry...");
+		TreeNode<String> root = testTree.snapshot().toTree().getTreeNode();
+		assertEquals(Arrays.asList("root", "site-a", "platform-1", "platform-2", "site-b"), dataOf(root.preOrderIterator()));
+		assertEquals(Arrays.asList("platform-1", "platform-2", "site-a", "site-b", "root"), dataOf(root.postOrderIterator()));
+		assertEquals(Arrays.asList("root", "site-a", "site-b", "platform-1", "platform-2"), dataOf(root.breadthFirstIterator()));
+		assertEquals(dataOf(root.preOrderIterator()), root.stream().map(TreeNode::getNodeData).collect(Collectors.toList()));
+		// A deep (chain) and wide tree - neither may overflow the stack
+		TreeNode<Integer> chainRoot = new TreeNode<>(0);
+		TreeNode<Integer> current = chainRoot;
+		for (int counter = 1; counter < 100000; counter++) {
+			current = current.addChild(new TreeNode<>(1));
+			for (int leafCounter = 0; leafCounter < 2; leafCounter++) {
+				current.addChild(new TreeNode<>(1));
+			}
+		}
+		long nodeCount = 1 + (99999L * 3);
+		assertEquals(nodeCount, new Tree<>(chainRoot).stream().parallel().count());
+		int postOrderCount = 0;
+		for (Iterator<TreeNode<Integer>> postOrder = chainRoot.postOrderIterator(); postOrder.hasNext(); postOrder.next()) {
+			postOrderCount++;
+		}
+		assertEquals(nodeCount, postOrderCount);
+		assertEquals(nodeCount - 1, chainRoot.stream().parallel().mapToLong(TreeNode::getNodeData).sum());
+		assertEquals(Integer.valueOf((int) nodeCount - 1), chainRoot.aggregate(data -> data, Integer::sum));
+		assertEquals(Integer.valueOf((int) nodeCount - 1), chainRoot.aggregate(data -> data, Integer::sum, ForkJoinPool.commonPool()));
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.TreeDiff} and the
+	 * {@link net.fhirfactory.pegacorn.common.model.ConcurrentTree} listeners.
+	 */
+	@Test
+	void testTreeDiffAndListeners() {
+		LOG.debug(".testTreeDiffAndListeners(): Entry...");
+		ConcurrentTree.Snapshot<String, String> before = testTree.snapshot();
+		List<TreeChangeEvent<String, String>> heardEvents = new ArrayList<>();
+		testTree.addTreeChangeListener(heardEvents::add);
+		testTree.add("site-b", "platform-3");
+		testTree.move("platform-2", "site-b");
+		testTree.remove("site-a");
+		ConcurrentTree.Snapshot<String, String> after = testTree.snapshot();
+		assertEquals(Arrays.asList(TreeChangeEvent.ChangeType.ADDED, TreeChangeEvent.ChangeType.MOVED,
+				TreeChangeEvent.ChangeType.REMOVED, TreeChangeEvent.ChangeType.REMOVED),
+				heardEvents.stream().map(TreeChangeEvent::getChangeType).collect(Collectors.toList()));
+		assertEquals("platform-1", heardEvents.get(2).getKey());
+		List<TreeChangeEvent<String, String>> snapshotEvents = TreeDiff.diff(before, after);
+		assertEquals(4, snapshotEvents.size());
+		List<TreeChangeEvent<String, String>> treeEvents = TreeDiff.diff(before.toTree(), after.toTree(), data -> data);
+		assertEquals(4, treeEvents.size());
+		// Replaying the diff against a copy of "before" reproduces "after"
+		ConcurrentTree<String, String> replayedTree = ConcurrentTree.from(before.toTree(), data -> data);
+		replayedTree.apply(snapshotEvents);
+		assertTrue(TreeDiff.diff(replayedTree.snapshot(), after).isEmpty());
+		assertEquals(after.getPathTo("platform-2").size(), replayedTree.snapshot().getPathTo("platform-2").size());
+		assertTrue(TreeDiff.diff(after, testTree.snapshot()).isEmpty());
+	}
+
+	/**
+	 * Test method for
+	 * {@link net.fhirfactory.pegacorn.common.model.ConcurrentTree#apply(Iterable)},
+	 * checking that a sequence of changes is published as a single update.
+	 */
+	@Test
+	void testApplyIsAtomic() {
+		LOG.debug(".testApplyIsAtomic(): Entry...");
+		ConcurrentTree.Snapshot<String, String> before = testTree.snapshot();
+		ConcurrentTree<String, String> targetTree = ConcurrentTree.from(before.toTree(), data -> data);
+		targetTree.add("site-b", "platform-3");
+		targetTree.move("platform-2", "site-b");
+		targetTree.remove("site-a");
+		List<TreeChangeEvent<String, String>> events = TreeDiff.diff(before, targetTree.snapshot());
+		// Every listener call sees the fully applied Snapshot
+		List<Long> heardVersions = new ArrayList<>();
+		List<Integer> heardSizes = new ArrayList<>();
+		testTree.addTreeChangeListener(event -> {
+			heardVersions.add(testTree.snapshot().getVersion());
+			heardSizes.add(testTree.size());
+		});
+		testTree.apply(events);
+		assertEquals(before.getVersion() + 1, testTree.snapshot().getVersion());
+		assertEquals(events.size(), heardVersions.size());
+		assertTrue(heardVersions.stream().allMatch(version -> version == before.getVersion() + 1));
+		assertTrue(heardSizes.stream().allMatch(size -> size == 4));
+		assertTrue(TreeDiff.diff(testTree.snapshot(), targetTree.snapshot()).isEmpty());
+		// A sequence that fails part way through is not applied at all
+		ConcurrentTree.Snapshot<String, String> beforeFailure = testTree.snapshot();
+		List<TreeChangeEvent<String, String>> failingEvents = new ArrayList<>(TreeDiff.diff(testTree.snapshot(), before));
+		failingEvents.add(TreeChangeEvent.moved("no-such-node", "root", "site-b", "no-such-node", "no-such-node"));
+		assertThrows(IllegalArgumentException.class, () -> testTree.apply(failingEvents));
+		assertSame(beforeFailure, testTree.snapshot());
+		assertEquals(events.size(), heardVersions.size());
+	}
+
+	/**
+	 * Test method for the (persistent) key index used by ConcurrentTree, checking
+	 * it against a HashMap, including keys with colliding hashes, and that older
+	 * versions are unaffected by later updates.
+	 */
+	@Test
+	void testPersistentHashMap() {
+		LOG.debug(".testPersistentHashMap(): Entry...");
+		Random random = new Random(42);
+		HashMap<CollidingKey, Integer> expected = new HashMap<>();
+		PersistentHashMap<CollidingKey, Integer> map = PersistentHashMap.empty();
+		List<PersistentHashMap<CollidingKey, Integer>> versions = new ArrayList<>();
+		List<Map<CollidingKey, Integer>> expectedVersions = new ArrayList<>();
+		for (int counter = 0; counter < 5000; counter++) {
+			CollidingKey key = new CollidingKey(random.nextInt(1500));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.containsKey(key), map.remove(key) != map);
+				map = map.remove(key);
+				expected.remove(key);
+			} else {
+				map = map.put(key, counter);
+				expected.put(key, counter);
+			}
+			assertEquals(expected.size(), map.size());
+			if (counter % 500 == 0) {
+				versions.add(map);
+				expectedVersions.add(new HashMap<>(expected));
+			}
+		}
+		for (int keyId = 0; keyId < 1500; keyId++) {
+			CollidingKey key = new CollidingKey(keyId);
+			assertEquals(expected.get(key), map.get(key));
+			assertEquals(expected.containsKey(key), map.containsKey(key));
+		}
+		for (int version = 0; version < versions.size(); version++) {
+			assertEquals(expectedVersions.get(version).size(), versions.get(version).size());
+			for (Map.Entry<CollidingKey, Integer> entry : expectedVersions.get(version).entrySet()) {
+				assertEquals(entry.getValue(), versions.get(version).get(entry.getKey()));
+			}
+		}
+		// Removing everything leaves an empty map
+		for (int keyId = 0; keyId < 1500; keyId++) {
+			map = map.remove(new CollidingKey(keyId));
+		}
+		assertTrue(map.isEmpty());
+		assertNull(map.get(new CollidingKey(1)));
+		assertSame(map, map.remove(new CollidingKey(1)));
+	}
+
+	/**
+	 * A key whose hashCode() collides for every 8 ids, and whose (spread) hashes
+	 * share their low bits for many more.
+	 */
+	private static final class CollidingKey {
+		private final int id;
+
+		CollidingKey(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((id / 8) << 10);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return ((o instanceof CollidingKey) && ((CollidingKey) o).id == id);
+		}
+	}
+
+	private static <T> List<T> dataOf(Iterator<TreeNode<T>> nodeIterator) {
+		List<T> data = new ArrayList<>();
+		while (nodeIterator.hasNext()) {
+			data.add(nodeIterator.next().getNodeData());
+		}
+		return (data);
+	}
+}
@@ -0,0 +1,220 @@
+package net.fhirfactory.pegacorn.fhir.helpers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+
+class BundleDecoderTest {
+
+	private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+	private BundleDecoder bundleDecoder;
+	private Bundle messageBundle;
+
+	@BeforeEach
+	void setUp() {
+		bundleDecoder = new BundleDecoder();
+		messageBundle = new Bundle();
+		messageBundle.setType(Bundle.BundleType.MESSAGE);
+		Patient patient = new Patient();
+		patient.setId("p1");
+		patient.addName().setFamily("Smith");
+		messageBundle.addEntry().setFullUrl("urn:uuid:patient-1").setResource(patient);
+		MessageHeader messageHeader = new MessageHeader();
+		messageHeader.setId("mh1");
+		messageHeader.setEvent(new Coding("http://example.org/events", "admit", null));
+		messageHeader.getSource().setEndpoint("http://example.org/source");
+		messageBundle.addEntry().setFullUrl("urn:uuid:header-1").setResource(messageHeader);
+	}
+
+	@Test
+	void testStreamingExtraction() {
+		String bundleJSON = FHIR_CONTEXT.newJsonParser().encodeResourceToString(messageBundle);
+		MessageHeader fromString = bundleDecoder.extractMessageHeader(bundleJSON);
+		assertNotNull(fromString);
+		assertEquals("admit", fromString.getEventCoding().getCode());
+		assertEquals("http://example.org/source", fromString.getSource().getEndpoint());
+		MessageHeader fromBytes = bundleDecoder.extractMessageHeader(bundleJSON.getBytes(StandardCharsets.UTF_8));
+		assertEquals("mh1", fromBytes.getIdElement().getIdPart());
+		MessageHeader fromStream = bundleDecoder.extractMessageHeader(new ByteArrayInputStream(bundleJSON.getBytes(StandardCharsets.UTF_8)));
+		assertEquals("admit", fromStream.getEventCoding().getCode());
+		// Agrees with the full parse path
+		Bundle parsedBundle = FHIR_CONTEXT.newJsonParser().parseResource(Bundle.class, bundleJSON);
+		assertEquals(bundleDecoder.extractMessageHeader(parsedBundle).getEventCoding().getCode(), fromString.getEventCoding().getCode());
+	}
+
+	@Test
+	void testStreamingFieldOrder() {
+		// "type" after "entry", and "resourceType" not the first resource field
+		String bundleJSON = "{\"entry\":[{\"resource\":{\"id\":\"x\",\"resourceType\":\"Patient\"}},"
+				+ "{\"resource\":{\"id\":\"mh2\",\"resourceType\":\"MessageHeader\",\"eventCoding\":{\"code\":\"discharge\"}}}],"
+				+ "\"resourceType\":\"Bundle\",\"type\":\"message\"}";
+		MessageHeader messageHeader = bundleDecoder.extractMessageHeader(bundleJSON);
+		assertNotNull(messageHeader);
+		assertEquals("discharge", messageHeader.getEventCoding().getCode());
+	}
+
+	@Test
+	void testStreamingNonMessage() {
+		messageBundle.setType(Bundle.BundleType.COLLECTION);
+		assertNull(bundleDecoder.extractMessageHeader(FHIR_CONTEXT.newJsonParser().encodeResourceToString(messageBundle)));
+		assertNull(bundleDecoder.extractMessageHeader("{\"resourceType\":\"Patient\",\"id\":\"p1\"}"));
+		assertNull(bundleDecoder.extractMessageHeader("{\"resourceType\":\"Bundle\",\"type\":\"message\",\"entry\":[]}"));
+		assertNull(bundleDecoder.extractMessageHeader((String) null));
+		assertThrows(DataFormatException.class, () -> bundleDecoder.extractMessageHeader("{\"resourceType\":\"Bundle\","));
+	}
+
+	@Test
+	void testBundleIndex() {
+		Observation observation = new Observation();
+		observation.setId("o1");
+		observation.setSubject(new Reference("urn:uuid:patient-1"));
+		Bundle.BundleEntryComponent observationEntry = messageBundle.addEntry()
+				.setFullUrl("http://example.org/fhir/Observation/o1").setResource(observation);
+		Patient otherPatient = new Patient();
+		otherPatient.setId("p2");
+		messageBundle.addEntry().setFullUrl("http://example.org/fhir/Patient/p2").setResource(otherPatient);
+		BundleIndex bundleIndex = bundleDecoder.buildIndex(messageBundle);
+		assertEquals(4, bundleIndex.size());
+		assertSame(bundleDecoder.extractMessageHeader(messageBundle), bundleIndex.getFirstResource(ResourceType.MessageHeader));
+		assertEquals(2, bundleIndex.getResources(ResourceType.Patient, Patient.class).size());
+		assertTrue(bundleIndex.getResources(ResourceType.Encounter).isEmpty());
+		Patient patient = bundleIndex.resolve(observation.getSubject(), Patient.class);
+		assertNotNull(patient);
+		assertSame(patient, bundleIndex.resolve(new Reference("Patient/p1")));
+		assertNull(bundleIndex.resolve("http://other.org/fhir/Patient/p1/_history/3"));
+		assertNull(bundleIndex.resolve("http://other.org/fhir/Patient/p2"));
+		assertSame(otherPatient, bundleIndex.resolve("http://example.org/fhir/Patient/p2/_history/3"));
+		assertSame(otherPatient, bundleIndex.resolve("Patient/p2/_history/3", observationEntry));
+		assertSame(patient, bundleIndex.resolve(new Reference("Patient/p1"), observationEntry));
+		Bundle.BundleEntryComponent foreignEntry = new Bundle.BundleEntryComponent()
+				.setFullUrl("http://other.org/fhir/Observation/o2");
+		assertNull(bundleIndex.resolve("Patient/p2", foreignEntry));
+		assertSame(patient, bundleIndex.resolve("Patient/p1", foreignEntry));
+		assertSame(observation, bundleIndex.getResourceByFullUrl("http://example.org/fhir/Observation/o1"));
+		assertSame(observation, bundleIndex.getResource(ResourceType.Observation, "o1"));
+		assertNull(bundleIndex.resolve(new Reference("#contained")));
+		assertNull(bundleIndex.resolve("Patient/unknown"));
+		assertNull(bundleIndex.resolve(observation.getSubject(), Observation.class));
+		assertNull(bundleDecoder.buildIndex(null));
+	}
+
+	@Test
+	void testParallelDecoding() throws Exception {
+		Bundle batchBundle = new Bundle();
+		batchBundle.setType(Bundle.BundleType.BATCH);
+		batchBundle.setId("batch1");
+		for (int i = 0; i < 50; i++) {
+			Patient patient = new Patient();
+			patient.setId("p" + i);
+			patient.addName().setFamily("Family" + i);
+			batchBundle.addEntry().setFullUrl("urn:uuid:patient-" + i).setResource(patient).getRequest()
+					.setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+		}
+		String bundleJSON = FHIR_CONTEXT.newJsonParser().encodeResourceToString(batchBundle);
+		String expectedJSON = FHIR_CONTEXT.newJsonParser()
+				.encodeResourceToString(FHIR_CONTEXT.newJsonParser().parseResource(Bundle.class, bundleJSON));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			bundleDecoder.setParallelDecodingExecutor(executor);
+			bundleDecoder.setParallelDecodingChunkSize(7);
+			Bundle decodedBundle = bundleDecoder.decodeBundleInParallel(bundleJSON);
+			assertEquals(50, decodedBundle.getEntry().size());
+			assertEquals(Bundle.BundleType.BATCH, decodedBundle.getType());
+			assertEquals(expectedJSON, FHIR_CONTEXT.newJsonParser().encodeResourceToString(decodedBundle));
+			Bundle fromStream = bundleDecoder.decodeBundleInParallel(new ByteArrayInputStream(bundleJSON.getBytes(StandardCharsets.UTF_8)));
+			assertEquals(expectedJSON, FHIR_CONTEXT.newJsonParser().encodeResourceToString(fromStream));
+		} finally {
+			executor.shutdown();
+		}
+		assertThrows(IllegalArgumentException.class, () -> bundleDecoder.setParallelDecodingChunkSize(0));
+		assertThrows(DataFormatException.class, () -> bundleDecoder.decodeBundleInParallel("{\"resourceType\":\"Patient\"}"));
+		assertThrows(DataFormatException.class, () -> bundleDecoder.decodeBundleInParallel(
+				"{\"resourceType\":\"Bundle\",\"entry\":[{\"resource\":{\"resourceType\":\"Patient\",\"active\":\"maybe\"}}]}"));
+	}
+	@Test
+	void testParallelDecodingLinksReferences() {
+		Bundle batchBundle = new Bundle();
+		batchBundle.setType(Bundle.BundleType.BATCH);
+		Patient firstPatient = new Patient();
+		firstPatient.setId("pat-0");
+		batchBundle.addEntry().setFullUrl("urn:uuid:pat-0").setResource(firstPatient);
+		Patient serverPatient = new Patient();
+		serverPatient.setId("p1");
+		batchBundle.addEntry().setFullUrl("http://example.org/fhir/Patient/p1").setResource(serverPatient);
+		Patient unidentifiedPatient = new Patient();
+		unidentifiedPatient.addName().setFamily("Unidentified");
+		batchBundle.addEntry().setFullUrl("urn:uuid:pat-2").setResource(unidentifiedPatient);
+		// The chunk size is 3, so everything below is in a later chunk than the Patients
+		addObservation(batchBundle, "urn:uuid:pat-0");
+		addObservation(batchBundle, "Patient/p1");
+		addObservation(batchBundle, "http://example.org/fhir/Patient/p1/_history/2");
+		addObservation(batchBundle, "urn:uuid:pat-2").addPerformer(new Reference("Patient/pat-0"));
+		Observation containingObservation = addObservation(batchBundle, "#c1");
+		Observation containedObservation = new Observation();
+		containedObservation.setId("c1");
+		containedObservation.setSubject(new Reference("urn:uuid:pat-0"));
+		containingObservation.addContained(containedObservation);
+		addObservation(batchBundle, "Observation/o-last");
+		Observation lastObservation = addObservation(batchBundle, "http://other.org/fhir/Patient/p1");
+		lastObservation.setId("o-last");
+		String bundleJSON = FHIR_CONTEXT.newJsonParser().encodeResourceToString(batchBundle);
+		Bundle expectedBundle = FHIR_CONTEXT.newJsonParser().parseResource(Bundle.class, bundleJSON);
+		bundleDecoder.setParallelDecodingChunkSize(3);
+		Bundle decodedBundle = bundleDecoder.decodeBundleInParallel(bundleJSON);
+		Observation observation = (Observation) decodedBundle.getEntry().get(3).getResource();
+		assertEquals("urn:uuid:pat-0", observation.getSubject().getReference());
+		assertSame(decodedBundle.getEntry().get(0).getResource(), observation.getSubject().getResource());
+		assertEquals(describeLinks(expectedBundle), describeLinks(decodedBundle));
+		for (int i = 0; i < expectedBundle.getEntry().size(); i++) {
+			assertEquals(expectedBundle.getEntry().get(i).getResource().getIdElement().getValue(),
+					decodedBundle.getEntry().get(i).getResource().getIdElement().getValue());
+		}
+	}
+
+	private Observation addObservation(Bundle bundle, String subjectReference) {
+		Observation observation = new Observation();
+		observation.setSubject(new Reference(subjectReference));
+		bundle.addEntry().setResource(observation);
+		return (observation);
+	}
+
+	/**
+	 * @return For each Reference in the Bundle (in terser order), the entry index
+	 * (or contained resource id) of the resource it is linked to.
+	 */
+	private List<String> describeLinks(Bundle bundle) {
+		List<String> links = new ArrayList<>();
+		for (Reference reference : FHIR_CONTEXT.newTerser().getAllPopulatedChildElementsOfType(bundle, Reference.class)) {
+			String link = "unlinked";
+			if (reference.getResource() != null) {
+				link = "contained " + reference.getResource().getIdElement().getValue();
+				for (int i = 0; i < bundle.getEntry().size(); i++) {
+					if (bundle.getEntry().get(i).getResource() == reference.getResource()) {
+						link = "entry " + i;
+					}
+				}
+			}
+			links.add(reference.getReference() + " -> " + link);
+		}
+		return (links);
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.fhirfactory.pegacorn.internals.events;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+class PegacornEventExtensionSetTest {
+
+	private static final String ACTION_URL = "http://pegacorn.fhirbox.net/pegacorn/R1/event/event_action";
+	private static final String OTHER_URL = "http://example.org/other";
+
+	@Test
+	void testExtensionSet() {
+		Extension actionExtension = new Extension(ACTION_URL, new StringType("pegacorn.event.action.Create"));
+		Extension otherExtension = new Extension(OTHER_URL, new StringType("other"));
+		PegacornEventExtensionSet extensionSet = new PegacornEventExtensionSet(Arrays.asList(actionExtension, otherExtension));
+		assertEquals(2, extensionSet.size());
+		assertSame(actionExtension, extensionSet.getExtension(ACTION_URL));
+		assertTrue(extensionSet.getExtensions("http://example.org/missing").isEmpty());
+		assertThrows(UnsupportedOperationException.class, () -> extensionSet.getExtensionList().clear());
+		Extension updatedActionExtension = new Extension(ACTION_URL, new StringType("pegacorn.event.action.Update"));
+		extensionSet.setExtension(updatedActionExtension);
+		assertEquals(1, extensionSet.getExtensions(ACTION_URL).size());
+		assertSame(updatedActionExtension, extensionSet.getExtension(ACTION_URL));
+		Meta eventMeta = new Meta();
+		eventMeta.addExtension(new Extension(ACTION_URL, new StringType("stale")));
+		extensionSet.applyTo(eventMeta);
+		assertEquals(2, eventMeta.getExtension().size());
+		PegacornEventExtensionSet metaSet = new PegacornEventExtensionSet(eventMeta);
+		assertSame(updatedActionExtension, metaSet.getExtension(ACTION_URL));
+		assertTrue(metaSet.removeExtensions(OTHER_URL));
+		assertFalse(metaSet.hasExtension(OTHER_URL));
+		assertEquals(1, new PegacornEventExtensionSet(actionExtension).size());
+	}
+
+	@Test
+	void testEventExtensionEnumAndMap() {
+		for (PegacornEventExtensionEnum extensionType : PegacornEventExtensionEnum.values()) {
+			assertSame(extensionType, PegacornEventExtensionEnum.fromUrl(extensionType.getUrl()));
+		}
+		assertEquals(ACTION_URL, PegacornEventExtensionEnum.EVENT_ACTION.getUrl());
+		assertNull(PegacornEventExtensionEnum.fromUrl(OTHER_URL));
+		assertNull(PegacornEventExtensionEnum.fromUrl(PegacornEventExtensionEnum.EVENT_EXTENSION_URL_PREFIX + "event_actions"));
+		assertNull(PegacornEventExtensionEnum.fromUrl(PegacornEventExtensionEnum.EVENT_EXTENSION_URL_PREFIX + "event_xction"));
+		assertNull(PegacornEventExtensionEnum.fromUrl(PegacornEventExtensionEnum.EVENT_EXTENSION_URL_PREFIX + "event_source"));
+		Meta eventMeta = new Meta();
+		eventMeta.addExtension(new Extension(OTHER_URL, new StringType("other")));
+		eventMeta.addExtension(new Extension(ACTION_URL, new StringType("pegacorn.event.action.Create")));
+		PegacornEventExtensionMap extensionMap = new PegacornEventExtensionMap(eventMeta);
+		assertEquals(1, extensionMap.size());
+		assertEquals("pegacorn.event.action.Create", extensionMap.getValue(PegacornEventExtensionEnum.EVENT_ACTION).primitiveValue());
+		extensionMap.setValue(PegacornEventExtensionEnum.EVENT_ACTION, new StringType("pegacorn.event.action.Delete"));
+		assertThrows(IllegalArgumentException.class, () -> extensionMap.setExtension(new Extension(OTHER_URL, new StringType("other"))));
+		extensionMap.applyTo(eventMeta);
+		assertEquals(2, eventMeta.getExtension().size());
+		PegacornEventExtensionSet extensionSet = extensionMap.toExtensionSet();
+		assertEquals("pegacorn.event.action.Delete", extensionSet.getExtension(PegacornEventExtensionEnum.EVENT_ACTION).getValue().primitiveValue());
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.fhirfactory.pegacorn.internals.workflows;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+class EventActionTest {
+
+	@Test
+	void testClassify() {
+		assertEquals(EventActionType.CREATE, EventActionType.classify("pegacorn.event.action.Create"));
+		assertEquals(EventActionType.UPDATE, EventActionType.classify("pegacorn.event.action.Update"));
+		assertEquals(EventActionType.UPDATE_ADD, EventActionType.classify("pegacorn.event.action.Update.Add"));
+		assertEquals(EventActionType.UPDATE_REMOVE, EventActionType.classify("code=pegacorn.event.action.Update.Remove;"));
+		assertEquals(EventActionType.REVIEW, EventActionType.classify("pegacorn.event.action.pegacorn.event.action.Review"));
+		assertEquals(EventActionType.UNKNOWN, EventActionType.classify("pegacorn.event.action.Cancel"));
+		assertEquals(EventActionType.UNKNOWN, EventActionType.classify("pegacorn.event.action."));
+		assertEquals(EventActionType.UNKNOWN, EventActionType.classify(""));
+		assertEquals(EventActionType.UNKNOWN, EventActionType.classify((String) null));
+		EventActionType[] batch = EventActionType.classify(new String[]{"pegacorn.event.action.Delete", null});
+		assertArrayEquals(new EventActionType[]{EventActionType.DELETE, EventActionType.UNKNOWN}, batch);
+		assertEquals(2, EventActionType.classify(Stream.of("pegacorn.event.action.Create", "pegacorn.event.action.Update.Add"))
+				.filter(actionType -> actionType != EventActionType.UNKNOWN).collect(Collectors.toList()).size());
+	}
+
+	@Test
+	void testIsActionMethods() {
+		EventAction eventAction = new EventAction();
+		assertTrue(eventAction.isActionUpdate(eventAction.getActionUpdateAdd()));
+		assertTrue(eventAction.isActionUpdate(eventAction.getActionUpdateRemove()));
+		assertTrue(eventAction.isActionUpdateAdd(eventAction.getActionUpdateAdd()));
+		assertFalse(eventAction.isActionUpdateAdd(eventAction.getActionUpdate()));
+		assertTrue(eventAction.isActionCreate(eventAction.getActionCreate()));
+		assertFalse(eventAction.isActionCreate(eventAction.getActionDelete()));
+		assertTrue(eventAction.isActionDelete(eventAction.getActionDelete()));
+		assertTrue(eventAction.isActionReview(eventAction.getActionReview()));
+		assertFalse(eventAction.isActionReview(null));
+	}
+}